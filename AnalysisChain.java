@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.apache.lucene.analysis.util.CharArrayMap;
+import org.apache.lucene.analysis.util.CharArraySet;
+
+/**
+ * The analysis chain of either search engine as one reusable analyzer. Like
+ * any Lucene analyzer it keeps one token stream per thread and resets it for
+ * each text, so nothing is rebuilt per document or query. Porter stems are
+ * memoized per thread in a bounded map from surface form to stem.
+ *
+ * {@link #miniSearchEngine} tokenizes, stems, removes stop words ignoring
+ * case and lowercases, exactly like MiniSearchEngine always has.
+ * {@link #lucene} tokenizes, lowercases, removes stop words and optionally
+ * stems, exactly like {@link MyAnalyzer}.
+ */
+public class AnalysisChain extends Analyzer {
+	/** Number of memoized stems per thread before the memo is cleared */
+	public static final int DEFAULT_STEM_CACHE_SIZE = 1 << 14;
+
+	private final CharArraySet stopwords;
+	private final boolean stem;
+	private final boolean stemBeforeStop;
+	private final int stemCacheSize;
+
+	/** The MiniSearchEngine chain, stop words are matched ignoring case */
+	public static AnalysisChain miniSearchEngine(CharArraySet stopwords) {
+		return new AnalysisChain(stopwords, true, true, DEFAULT_STEM_CACHE_SIZE);
+	}
+
+	/**
+	 * The MyAnalyzer chain used with Lucene by {@link IndexFiles} and
+	 * {@link SearchFiles}, no stop words if stopwords is null
+	 */
+	public static AnalysisChain lucene(CharArraySet stopwords, boolean stem) {
+		return new AnalysisChain(stopwords != null ? stopwords : CharArraySet.EMPTY_SET, stem, false,
+				DEFAULT_STEM_CACHE_SIZE);
+	}
+
+	/**
+	 * @param stemBeforeStop the MiniSearchEngine order: stem the tokens as written,
+	 * then remove stop words and lowercase. Otherwise lowercase, remove stop words
+	 * and then stem.
+	 * @param stemCacheSize memoized stems per thread, 0 to stem every token
+	 */
+	public AnalysisChain(CharArraySet stopwords, boolean stem, boolean stemBeforeStop, int stemCacheSize) {
+		this.stopwords = stopwords;
+		this.stem = stem;
+		this.stemBeforeStop = stemBeforeStop;
+		this.stemCacheSize = stemCacheSize;
+	}
+
+	@Override
+	protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+		StandardTokenizer src = new StandardTokenizer(reader);
+		TokenStream tok;
+		if (stemBeforeStop) {
+			tok = stem ? stemmer(src) : src;
+			tok = new StopFilter(tok, stopwords);
+			tok = new StringLowerCaseFilter(tok);
+		} else {
+			src.setMaxTokenLength(MyAnalyzer.DEFAULT_MAX_TOKEN_LENGTH);
+			tok = new StandardFilter(src);
+			tok = new LowerCaseFilter(tok);
+			tok = new StopFilter(tok, stopwords);
+			if (stem) {
+				tok = stemmer(tok);
+			}
+		}
+		return new TokenStreamComponents(src, tok);
+	}
+
+	private TokenStream stemmer(TokenStream input) {
+		if (stemCacheSize <= 0) {
+			return new PorterStemFilter(input);
+		}
+		StemMemo memo = new StemMemo(stemCacheSize);
+		return new StemMemoStore(new PorterStemFilter(new StemMemoLookup(input, memo)), memo);
+	}
+
+	/*
+	 * Stems of recently seen surface forms. Only used by the thread owning the
+	 * token stream, so it needs no locking.
+	 */
+	private static class StemMemo {
+		final CharArrayMap<char[]> stems;
+		final int maxSize;
+		char[] surface = new char[32];
+		int surfaceLength = 0;
+		boolean pending = false;
+
+		StemMemo(int maxSize) {
+			this.stems = new CharArrayMap<>(Math.min(maxSize, 1024), false);
+			this.maxSize = maxSize;
+		}
+	}
+
+	/*
+	 * Replaces a token with its memoized stem and marks it as a keyword, which
+	 * PorterStemFilter leaves alone. Other tokens are remembered for the store.
+	 */
+	private static final class StemMemoLookup extends TokenFilter {
+		private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+		private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
+		private final StemMemo memo;
+
+		StemMemoLookup(TokenStream input, StemMemo memo) {
+			super(input);
+			this.memo = memo;
+		}
+
+		@Override
+		public boolean incrementToken() throws IOException {
+			if (!input.incrementToken()) {
+				return false;
+			}
+			memo.pending = false;
+			if (keywordAtt.isKeyword()) {
+				return true;
+			}
+			char[] stem = memo.stems.get(termAtt.buffer(), 0, termAtt.length());
+			if (stem != null) {
+				termAtt.copyBuffer(stem, 0, stem.length);
+				keywordAtt.setKeyword(true);
+			} else {
+				if (memo.surface.length < termAtt.length()) {
+					memo.surface = new char[termAtt.length()];
+				}
+				System.arraycopy(termAtt.buffer(), 0, memo.surface, 0, termAtt.length());
+				memo.surfaceLength = termAtt.length();
+				memo.pending = true;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Memoizes the stem PorterStemFilter produced for the remembered surface form
+	 */
+	private static final class StemMemoStore extends TokenFilter {
+		private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+		private final StemMemo memo;
+
+		StemMemoStore(TokenStream input, StemMemo memo) {
+			super(input);
+			this.memo = memo;
+		}
+
+		@Override
+		public boolean incrementToken() throws IOException {
+			if (!input.incrementToken()) {
+				return false;
+			}
+			if (memo.pending) {
+				if (memo.stems.size() >= memo.maxSize) {
+					memo.stems.clear();
+				}
+				memo.stems.put(Arrays.copyOf(memo.surface, memo.surfaceLength),
+						Arrays.copyOf(termAtt.buffer(), termAtt.length()));
+				memo.pending = false;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Lowercases in place with the same result as String.toLowerCase(). Tokens
+	 * with non-ASCII characters take the String path, where case mapping can
+	 * depend on the locale and on context, and so does everything in locales
+	 * that map ASCII letters differently, such as the dotless i of Turkish.
+	 */
+	private static final class StringLowerCaseFilter extends TokenFilter {
+		private static final boolean ASCII_IS_SIMPLE =
+				"ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+
+		private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+		StringLowerCaseFilter(TokenStream input) {
+			super(input);
+		}
+
+		@Override
+		public boolean incrementToken() throws IOException {
+			if (!input.incrementToken()) {
+				return false;
+			}
+			char[] buffer = termAtt.buffer();
+			int length = termAtt.length();
+			for (int i = 0; i < length; i++) {
+				if (buffer[i] >= 0x80 || !ASCII_IS_SIMPLE) {
+					String lower = termAtt.toString().toLowerCase();
+					termAtt.setEmpty().append(lower);
+					return true;
+				}
+			}
+			for (int i = 0; i < length; i++) {
+				char c = buffer[i];
+				if (c >= 'A' && c <= 'Z') {
+					buffer[i] = (char) (c + ('a' - 'A'));
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+import java.util.Map;
+
+/**
+ * BM25F, BM25 over a document made of weighted fields: the term frequency of
+ * each field is normalized by the length of the field and weighted, and the
+ * sum over the fields is saturated once with k1.
+ *
+ * Documents are indexed as the single field contents, so there is one field
+ * weight and one length normalization b. With weight 1 this ranks like BM25,
+ * other weights change how quickly term frequencies saturate.
+ */
+public class BM25FWeighting extends Weighting {
+	public static final double DEFAULT_WEIGHT = 1;
+
+	private final double k1;
+	private final double b;
+	private final double k2;
+	private final double weight;
+
+	public BM25FWeighting() {
+		this(BM25Weighting.DEFAULT_K1, BM25Weighting.DEFAULT_B, BM25Weighting.DEFAULT_K2, DEFAULT_WEIGHT);
+	}
+
+	/**
+	 * @param b length normalization of the contents field
+	 * @param weight weight of the contents field
+	 */
+	public BM25FWeighting(double k1, double b, double k2, double weight) {
+		if(k1 < 0 || b < 0 || b > 1 || k2 < 0 || weight <= 0) {
+			throw new IllegalArgumentException("Bad BM25F parameters k1=" + k1 + " b=" + b + " k2=" + k2
+					+ " weight=" + weight);
+		}
+		this.k1 = k1;
+		this.b = b;
+		this.k2 = k2;
+		this.weight = weight;
+	}
+
+	public String name() {
+		return "BM25F";
+	}
+
+	public QueryScorer scorer(IndexSnapshot snapshot, final Map<String, Double> queryTfMap, Map<String, Double> queryDfMap) {
+		// the same idf and query part as BM25
+		final BM25Scorer bm25 = new BM25Scorer(k1, k2, b, snapshot.avgDocLength(), snapshot.numDocs());
+		final double avg_doc_length = snapshot.avgDocLength();
+		return new QueryScorer() {
+			public TermScorer term(String token, int docFreq, long totalTermFreq) {
+				return new BM25FTermScorer(bm25.idf(docFreq), bm25.queryPart(queryTfMap.get(token)), k1, b, weight,
+						avg_doc_length);
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "BM25F(k1=" + k1 + ",b=" + b + ",k2=" + k2 + ",weight=" + weight + ")";
+	}
+
+	private static final class BM25FTermScorer extends TermScorer {
+		private final double idf;
+		private final double query_part;
+		private final double k1;
+		private final double k1_plus_1;
+		private final double one_minus_b;
+		private final double b;
+		private final double weight;
+		private final double avg_doc_length;
+
+		BM25FTermScorer(double idf, double query_part, double k1, double b, double weight, double avg_doc_length) {
+			this.idf = idf;
+			this.query_part = query_part;
+			this.k1 = k1;
+			this.k1_plus_1 = k1 + 1;
+			this.one_minus_b = 1 - b;
+			this.b = b;
+			this.weight = weight;
+			this.avg_doc_length = avg_doc_length;
+		}
+
+		public double queryWeight() {
+			return query_part;
+		}
+
+		public double docWeight(int freq, int docLength, int docMaxTf) {
+			double tf = weight * freq / (one_minus_b + b * (docLength / avg_doc_length));
+			return idf * (k1_plus_1 * tf) / (k1 + tf);
+		}
+
+		@Override
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			for(int i = 0; i < count; i++) {
+				double tf = weight * freqs[i] / (one_minus_b + b * (docLengths[i] / avg_doc_length));
+				accumulators[docs[i]] += idf * (k1_plus_1 * tf) / (k1 + tf) * query_part;
+			}
+		}
+	}
+}
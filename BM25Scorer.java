@@ -0,0 +1,47 @@
+/**
+ * Okapi BM25 term scoring, shared by the exhaustive and the dynamic pruning
+ * query paths so both produce bit-identical scores.
+ */
+public class BM25Scorer {
+	private final double k1;
+	private final double k2;
+	private final double b;
+	private final double avg_doc_length;
+	private final double num_docs;
+
+	public BM25Scorer(double k1, double k2, double b, double avg_doc_length, double num_docs) {
+		this.k1 = k1;
+		this.k2 = k2;
+		this.b = b;
+		this.avg_doc_length = avg_doc_length;
+		this.num_docs = num_docs;
+	}
+
+	/** Document length normalization K for a document of the given length */
+	public double lengthNorm(double doc_length) {
+		return k1 * ((1-b) + b * (doc_length / avg_doc_length));
+	}
+
+	/** Inverse document frequency of a term contained in num_docs_containing documents */
+	public double idf(double num_docs_containing) {
+		return Math.log(1.0 / ((num_docs_containing + 0.5) / (num_docs - num_docs_containing + 0.5)));
+	}
+
+	/** Saturated document term frequency component */
+	public double tfPart(double doc_freq, double K) {
+		return ((k1 + 1) * doc_freq) / (K + doc_freq);
+	}
+
+	/** Query term frequency component */
+	public double queryPart(double query_freq) {
+		return ((k2 + 1) * query_freq) / (k2 + query_freq);
+	}
+
+	/**
+	 * Score contribution of one term. This is monotonic in tfPart, so the score of
+	 * the largest tfPart of a postings list bounds the score of all its documents.
+	 */
+	public double score(double idf, double tfPart, double queryPart) {
+		return idf * tfPart * queryPart;
+	}
+}
@@ -0,0 +1,127 @@
+import java.util.Map;
+
+/**
+ * Okapi BM25 with parameters k1, b and k2, see {@link BM25Scorer}. BM25 is
+ * also the weighting of dynamic pruning and the proximity boost.
+ */
+public class BM25Weighting extends Weighting {
+	public static final double DEFAULT_K1 = 1.2;
+	public static final double DEFAULT_B = 0.75;
+	public static final double DEFAULT_K2 = 100;
+
+	private final double k1;
+	private final double b;
+	private final double k2;
+
+	public BM25Weighting() {
+		this(DEFAULT_K1, DEFAULT_B, DEFAULT_K2);
+	}
+
+	/**
+	 * @param k1 document term frequency saturation
+	 * @param b document length normalization, from 0 to 1
+	 * @param k2 query term frequency saturation
+	 */
+	public BM25Weighting(double k1, double b, double k2) {
+		if(k1 < 0 || b < 0 || b > 1 || k2 < 0) {
+			throw new IllegalArgumentException("Bad BM25 parameters k1=" + k1 + " b=" + b + " k2=" + k2);
+		}
+		this.k1 = k1;
+		this.b = b;
+		this.k2 = k2;
+	}
+
+	public String name() {
+		return "BM25";
+	}
+
+	public double k1() {
+		return k1;
+	}
+
+	public double b() {
+		return b;
+	}
+
+	public double k2() {
+		return k2;
+	}
+
+	/** Term scoring with the statistics of the snapshot */
+	public BM25Scorer scorer(IndexSnapshot snapshot) {
+		return new BM25Scorer(k1, k2, b, snapshot.avgDocLength(), snapshot.numDocs());
+	}
+
+	/** Query term frequency component, the same as {@link BM25Scorer#queryPart} */
+	public double queryPart(double query_freq) {
+		return ((k2 + 1) * query_freq) / (k2 + query_freq);
+	}
+
+	/**
+	 * Scorer of a term contained in num_docs_containing of num_docs documents,
+	 * with the query part of its frequency in the query
+	 */
+	public TermScorer termScorer(double avg_doc_length, double num_docs, double num_docs_containing, double query_part) {
+		BM25Scorer bm25 = new BM25Scorer(k1, k2, b, avg_doc_length, num_docs);
+		return new BM25TermScorer(bm25, bm25.idf(num_docs_containing), query_part, k1, b, avg_doc_length);
+	}
+
+	public QueryScorer scorer(IndexSnapshot snapshot, final Map<String, Double> queryTfMap, Map<String, Double> queryDfMap) {
+		final BM25Scorer bm25 = scorer(snapshot);
+		final double avg_doc_length = snapshot.avgDocLength();
+		return new QueryScorer() {
+			public TermScorer term(String token, int docFreq, long totalTermFreq) {
+				return new BM25TermScorer(bm25, bm25.idf(docFreq), bm25.queryPart(queryTfMap.get(token)), k1, b,
+						avg_doc_length);
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "BM25(k1=" + k1 + ",b=" + b + ",k2=" + k2 + ")";
+	}
+
+	/*
+	 * The arithmetic of BM25Scorer written out, so scores are bit-identical to
+	 * the ones of dynamic pruning
+	 */
+	private static final class BM25TermScorer extends TermScorer {
+		private final BM25Scorer bm25;
+		private final double idf;
+		private final double query_part;
+		private final double k1;
+		private final double k1_plus_1;
+		private final double one_minus_b;
+		private final double b;
+		private final double avg_doc_length;
+
+		BM25TermScorer(BM25Scorer bm25, double idf, double query_part, double k1, double b, double avg_doc_length) {
+			this.bm25 = bm25;
+			this.idf = idf;
+			this.query_part = query_part;
+			this.k1 = k1;
+			this.k1_plus_1 = k1 + 1;
+			this.one_minus_b = 1 - b;
+			this.b = b;
+			this.avg_doc_length = avg_doc_length;
+		}
+
+		public double queryWeight() {
+			return query_part;
+		}
+
+		public double docWeight(int freq, int docLength, int docMaxTf) {
+			return idf * bm25.tfPart(freq, bm25.lengthNorm(docLength));
+		}
+
+		@Override
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			for(int i = 0; i < count; i++) {
+				double K = k1 * (one_minus_b + b * (docLengths[i] / avg_doc_length));
+				double tf = freqs[i];
+				accumulators[docs[i]] += idf * ((k1_plus_1 * tf) / (K + tf)) * query_part;
+			}
+		}
+	}
+}
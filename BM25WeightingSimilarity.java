@@ -0,0 +1,24 @@
+/**
+ * BM25 of {@link BM25Weighting} as a Lucene similarity, with the document
+ * lengths of the norms. Unlike Lucene's own BM25Similarity, lengths are exact
+ * and the query term frequency is saturated with k2.
+ */
+public class BM25WeightingSimilarity extends WeightingSimilarity {
+	private final BM25Weighting bm25;
+
+	public BM25WeightingSimilarity(BM25Weighting bm25) {
+		super(bm25);
+		this.bm25 = bm25;
+	}
+
+	@Override
+	public float queryBoost(double tf, double max_tf) {
+		return (float) bm25.queryPart(tf);
+	}
+
+	@Override
+	protected Weighting.TermScorer termScorer(double num_docs, double avg_doc_length, double num_docs_containing,
+			double query_tf) {
+		return bm25.termScorer(avg_doc_length, num_docs, num_docs_containing, query_tf);
+	}
+}
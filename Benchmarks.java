@@ -0,0 +1,525 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.util.CharArraySet;
+
+/**
+ * Benchmarks of both search engines: MiniSearchEngine index build and load
+ * times, query latency for each weighting, and Lucene indexing throughput and
+ * query latency through IndexFiles and SearchFiles.
+ *
+ * Every benchmark runs its operations for a number of warmup rounds before the
+ * measured rounds. For each one it reports the mean, median and 99th
+ * percentile time per operation, the bytes allocated per operation by the
+ * benchmark thread, and the collections and collection time of the garbage
+ * collectors. Builds on more than one thread allocate on their worker threads
+ * too, which is not counted.
+ *
+ * The collections are synthetic ones of the given sizes, see
+ * {@link SyntheticCorpus}, and with -collections the CACM and MED collections
+ * under data/ as used by {@link EvaluateQueries}. The results are compared to
+ * a baseline file if there is one, and can be saved as the new baseline.
+ * MiniSearchEngine indexes are written with the postings codec given by
+ * -codec, so saving the results of one codec as the baseline of a run with
+ * another compares them.
+ *
+ * The same builds, loads and queries are JMH benchmarks under src/jmh/java,
+ * built by the jmh profile of the pom into target/benchmarks.jar and run
+ * with -prof gc for their allocations and collections.
+ *
+ * Usage: java Benchmarks [-sizes 2000,10000] [-warmup 2] [-iterations 5]
+ *   [-threads N] [-codec vbyte|block128] [-collections] [-baseline FILE] [-save FILE]
+ */
+public class Benchmarks {
+	public static final String BASELINE_FILE = "benchmarks_baseline.txt";
+
+	private static final String[] WEIGHTINGS = {"atc.atc", "atn.atn", "ann.bpn", "BM25", "LM.dirichlet", "LM.jm"};
+	private static final int NUM_RESULTS = 100;
+	private static final int NUM_QUERIES = 64;
+	private static final int VOCABULARY_SIZE = 50000;
+	private static final long SEED = 42;
+	// a mean time this much above the baseline is reported as a regression
+	private static final double REGRESSION_THRESHOLD = 0.10;
+	private static final int PROXIMITY_WINDOW = 5;
+	private static final int NUM_SHARDS = 4;
+	private static final int IMPACT_BITS = 8;
+	private static final long IMPACT_POSTINGS_BUDGET = 10000;
+
+	private int warmup = 2;
+	private int iterations = 5;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private PostingsCodec codec = PostingsCodec.DEFAULT;
+	private final List<Result> results = new ArrayList<Result>();
+
+	// keeps the JIT from dropping results that are never used
+	private static volatile long sink;
+
+	public static void main(String[] args) {
+		Benchmarks benchmarks = new Benchmarks();
+		int[] sizes = {2000, 10000};
+		boolean collections = false;
+		String baselineFile = BASELINE_FILE;
+		String saveFile = null;
+
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-sizes")) {
+				String[] parts = args[++i].split(",");
+				sizes = new int[parts.length];
+				for(int s = 0; s < parts.length; s++) {
+					sizes[s] = Integer.parseInt(parts[s].trim());
+				}
+			} else if(args[i].equals("-warmup")) {
+				benchmarks.warmup = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-iterations")) {
+				benchmarks.iterations = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-threads")) {
+				benchmarks.threads = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-codec")) {
+				benchmarks.codec = PostingsCodec.forName(args[++i]);
+			} else if(args[i].equals("-collections")) {
+				collections = true;
+			} else if(args[i].equals("-baseline")) {
+				baselineFile = args[++i];
+			} else if(args[i].equals("-save")) {
+				saveFile = args[++i];
+			} else {
+				System.out.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		try {
+			File workDir = Files.createTempDirectory("benchmarks").toFile();
+			try {
+				for(int size: sizes) {
+					File corpusDir = new File(workDir, "synthetic-" + size);
+					new SyntheticCorpus(VOCABULARY_SIZE, SEED).generate(corpusDir, size, NUM_QUERIES, SEED);
+					benchmarks.benchmarkCollection("synthetic-" + size,
+							new File(corpusDir, SyntheticCorpus.DOCS_DIR).getPath(),
+							new File(corpusDir, SyntheticCorpus.QUERY_FILE).getPath(),
+							new File(corpusDir, SyntheticCorpus.STOPWORDS_FILE).getPath(),
+							new File(workDir, "index-" + size));
+				}
+				if(collections) {
+					String stopWordsDir = "data/stopwords/stopwords_indri.txt";
+					benchmarks.benchmarkCollection("cacm", "data/cacm", "data/cacm_processed.query",
+							stopWordsDir, new File(workDir, "index-cacm"));
+					benchmarks.benchmarkCollection("med", "data/med", "data/med_processed.query",
+							stopWordsDir, new File(workDir, "index-med"));
+				}
+			} finally {
+				deleteRecursively(workDir);
+			}
+
+			benchmarks.printResults();
+			if(new File(baselineFile).exists()) {
+				benchmarks.compareTo(baselineFile);
+			}
+			if(saveFile != null) {
+				benchmarks.save(saveFile, args);
+			}
+		} catch (Exception e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * All benchmarks of one document collection, its indexes are written under indexDir
+	 */
+	private void benchmarkCollection(String collection, final String docsDir, String queryFile,
+			final String stopWordsDir, File indexDir) throws Exception {
+		System.out.println("\nBenchmarking " + collection + "...");
+		final List<String> queries = new ArrayList<String>(EvaluateQueries.loadQueries(queryFile).values());
+		long[] size = collectionSize(new File(docsDir));
+		final File engineDir = new File(indexDir, "engine");
+		final File luceneDir = new File(indexDir, "lucene");
+		// the same settings as EvaluateQueries
+		final CharArraySet stopwords = new CharArraySet(0, false);
+
+		// MiniSearchEngine
+		for(final int buildThreads: new int[] {1, threads}) {
+			String name = buildThreads == 1 ? ".engine.build" : ".engine.build.parallel";
+			Result build = measure(collection + name, 1, new Operation() {
+				void setUp(int i) {
+					deleteRecursively(engineDir);
+				}
+
+				long run(int i) throws IOException {
+					MiniSearchEngine engine = new MiniSearchEngine(docsDir, engineDir.getPath(), stopWordsDir, buildThreads, 0, codec);
+					engine.close();
+					return 1;
+				}
+			});
+			build.setVolume(size[0], size[1]);
+			if(threads == 1) break;
+		}
+
+		measure(collection + ".engine.load", 1, new Operation() {
+			long run(int i) throws IOException {
+				MiniSearchEngine engine = new MiniSearchEngine(docsDir, engineDir.getPath(), stopWordsDir);
+				engine.close();
+				return 1;
+			}
+		});
+
+		final MiniSearchEngine engine = new MiniSearchEngine(docsDir, engineDir.getPath(), stopWordsDir);
+		try {
+			for(final String weighting: WEIGHTINGS) {
+				measure(collection + ".engine.query." + weighting, queries.size(), new Operation() {
+					long run(int i) {
+						return engine.search(queries.get(i), weighting, NUM_RESULTS).size();
+					}
+				});
+			}
+			engine.setDynamicPruning(true);
+			measure(collection + ".engine.query.BM25.wand", queries.size(), new Operation() {
+				long run(int i) {
+					return engine.search(queries.get(i), "BM25", NUM_RESULTS).size();
+				}
+			});
+			engine.setImpactOrdered("BM25", IMPACT_BITS);
+			for(final long budget: new long[] {0, IMPACT_POSTINGS_BUDGET}) {
+				String name = budget == 0 ? ".engine.query.BM25.impact" : ".engine.query.BM25.impact.budget";
+				measure(collection + name, queries.size(), new Operation() {
+					long run(int i) {
+						return engine.searchImpactOrdered(queries.get(i), NUM_RESULTS, budget, 0, TimeUnit.MILLISECONDS)
+								.docs().size();
+					}
+				});
+			}
+		} finally {
+			engine.close();
+		}
+
+		// with positions: the first two words of each query as a phrase, and the proximity boost
+		final File positionsDir = new File(indexDir, "engine-positions");
+		Result positionsBuild = measure(collection + ".engine.build.positions", 1, new Operation() {
+			void setUp(int i) {
+				deleteRecursively(positionsDir);
+			}
+
+			long run(int i) throws IOException {
+				MiniSearchEngine positional = new MiniSearchEngine(docsDir, positionsDir.getPath(), stopWordsDir, 1, 0, codec, true);
+				positional.close();
+				return 1;
+			}
+		});
+		positionsBuild.setVolume(size[0], size[1]);
+
+		final List<String> phrases = phraseQueries(queries);
+		final MiniSearchEngine positional = new MiniSearchEngine(docsDir, positionsDir.getPath(), stopWordsDir, 1, 0, codec, true);
+		try {
+			measure(collection + ".engine.query.phrase", phrases.size(), new Operation() {
+				long run(int i) {
+					return positional.search(phrases.get(i), "BM25", NUM_RESULTS).size();
+				}
+			});
+			positional.setProximityBoost(PROXIMITY_WINDOW);
+			measure(collection + ".engine.query.BM25.proximity", queries.size(), new Operation() {
+				long run(int i) {
+					return positional.search(queries.get(i), "BM25", NUM_RESULTS).size();
+				}
+			});
+		} finally {
+			positional.close();
+		}
+
+		// the same collection in shards searched in parallel, with the collection statistics
+		final File shardsDir = new File(indexDir, "engine-sharded");
+		deleteRecursively(shardsDir);
+		final ShardedSearchEngine sharded = new ShardedSearchEngine(docsDir, shardsDir.getPath(), stopWordsDir, NUM_SHARDS,
+				1, 0, codec, false);
+		try {
+			for(final String weighting: new String[] {"atc.atc", "BM25"}) {
+				measure(collection + ".engine.query." + weighting + ".sharded", queries.size(), new Operation() {
+					long run(int i) {
+						return sharded.search(queries.get(i), weighting, NUM_RESULTS).size();
+					}
+				});
+			}
+		} finally {
+			sharded.close();
+		}
+
+		// Lucene
+		for(final int buildThreads: new int[] {1, threads}) {
+			String name = buildThreads == 1 ? ".lucene.build" : ".lucene.build.parallel";
+			Result build = measure(collection + name, 1, new Operation() {
+				void setUp(int i) {
+					deleteRecursively(luceneDir);
+				}
+
+				long run(int i) {
+					IndexFiles.buildIndex(luceneDir.getPath(), docsDir, stopwords,
+							new IndexFiles.Options().threads(buildThreads));
+					return 1;
+				}
+			});
+			build.setVolume(size[0], size[1]);
+			if(threads == 1) break;
+		}
+
+		measure(collection + ".lucene.searchQuery", queries.size(), new Operation() {
+			long run(int i) {
+				return SearchFiles.searchQuery(luceneDir.getPath(), queries.get(i), NUM_RESULTS, stopwords).size();
+			}
+		});
+
+		final SearchFiles searchFiles = new SearchFiles(luceneDir.getPath(), stopwords);
+		try {
+			measure(collection + ".lucene.search", queries.size(), new Operation() {
+				long run(int i) {
+					return searchFiles.search(queries.get(i), NUM_RESULTS).size();
+				}
+			});
+		} finally {
+			searchFiles.close();
+		}
+	}
+
+	/*
+	 * One benchmarked operation, called with the numbers 0 to operations - 1 in
+	 * every round. Only run is timed.
+	 */
+	private static abstract class Operation {
+		void setUp(int i) throws Exception {
+		}
+
+		abstract long run(int i) throws Exception;
+	}
+
+	private Result measure(String name, int operations, Operation operation) throws Exception {
+		for(int round = 0; round < warmup; round++) {
+			for(int i = 0; i < operations; i++) {
+				operation.setUp(i);
+				sink += operation.run(i);
+			}
+		}
+
+		long[] nanos = new long[iterations * operations];
+		long allocated = 0;
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		for(int round = 0; round < iterations; round++) {
+			for(int i = 0; i < operations; i++) {
+				operation.setUp(i);
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				sink += operation.run(i);
+				nanos[round * operations + i] = System.nanoTime() - start;
+				allocated += allocatedBytes() - bytes;
+			}
+		}
+
+		Result result = new Result(name, nanos, allocatedBytes() < 0 ? -1 : allocated / nanos.length,
+				gcCount() - gcCount, gcMillis() - gcMillis);
+		results.add(result);
+		return result;
+	}
+
+	/*
+	 * Result of one benchmark. Builds also know the number of documents and
+	 * bytes they indexed, to report throughput.
+	 */
+	private static class Result {
+		final String name;
+		final long[] nanos;
+		final long allocatedPerOp;
+		final long gcCount;
+		final long gcMillis;
+		long docs = 0;
+		long bytes = 0;
+
+		Result(String name, long[] nanos, long allocatedPerOp, long gcCount, long gcMillis) {
+			this.name = name;
+			this.nanos = nanos.clone();
+			Arrays.sort(this.nanos);
+			this.allocatedPerOp = allocatedPerOp;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		void setVolume(long docs, long bytes) {
+			this.docs = docs;
+			this.bytes = bytes;
+		}
+
+		double meanMillis() {
+			double sum = 0;
+			for(long n: nanos) {
+				sum += n;
+			}
+			return sum / nanos.length / 1e6;
+		}
+
+		double percentileMillis(double p) {
+			int i = (int) Math.ceil(p * nanos.length) - 1;
+			return nanos[Math.max(0, Math.min(i, nanos.length - 1))] / 1e6;
+		}
+
+		String throughput() {
+			double seconds = meanMillis() / 1000;
+			if(docs > 0) {
+				return String.format("%.0f docs/s %.2f MB/s", docs / seconds, bytes / seconds / (1 << 20));
+			}
+			return String.format("%.1f ops/s", 1 / seconds);
+		}
+	}
+
+	private void printResults() {
+		System.out.println();
+		System.out.printf("%-42s %6s %10s %10s %10s %12s %8s  %s%n",
+				"benchmark", "ops", "mean ms", "p50 ms", "p99 ms", "alloc/op", "gc", "throughput");
+		for(Result result: results) {
+			System.out.printf("%-42s %6d %10.3f %10.3f %10.3f %12s %8s  %s%n",
+					result.name, result.nanos.length, result.meanMillis(),
+					result.percentileMillis(0.5), result.percentileMillis(0.99),
+					result.allocatedPerOp < 0 ? "n/a" : formatBytes(result.allocatedPerOp),
+					result.gcCount + "/" + result.gcMillis + "ms", result.throughput());
+		}
+	}
+
+	/*
+	 * Print the change of mean time and allocation for the benchmarks that are in the baseline
+	 */
+	private void compareTo(String baselineFile) throws IOException {
+		Map<String, double[]> baseline = new HashMap<String, double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(baselineFile));
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				if(line.startsWith("#") || line.trim().isEmpty()) continue;
+				String[] parts = line.split("\t");
+				baseline.put(parts[0], new double[] {Double.parseDouble(parts[1]), Double.parseDouble(parts[4])});
+			}
+		} finally {
+			br.close();
+		}
+
+		System.out.println("\nCompared to " + baselineFile + ":");
+		System.out.printf("%-42s %10s %10s %8s %10s%n", "benchmark", "base ms", "mean ms", "time", "alloc");
+		for(Result result: results) {
+			double[] base = baseline.get(result.name);
+			if(base == null) continue;
+			double change = result.meanMillis() / base[0] - 1;
+			String allocChange = base[1] > 0 && result.allocatedPerOp >= 0
+					? String.format("%+.1f%%", 100 * (result.allocatedPerOp / base[1] - 1)) : "n/a";
+			System.out.printf("%-42s %10.3f %10.3f %+7.1f%% %10s%s%n", result.name, base[0], result.meanMillis(),
+					100 * change, allocChange, change > REGRESSION_THRESHOLD ? "  REGRESSION" : "");
+		}
+	}
+
+	/*
+	 * Write the results as tab separated lines of name, mean, p50 and p99 ms and bytes allocated per operation
+	 */
+	private void save(String file, String[] args) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		try {
+			StringBuilder command = new StringBuilder("# java Benchmarks");
+			for(String arg: args) {
+				command.append(' ').append(arg);
+			}
+			out.write(command + "\n");
+			out.write("# " + new Date() + ", " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+					+ ", " + Runtime.getRuntime().availableProcessors() + " cores, warmup " + warmup
+					+ ", iterations " + iterations + "\n");
+			out.write("# name\tmean_ms\tp50_ms\tp99_ms\talloc_bytes_per_op\n");
+			for(Result result: results) {
+				out.write(String.format("%s\t%.4f\t%.4f\t%.4f\t%d%n", result.name, result.meanMillis(),
+						result.percentileMillis(0.5), result.percentileMillis(0.99), result.allocatedPerOp));
+			}
+		} finally {
+			out.close();
+		}
+		System.out.println("\nSaved results to " + file);
+	}
+
+	// the first two words of each query in quotes, queries of one word stay as they are
+	private static List<String> phraseQueries(List<String> queries) {
+		List<String> phrases = new ArrayList<String>();
+		for(String query: queries) {
+			String[] words = query.trim().split("\\s+");
+			phrases.add(words.length < 2 ? query : "\"" + words[0] + " " + words[1] + "\"");
+		}
+		return phrases;
+	}
+
+	// number of documents and their total size in bytes
+	private static long[] collectionSize(File file) {
+		long[] size = new long[2];
+		if(file.isDirectory()) {
+			String[] names = file.list();
+			if(names != null) {
+				for(String name: names) {
+					long[] sub = collectionSize(new File(file, name));
+					size[0] += sub[0];
+					size[1] += sub[1];
+				}
+			}
+		} else {
+			size[0] = 1;
+			size[1] = file.length();
+		}
+		return size;
+	}
+
+	// bytes allocated by this thread so far, -1 if the JVM does not tell
+	private static long allocatedBytes() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+			if(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+				return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for(GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static String formatBytes(long bytes) {
+		if(bytes < 1 << 10) return bytes + " B";
+		if(bytes < 1 << 20) return String.format("%.1f KB", bytes / 1024.0);
+		return String.format("%.1f MB", bytes / (1024.0 * 1024));
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child: children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
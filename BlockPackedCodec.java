@@ -0,0 +1,216 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Postings in blocks of 128, with a skip table entry per block. A full block
+ * holds the 128 document id deltas bit-packed at the width of the largest
+ * one, then the 128 frequencies minus one packed the same way, each preceded
+ * by one byte giving the width. Packed values fill 64 bit words from the low
+ * bits up, so a block of width b is exactly 2b words and is decoded in one
+ * branch-light loop into a reused int array. The last, partial block of a
+ * term is written as variable-byte pairs like {@link VByteCodec}.
+ *
+ * Cursors decode the document ids of a block when they enter it and its
+ * frequencies only when one is asked for, so skipping over a block costs
+ * nothing and scoring a few documents of it decodes only their block.
+ */
+class BlockPackedCodec extends PostingsCodec {
+	static final int BLOCK_SIZE = 128;
+
+	@Override
+	int id() {
+		return 1;
+	}
+
+	@Override
+	public String name() {
+		return "block128";
+	}
+
+	@Override
+	public int blockSize() {
+		return BLOCK_SIZE;
+	}
+
+	@Override
+	SegmentPostings postings(ByteBuffer buf, int offset, int size) {
+		return new BlockPackedPostings(buf, offset, size);
+	}
+
+	@Override
+	void encodeBlock(SegmentWriter.ByteArrayBuilder data, PostingsList postings, int start, int end, int prevDoc) {
+		if(end - start < BLOCK_SIZE) {
+			for(int i = start; i < end; i++) {
+				int doc = postings.doc(i);
+				data.writeVInt(doc - prevDoc);
+				data.writeVInt(postings.freq(i));
+				prevDoc = doc;
+			}
+			return;
+		}
+
+		int[] values = new int[BLOCK_SIZE];
+		int max = 0;
+		for(int i = 0; i < BLOCK_SIZE; i++) {
+			int doc = postings.doc(start + i);
+			values[i] = doc - prevDoc;
+			max |= values[i];
+			prevDoc = doc;
+		}
+		pack(data, values, bitsRequired(max));
+
+		max = 0;
+		for(int i = 0; i < BLOCK_SIZE; i++) {
+			values[i] = postings.freq(start + i) - 1;
+			max |= values[i];
+		}
+		pack(data, values, bitsRequired(max));
+	}
+
+	private static int bitsRequired(int max) {
+		return 32 - Integer.numberOfLeadingZeros(max);
+	}
+
+	private static void pack(SegmentWriter.ByteArrayBuilder data, int[] values, int bits) {
+		data.writeByte((byte) bits);
+		if(bits == 0) {
+			return;
+		}
+		long word = 0;
+		int shift = 0;
+		for(int i = 0; i < BLOCK_SIZE; i++) {
+			long value = values[i] & 0xFFFFFFFFL;
+			word |= value << shift;
+			shift += bits;
+			if(shift >= 64) {
+				data.writeLong(word);
+				shift -= 64;
+				// the high bits that did not fit start the next word
+				word = shift > 0 ? value >>> (bits - shift) : 0;
+			}
+		}
+	}
+
+	/*
+	 * Unpack BLOCK_SIZE values of the width stored at pos into out, returns the position after them
+	 */
+	static int unpack(ByteBuffer buf, int pos, int[] out) {
+		int bits = buf.get(pos++);
+		if(bits == 0) {
+			Arrays.fill(out, 0);
+			return pos;
+		}
+		long mask = (1L << bits) - 1;
+		int words = 2 * bits;
+		long word = buf.getLong(pos);
+		int w = 1;
+		int shift = 0;
+		for(int i = 0; i < BLOCK_SIZE; i++) {
+			long value = word >>> shift;
+			shift += bits;
+			if(shift >= 64) {
+				shift -= 64;
+				if(w < words) {
+					word = buf.getLong(pos + 8 * w++);
+					if(shift > 0) {
+						value |= word << (bits - shift);
+					}
+				}
+			}
+			out[i] = (int) (value & mask);
+		}
+		return pos + 8 * words;
+	}
+
+	/*
+	 * Decodes a block at a time into buffers owned by the cursor
+	 */
+	private static class BlockPackedPostings extends SegmentPostings {
+		private final int[] docs = new int[BLOCK_SIZE];
+		private final int[] freqs = new int[BLOCK_SIZE];
+		private int docsBlock = -1;
+		private int freqsBlock = -1;
+		// where the packed frequencies of docsBlock start
+		private int freqsPos;
+
+		BlockPackedPostings(ByteBuffer buf, int offset, int size) {
+			super(buf, offset, size, BLOCK_SIZE);
+		}
+
+		@Override
+		public int freq() {
+			int block = pos / BLOCK_SIZE;
+			if(block != freqsBlock) {
+				unpack(buf, freqsPos, freqs);
+				for(int i = 0; i < BLOCK_SIZE; i++) {
+					freqs[i]++;
+				}
+				freqsBlock = block;
+			}
+			return freqs[pos - block * BLOCK_SIZE];
+		}
+
+		@Override
+		public int nextDoc() {
+			if(++pos >= size) {
+				return exhausted();
+			}
+			int block = pos / BLOCK_SIZE;
+			if(block != docsBlock) {
+				decodeDocs(block);
+			}
+			return doc = docs[pos - block * BLOCK_SIZE];
+		}
+
+		@Override
+		public int advance(int target) {
+			if(doc >= target) {
+				return doc;
+			}
+			int block = shallowAdvance(target);
+			if(block < 0) {
+				return exhausted();
+			}
+			if(block > currentBlock()) {
+				pos = block * BLOCK_SIZE - 1;
+			}
+			while(nextDoc() < target) {
+			}
+			return doc;
+		}
+
+		private void decodeDocs(int block) {
+			int p = data + blockOffset(block);
+			int prevDoc = block > 0 ? blockLastDoc(block - 1) : 0;
+			int n = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+			if(n < BLOCK_SIZE) {
+				// the last block is variable-byte encoded, frequencies are decoded with the documents
+				for(int i = 0; i < n; i++) {
+					byte b = buf.get(p++);
+					int delta = b & 0x7F;
+					for(int shift = 7; b < 0; shift += 7) {
+						b = buf.get(p++);
+						delta |= (b & 0x7F) << shift;
+					}
+					b = buf.get(p++);
+					int freq = b & 0x7F;
+					for(int shift = 7; b < 0; shift += 7) {
+						b = buf.get(p++);
+						freq |= (b & 0x7F) << shift;
+					}
+					prevDoc += delta;
+					docs[i] = prevDoc;
+					freqs[i] = freq;
+				}
+				freqsBlock = block;
+			} else {
+				freqsPos = unpack(buf, p, docs);
+				for(int i = 0; i < BLOCK_SIZE; i++) {
+					prevDoc += docs[i];
+					docs[i] = prevDoc;
+				}
+			}
+			docsBlock = block;
+		}
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * Statistics of a collection split into shards, summed over the live
+ * documents of all shards. Each shard scores its documents with them, see
+ * {@link IndexSnapshot#withStatistics(CollectionStatistics)}.
+ */
+public interface CollectionStatistics {
+	/** Number of live documents */
+	int numDocs();
+
+	/** Summed length of the live documents */
+	long totalLength();
+
+	/** Number of live documents containing the term */
+	int docFreq(String term);
+
+	/** Number of occurrences of the term in live documents */
+	long totalTermFreq(String term);
+}
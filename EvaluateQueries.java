@@ -3,11 +3,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.analysis.core.StopAnalyzer;
 // import lucene.analysis.core.StopAnalyzer;
@@ -15,6 +24,21 @@ import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.util.Version;
 
 public class EvaluateQueries {
+	private static final List<String> WEIGHTINGS = Arrays.asList("atc.atc", "atn.atn", "ann.bpn", "BM25", "LM.dirichlet",
+			"LM.jm");
+	// weightings Lucene scores with a WeightingSimilarity
+	private static final List<String> LUCENE_WEIGHTINGS = Arrays.asList("atc.atc", "atn.atn", "ann.bpn", "BM25");
+	// relative score difference of Lucene's float scores from MiniSearchEngine's
+	private static final double PARITY_TOLERANCE = 1e-4;
+	// shards of the index -sharded compares with the single index
+	private static final int PARITY_SHARDS = 4;
+	// cutoff of precision and nDCG
+	private static final int PRECISION_AT = 10;
+	// BM25 settings tried by -grid
+	private static final double[] GRID_K1 = {0.2, 0.4, 0.6, 0.8, 1.0, 1.2, 1.4, 1.6, 1.8, 2.0, 2.4, 3.0};
+	private static final double[] GRID_B = {0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.75, 0.8, 0.9, 1.0};
+	private static final double[] GRID_K2 = {0, 1, 10, 100, 1000};
+
 	public static void main(String[] args) {
 		String cacmDocsDir = "data/cacm"; // directory containing CACM documents
 		String medDocsDir = "data/med"; // directory containing MED documents
@@ -43,8 +67,13 @@ public class EvaluateQueries {
 				medAnswerFile, medNumResults, stopwords));
 	    
 		System.out.println("\nBuilding/loading MiniSearchEngine index...");
-	    MiniSearchEngine cacm_se = new MiniSearchEngine(cacmDocsDir, cacmIndexDir, stopWordsDir);
-	    MiniSearchEngine med_se = new MiniSearchEngine(medDocsDir, medIndexDir, stopWordsDir);
+	    int indexThreads = Runtime.getRuntime().availableProcessors();
+	    ExecutorService executor = Executors.newFixedThreadPool(indexThreads);
+	    // positions are stored for the proximity boost, indexes built before keep their format
+	    Future<MiniSearchEngine> cacm_build = openEngine(cacmDocsDir, cacmIndexDir, stopWordsDir, indexThreads, executor);
+	    Future<MiniSearchEngine> med_build = openEngine(medDocsDir, medIndexDir, stopWordsDir, indexThreads, executor);
+	    MiniSearchEngine cacm_se = await(cacm_build);
+	    MiniSearchEngine med_se = await(med_build);
 
 	    Map<Integer, String> cacm_queries = loadQueries(cacmQueryFile);
 	    Map<Integer, HashSet<String>> cacm_answers = loadAnswers(cacmAnswerFile);
@@ -52,28 +81,87 @@ public class EvaluateQueries {
 	    Map<Integer, String> med_queries = loadQueries(medQueryFile);
 	    Map<Integer, HashSet<String>> med_answers = loadAnswers(medAnswerFile);
 
-		System.out.println("\nEvaluating queries w/ atc.atc similarity measure...");
-	    cacm_se.evaluate(cacm_queries, cacm_answers, 100, "atc.atc");
-	    med_se.evaluate(med_queries, med_answers, 100, "atc.atc");
+	    // all weightings in one pass over the postings, both collections at once
+		System.out.println("\nEvaluating queries w/ atc.atc, atn.atn, ann.bpn, BM25 and language model similarity measures...");
+	    long start = System.currentTimeMillis();
+	    List<Future<?>> pending = new ArrayList<Future<?>>();
+	    List<Evaluation> cacm_evaluations = evaluateWeightings(cacm_se, cacm_queries, cacm_answers, WEIGHTINGS,
+	    		100, PRECISION_AT, executor, pending);
+	    List<Evaluation> med_evaluations = evaluateWeightings(med_se, med_queries, med_answers, WEIGHTINGS,
+	    		100, PRECISION_AT, executor, pending);
+	    awaitAll(pending);
+	    for (int w = 0; w < WEIGHTINGS.size(); w++) {
+	    	System.out.println(String.format("%-12s cacm  %s", WEIGHTINGS.get(w), cacm_evaluations.get(w)));
+	    	System.out.println(String.format("%-12s med   %s", WEIGHTINGS.get(w), med_evaluations.get(w)));
+	    }
+	    System.out.println((System.currentTimeMillis() - start) + " total milliseconds");
+	    
+	    if (cacm_se.hasPositions() && med_se.hasPositions()) {
+	    	System.out.println("\nEvaluating queries w/ BM25 similarity measure and term proximity boost...");
+	    	cacm_se.setProximityBoost(5);
+	    	med_se.setProximityBoost(5);
+	    	List<String> bm25 = Collections.singletonList("BM25");
+	    	Evaluation cacm_proximity = evaluateWeightings(cacm_se, cacm_queries, cacm_answers, bm25,
+	    			100, PRECISION_AT, executor, pending).get(0);
+	    	Evaluation med_proximity = evaluateWeightings(med_se, med_queries, med_answers, bm25,
+	    			100, PRECISION_AT, executor, pending).get(0);
+	    	awaitAll(pending);
+	    	System.out.println("cacm  " + cacm_proximity);
+	    	System.out.println("med   " + med_proximity);
+	    	cacm_se.setProximityBoost(0);
+	    	med_se.setProximityBoost(0);
+	    }
 	    
-		System.out.println("\nEvaluating queries w/ atn.atn similarity measure...");
-	    cacm_se.evaluate(cacm_queries, cacm_answers, 100, "atn.atn");
-	    med_se.evaluate(med_queries, med_answers, 100, "atn.atn");
+	    // run with -parity to score with MiniSearchEngine's weightings in Lucene, any difference fails the run
+	    if (Arrays.asList(args).contains("-parity")) {
+	    	System.out.println("\nEvaluating queries w/ Lucene and MiniSearchEngine's weightings...");
+	    	boolean cacm_same = evaluateParity("cacm", cacm_se, cacmIndexDir + "_weighting", cacmDocsDir,
+	    			cacm_queries, cacm_answers, cacmNumResults, PRECISION_AT);
+	    	boolean med_same = evaluateParity("med", med_se, medIndexDir + "_weighting", medDocsDir, med_queries,
+	    			med_answers, medNumResults, PRECISION_AT);
+	    	if (!cacm_same || !med_same) {
+	    		System.out.println("Lucene rankings differ from MiniSearchEngine");
+	    		System.exit(1);
+	    	}
+	    }
 	    
-		System.out.println("\nEvaluating queries w/ ann.bpn similarity measure...");
-	    cacm_se.evaluate(cacm_queries, cacm_answers, 100, "ann.bpn");
-	    med_se.evaluate(med_queries, med_answers, 100, "ann.bpn");
+	    // run with -sharded to check a sharded index ranks like the single one, any difference fails the run
+	    if (Arrays.asList(args).contains("-sharded")) {
+	    	System.out.println("\nComparing rankings of " + PARITY_SHARDS + " shards with the single index...");
+	    	boolean cacm_same = evaluateSharded("cacm", cacm_se, cacmIndexDir + "_sharded", cacmDocsDir,
+	    			stopWordsDir, cacm_queries, PARITY_SHARDS, cacmNumResults, indexThreads);
+	    	boolean med_same = evaluateSharded("med", med_se, medIndexDir + "_sharded", medDocsDir, stopWordsDir,
+	    			med_queries, PARITY_SHARDS, medNumResults, indexThreads);
+	    	if (!cacm_same || !med_same) {
+	    		System.out.println("Sharded rankings differ from the single index");
+	    		System.exit(1);
+	    	}
+	    }
 	    
-//		System.out.println("\nEvaluating queries w/ custom similarity measure...");
-//	    cacm_se.evaluate(cacm_queries, cacm_answers, 100, "custom");
-//	    med_se.evaluate(med_queries, med_answers, 100, "custom");
+	    // run with -grid to tune the BM25 parameters
+	    if (Arrays.asList(args).contains("-grid")) {
+	    	double[][] grid = bm25Grid(GRID_K1, GRID_B, GRID_K2);
+	    	System.out.println("\nBM25 grid search over " + grid.length + " settings of k1, b and k2...");
+	    	start = System.currentTimeMillis();
+	    	List<Evaluation> cacm_grid = evaluateBM25Grid(cacm_se, cacm_queries, cacm_answers, grid,
+	    			100, PRECISION_AT, executor, pending);
+	    	List<Evaluation> med_grid = evaluateBM25Grid(med_se, med_queries, med_answers, grid,
+	    			100, PRECISION_AT, executor, pending);
+	    	awaitAll(pending);
+	    	printBestSettings("cacm", grid, cacm_grid, 5);
+	    	printBestSettings("med", grid, med_grid, 5);
+	    	System.out.println((System.currentTimeMillis() - start) + " total milliseconds");
+	    }
+	    executor.shutdown();
 	    
-		System.out.println("\nEvaluating queries w/ BM25 similarity measure...");
-	    cacm_se.evaluate(cacm_queries, cacm_answers, 100, "BM25");
-	    med_se.evaluate(med_queries, med_answers, 100, "BM25");
+	    // run with -Dmetrics.enabled=true to see where the time went
+	    if (Metrics.isEnabled()) {
+	    	System.out.println("\nMetrics:");
+	    	System.out.print(Metrics.toText());
+	    }
 	}
 
-	private static Map<Integer, String> loadQueries(String filename) {
+	static Map<Integer, String> loadQueries(String filename) {
 		HashMap<Integer, String> queryIdMap = new HashMap<Integer, String>();
 		BufferedReader in = null;
 		try {
@@ -144,7 +232,7 @@ public class EvaluateQueries {
 	/*
 	 * Perform Mean Average Precision evaluation
 	 */
-	public static double MAP(HashSet<String> answers,
+	public static double MAP(Set<String> answers,
 			List<String> results) {
 		double matches = 0;
 		double precision_sum = 0;
@@ -159,23 +247,332 @@ public class EvaluateQueries {
 		return precision_sum / answers.size();
 	}
 
+	/*
+	 * Build or load a MiniSearchEngine index on the executor
+	 */
+	private static Future<MiniSearchEngine> openEngine(final String docsDir, final String indexDir,
+			final String stopWordsDir, final int indexThreads, ExecutorService executor) {
+		return executor.submit(new Callable<MiniSearchEngine>() {
+			public MiniSearchEngine call() {
+				return new MiniSearchEngine(docsDir, indexDir, stopWordsDir, indexThreads, 0,
+						PostingsCodec.DEFAULT, true);
+			}
+		});
+	}
+
+	/**
+	 * Evaluates the rankings of the queries under several weightings, which are
+	 * scored in one pass over the postings of each query, see
+	 * {@link MiniSearchEngine#searchAll(String, List, int)}. The queries run in
+	 * parallel on the executor, and the returned evaluation of each weighting
+	 * is complete once the tasks added to pending are done.
+	 *
+	 * @param k cutoff of precision and nDCG
+	 */
+	public static List<Evaluation> evaluateWeightings(final MiniSearchEngine se, Map<Integer, String> queries,
+			Map<Integer, HashSet<String>> queryAnswers, final List<String> weightings, final int numResults, int k,
+			ExecutorService executor, List<Future<?>> pending) {
+		final List<Evaluation> evaluations = new ArrayList<Evaluation>();
+		for (int w = 0; w < weightings.size(); w++) {
+			evaluations.add(new Evaluation(k));
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (Integer i : queries.keySet()) {
+			final String query = queries.get(i);
+			final HashSet<String> answers = queryAnswers.get(i);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					List<List<String>> rankings = se.searchAll(query, weightings, numResults);
+					for (int w = 0; w < rankings.size(); w++) {
+						evaluations.get(w).add(answers, rankings.get(w));
+					}
+					return null;
+				}
+			});
+		}
+		for (Callable<Void> task : tasks) {
+			pending.add(executor.submit(task));
+		}
+		return evaluations;
+	}
+
+	/**
+	 * Evaluates BM25 under every setting of a parameter grid, decoding the
+	 * postings of each query once for all settings, see
+	 * {@link MiniSearchEngine#searchBM25Grid(String, double[][], int)}. The
+	 * evaluation of each setting is complete once the tasks added to pending
+	 * are done.
+	 *
+	 * @param parameters one {k1, b, k2} triple per setting
+	 */
+	public static List<Evaluation> evaluateBM25Grid(final MiniSearchEngine se, Map<Integer, String> queries,
+			Map<Integer, HashSet<String>> queryAnswers, final double[][] parameters, final int numResults, int k,
+			ExecutorService executor, List<Future<?>> pending) {
+		final List<Evaluation> evaluations = new ArrayList<Evaluation>();
+		for (int i = 0; i < parameters.length; i++) {
+			evaluations.add(new Evaluation(k));
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (Integer i : queries.keySet()) {
+			final String query = queries.get(i);
+			final HashSet<String> answers = queryAnswers.get(i);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					List<List<String>> rankings = se.searchBM25Grid(query, parameters, numResults);
+					for (int p = 0; p < rankings.size(); p++) {
+						evaluations.get(p).add(answers, rankings.get(p));
+					}
+					return null;
+				}
+			});
+		}
+		for (Callable<Void> task : tasks) {
+			pending.add(executor.submit(task));
+		}
+		return evaluations;
+	}
+
+	/** Every combination of the given values as {k1, b, k2} triples */
+	public static double[][] bm25Grid(double[] k1s, double[] bs, double[] k2s) {
+		double[][] grid = new double[k1s.length * bs.length * k2s.length][];
+		int i = 0;
+		for (double k1 : k1s) {
+			for (double b : bs) {
+				for (double k2 : k2s) {
+					grid[i++] = new double[] {k1, b, k2};
+				}
+			}
+		}
+		return grid;
+	}
+
+	private static void printBestSettings(String collection, double[][] grid, List<Evaluation> evaluations, int n) {
+		final double[] map = new double[grid.length];
+		Integer[] order = new Integer[grid.length];
+		for (int i = 0; i < grid.length; i++) {
+			map[i] = evaluations.get(i).map();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(map[b], map[a]);
+			}
+		});
+		for (int i = 0; i < Math.min(n, order.length); i++) {
+			double[] setting = grid[order[i]];
+			System.out.println(String.format("%-5s k1=%.2f b=%.2f k2=%.0f  %s", collection, setting[0], setting[1],
+					setting[2], evaluations.get(order[i])));
+		}
+	}
+
+	/**
+	 * Builds a Lucene index of the documents with the analysis chain of the
+	 * engine, then evaluates Lucene with the {@link WeightingSimilarity} of
+	 * each of LUCENE_WEIGHTINGS and checks that it ranks every query like the
+	 * engine, see {@link #sameRanking}. The first differing query of each
+	 * weighting is printed with both rankings.
+	 *
+	 * @return whether all rankings matched
+	 */
+	public static boolean evaluateParity(String collection, MiniSearchEngine se, String indexDir, String docsDir,
+			Map<Integer, String> queries, Map<Integer, HashSet<String>> queryAnswers, int numResults, int k) {
+		// all weighting similarities write the same norms
+		IndexFiles.buildIndex(indexDir, docsDir, null, new IndexFiles.Options()
+				.analyzer(se.getAnalyzer())
+				.similarity(WeightingSimilarity.forName("BM25"))
+				.threads(Runtime.getRuntime().availableProcessors()));
+
+		IndexSnapshot snapshot = se.snapshot();
+		boolean allSame = true;
+		for (String weighting : LUCENE_WEIGHTINGS) {
+			SearchFiles searchFiles = null;
+			try {
+				searchFiles = new SearchFiles(indexDir, se.getAnalyzer(), WeightingSimilarity.forWeighting(
+						se.getWeighting(weighting)));
+			} catch (IOException e) {
+				System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+				System.exit(1);
+			}
+
+			Evaluation evaluation = new Evaluation(k);
+			int same = 0;
+			boolean reported = false;
+			for (Integer i : queries.keySet()) {
+				List<Float> scores = new ArrayList<Float>();
+				List<String> results = searchFiles.search(queries.get(i), numResults, scores);
+				evaluation.add(queryAnswers.get(i), results);
+				TopKCollector expected = se.searchSnapshot(snapshot, queries.get(i), weighting, numResults);
+				double[] expectedScores = new double[expected.size()];
+				int[] expectedDocs = expected.topDocs(expectedScores);
+				if (sameRanking(results, scores, snapshot, expectedDocs, expectedScores)) {
+					same++;
+				} else if (!reported) {
+					System.out.println(String.format("%-12s %-5s query %d differs: %s\n  engine: %s\n  lucene: %s",
+							weighting, collection, i, queries.get(i), ranking(snapshot, expectedDocs, expectedScores),
+							ranking(results, scores)));
+					reported = true;
+				}
+			}
+			System.out.println(String.format("%-12s %-5s %s, %d/%d rankings match MiniSearchEngine", weighting,
+					collection, evaluation, same, queries.size()));
+			allSame &= same == queries.size();
+
+			try {
+				searchFiles.close();
+			} catch (IOException e) {
+				System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			}
+		}
+		return allSame;
+	}
+
+	// document names with their scores, best first
+	private static String ranking(IndexSnapshot snapshot, int[] docs, double[] scores) {
+		List<String> names = new ArrayList<String>();
+		List<Float> floats = new ArrayList<Float>();
+		for (int i = 0; i < docs.length; i++) {
+			names.add(snapshot.docName(docs[i]));
+			floats.add((float) scores[i]);
+		}
+		return ranking(names, floats);
+	}
+
+	private static String ranking(List<String> names, List<Float> scores) {
+		StringBuilder ranking = new StringBuilder("[");
+		for (int i = 0; i < names.size(); i++) {
+			ranking.append(i > 0 ? ", " : "").append(names.get(i)).append('=').append(scores.get(i));
+		}
+		return ranking.append(']').toString();
+	}
+
+	/**
+	 * Builds or opens a {@link ShardedSearchEngine} over the documents and
+	 * checks that it ranks every query exactly like the single engine under
+	 * each of WEIGHTINGS. The shards score with the statistics of the whole
+	 * collection, so all rankings must match. The first differing query of
+	 * each weighting is printed with both rankings.
+	 *
+	 * @return whether all rankings matched
+	 */
+	public static boolean evaluateSharded(String collection, MiniSearchEngine se, String indexDir, String docsDir,
+			String stopWordsDir, Map<Integer, String> queries, int numShards, int numResults, int indexThreads) {
+		ShardedSearchEngine sharded = new ShardedSearchEngine(docsDir, indexDir, stopWordsDir, numShards,
+				indexThreads, 0, PostingsCodec.DEFAULT, se.hasPositions());
+		boolean allSame = true;
+		for (String weighting : WEIGHTINGS) {
+			int same = 0;
+			boolean reported = false;
+			for (Integer i : queries.keySet()) {
+				List<String> expected = se.search(queries.get(i), weighting, numResults);
+				List<String> results = sharded.search(queries.get(i), weighting, numResults);
+				if (results.equals(expected)) {
+					same++;
+				} else if (!reported) {
+					System.out.println(String.format("%-12s %-5s query %d differs: %s\n  single:  %s\n  sharded: %s",
+							weighting, collection, i, queries.get(i), expected, results));
+					reported = true;
+				}
+			}
+			System.out.println(String.format("%-12s %-5s %d/%d rankings match the single index", weighting,
+					collection, same, queries.size()));
+			allSame &= same == queries.size();
+		}
+
+		try {
+			sharded.close();
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
+		return allSame;
+	}
+
+	/**
+	 * Whether a Lucene ranking is the ranking of the engine up to the order of
+	 * tied documents: the scores at each rank agree within PARITY_TOLERANCE,
+	 * and each document Lucene returns has the score of its rank in the engine
+	 * too, or is tied with the last result the engine returned.
+	 */
+	static boolean sameRanking(List<String> results, List<Float> scores, IndexSnapshot snapshot,
+			int[] expectedDocs, double[] expectedScores) {
+		if (results.size() != expectedDocs.length) {
+			return false;
+		}
+		Map<String, Double> byName = new HashMap<String, Double>();
+		for (int i = 0; i < expectedDocs.length; i++) {
+			byName.put(snapshot.docName(expectedDocs[i]), expectedScores[i]);
+		}
+		for (int i = 0; i < results.size(); i++) {
+			double score = scores.get(i);
+			if (!closeScores(score, expectedScores[i])) {
+				return false;
+			}
+			Double engineScore = byName.get(results.get(i));
+			if (engineScore == null ? !closeScores(score, expectedScores[expectedScores.length - 1])
+					: !closeScores(score, engineScore)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean closeScores(double score, double expected) {
+		return Math.abs(score - expected) <= PARITY_TOLERANCE * Math.max(1, Math.abs(expected));
+	}
+
+	/*
+	 * Wait for the tasks and forget them, any failure is fatal
+	 */
+	private static void awaitAll(List<Future<?>> pending) {
+		for (Future<?> task : pending) {
+			await(task);
+		}
+		pending.clear();
+	}
+
+	/*
+	 * Wait for a result, any failure is fatal
+	 */
+	private static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Evaluation was interrupted");
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.out.println(" caught a " + e.getCause().getClass() + "\n with message: " + e.getCause().getMessage());
+			System.exit(1);
+		}
+		return null;
+	}
+
 	private static double evaluate(String indexDir, String docsDir,
 			String queryFile, String answerFile, int numResults,
 			CharArraySet stopwords) {
 
-		// Build Index
-		IndexFiles.buildIndex(indexDir, docsDir, stopwords);
+		// Build Index, re-runs only reindex files that changed
+		IndexFiles.buildIndex(indexDir, docsDir, stopwords, new IndexFiles.Options()
+				.skipUnchanged(true)
+				.threads(Runtime.getRuntime().availableProcessors()));
 
 		// load queries and answer
 		Map<Integer, String> queries = loadQueries(queryFile);
 		Map<Integer, HashSet<String>> queryAnswers = loadAnswers(answerFile);
 
+		// Open the index once for all queries
+		SearchFiles searchFiles = null;
+		try {
+			searchFiles = new SearchFiles(indexDir, stopwords);
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			System.exit(1);
+		}
+
 		// Search and evaluate
 		double sum = 0;
 		int num_evaluated = 0;
 		for (Integer i : queries.keySet()) {
-			List<String> results = SearchFiles.searchQuery(indexDir, queries
-					.get(i), numResults, stopwords);
+			List<String> results = searchFiles.search(queries.get(i), numResults);
 			
 //				sum += precision(queryAnswers.get(i), results);
 			sum += MAP(queryAnswers.get(i), results);
@@ -187,6 +584,11 @@ public class EvaluateQueries {
 //			System.out.println();
 		}
 
+		try {
+			searchFiles.close();
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
 		return sum / num_evaluated;
 	}
 }
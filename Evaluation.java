@@ -0,0 +1,91 @@
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Running means of retrieval effectiveness over a set of queries: MAP as
+ * computed by {@link EvaluateQueries#MAP}, precision at k and nDCG at k with
+ * binary relevance. Rankings are added one query at a time, from any thread,
+ * and need not be kept. Queries without relevant documents are not counted.
+ */
+public class Evaluation {
+	private final int k;
+	private int num_queries = 0;
+	private double map_sum = 0;
+	private double precision_sum = 0;
+	private double ndcg_sum = 0;
+
+	/** @param k cutoff of precision and nDCG */
+	public Evaluation(int k) {
+		this.k = k;
+	}
+
+	/** Adds the ranking of one query and the documents relevant to it */
+	public void add(Set<String> relevant, List<String> ranking) {
+		if(relevant == null || relevant.isEmpty()) return;
+		double map = EvaluateQueries.MAP(relevant, ranking);
+		double precision = precisionAt(relevant, ranking, k);
+		double ndcg = ndcgAt(relevant, ranking, k);
+		synchronized(this) {
+			num_queries++;
+			map_sum += map;
+			precision_sum += precision;
+			ndcg_sum += ndcg;
+		}
+	}
+
+	public int k() {
+		return k;
+	}
+
+	public synchronized int numQueries() {
+		return num_queries;
+	}
+
+	public synchronized double map() {
+		return num_queries > 0 ? map_sum / num_queries : 0;
+	}
+
+	public synchronized double precision() {
+		return num_queries > 0 ? precision_sum / num_queries : 0;
+	}
+
+	public synchronized double ndcg() {
+		return num_queries > 0 ? ndcg_sum / num_queries : 0;
+	}
+
+	/** Fraction of the first k results that are relevant, missing results count as not relevant */
+	public static double precisionAt(Set<String> relevant, List<String> ranking, int k) {
+		double matches = 0;
+		for(int i = 0; i < Math.min(k, ranking.size()); i++) {
+			if(relevant.contains(ranking.get(i))) {
+				matches++;
+			}
+		}
+		return matches / k;
+	}
+
+	/** Discounted cumulative gain of the first k results over that of an ideal ranking */
+	public static double ndcgAt(Set<String> relevant, List<String> ranking, int k) {
+		double dcg = 0;
+		for(int i = 0; i < Math.min(k, ranking.size()); i++) {
+			if(relevant.contains(ranking.get(i))) {
+				dcg += 1 / log2(i + 2);
+			}
+		}
+		double ideal = 0;
+		for(int i = 0; i < Math.min(k, relevant.size()); i++) {
+			ideal += 1 / log2(i + 2);
+		}
+		return ideal > 0 ? dcg / ideal : 0;
+	}
+
+	private static double log2(double x) {
+		return Math.log(x) / Math.log(2);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("MAP %.4f  P@%d %.4f  nDCG@%d %.4f  (%d queries)", map(), k, precision(), k, ndcg(),
+				num_queries);
+	}
+}
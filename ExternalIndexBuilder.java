@@ -0,0 +1,278 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Builds an index that does not fit in the heap, SPIMI style. Documents are
+ * collected into an in-memory {@link IndexBuilder} block until its estimated
+ * size exceeds the memory budget. The block is then flushed to disk as a run
+ * sorted by term, and the runs are k-way merged into the segment at the end.
+ * All run and segment I/O is sequential.
+ *
+ * Memory is bounded by the budget, the postings of the largest single term
+ * during the merge, and 8 bytes per document for the lengths and max_tf the
+ * segment's skip tables and norms need.
+ */
+public class ExternalIndexBuilder {
+	private final File outputFile;
+	private final long memoryBudget;
+	private final PostingsCodec codec;
+	private final boolean withPositions;
+
+	private IndexBuilder block;
+	private final ArrayList<File> runs = new ArrayList<>();
+
+	private int numDocs = 0;
+	private int[] docLengths = new int[16];
+	private int[] docMaxTf = new int[16];
+	private File namesFile;
+	private DataOutputStream names;
+
+	/**
+	 * @param outputFile the segment file that will be written, temporary files are created next to it
+	 * @param memoryBudget bytes of postings held in memory before a run is flushed
+	 */
+	public ExternalIndexBuilder(File outputFile, long memoryBudget) {
+		this(outputFile, memoryBudget, PostingsCodec.DEFAULT);
+	}
+
+	public ExternalIndexBuilder(File outputFile, long memoryBudget, PostingsCodec codec) {
+		this(outputFile, memoryBudget, codec, false);
+	}
+
+	/** @param withPositions the appended partial indexes have positions, which are written too */
+	public ExternalIndexBuilder(File outputFile, long memoryBudget, PostingsCodec codec, boolean withPositions) {
+		this.outputFile = outputFile;
+		this.memoryBudget = memoryBudget;
+		this.codec = codec;
+		this.withPositions = withPositions;
+		this.block = new IndexBuilder(withPositions);
+	}
+
+	/** Appends the documents of a partial index, flushing a run when over budget */
+	public void append(IndexBuilder partial) throws IOException {
+		block.append(partial);
+		if(block.estimatedBytes() > memoryBudget) {
+			flushRun();
+		}
+	}
+
+	/** Merges the runs into the segment file and removes all temporary files */
+	public void write() throws IOException {
+		flushRun();
+		if(names != null) {
+			names.close();
+		}
+
+		SegmentWriter writer = new SegmentWriter(outputFile, numDocs,
+				Arrays.copyOf(docLengths, numDocs), Arrays.copyOf(docMaxTf, numDocs), codec, withPositions);
+		try {
+			if(namesFile != null) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(namesFile), 1 << 16));
+				try {
+					for(int doc = 0; doc < numDocs; doc++) {
+						byte[] name = new byte[in.readInt()];
+						in.readFully(name);
+						writer.addDocName(new String(name, StandardCharsets.UTF_8));
+					}
+				} finally {
+					in.close();
+				}
+			}
+			mergeRuns(writer);
+			writer.finish();
+		} finally {
+			writer.deleteSpills();
+			for(File run: runs) {
+				run.delete();
+			}
+			if(namesFile != null) {
+				namesFile.delete();
+			}
+		}
+	}
+
+	/*
+	 * Write the current block as a run: its terms in sorted order, each followed by
+	 * its postings with global document ids, and the position deltas of each posting
+	 * after its frequency
+	 */
+	private void flushRun() throws IOException {
+		if(block.numDocs() == 0) return;
+
+		if(names == null) {
+			namesFile = new File(outputFile.getPath() + ".run-names.tmp");
+			names = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile), 1 << 16));
+		}
+		int base = numDocs;
+		for(int doc = 0; doc < block.numDocs(); doc++) {
+			if(numDocs == docLengths.length) {
+				docLengths = Arrays.copyOf(docLengths, numDocs * 2);
+				docMaxTf = Arrays.copyOf(docMaxTf, numDocs * 2);
+			}
+			docLengths[numDocs] = block.docLength(doc);
+			docMaxTf[numDocs] = block.docMaxTf(doc);
+			numDocs++;
+
+			byte[] name = block.docName(doc).getBytes(StandardCharsets.UTF_8);
+			names.writeInt(name.length);
+			names.write(name);
+		}
+
+		File run = new File(outputFile.getPath() + ".run" + runs.size() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			out.writeInt(block.numTerms());
+			for(int termId: block.sortedTermIds()) {
+				byte[] term = block.term(termId).getBytes(StandardCharsets.UTF_8);
+				writeVInt(out, term.length);
+				out.write(term);
+
+				PostingsList postings = block.postings(termId);
+				writeVInt(out, postings.size());
+				int prevDoc = 0;
+				int offset = 0;
+				for(int i = 0; i < postings.size(); i++) {
+					int doc = base + postings.doc(i);
+					writeVInt(out, doc - prevDoc);
+					writeVInt(out, postings.freq(i));
+					prevDoc = doc;
+					if(withPositions) {
+						int prevPosition = 0;
+						for(int k = offset; k < offset + postings.freq(i); k++) {
+							writeVInt(out, postings.positions()[k] - prevPosition);
+							prevPosition = postings.positions()[k];
+						}
+						offset += postings.freq(i);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(run);
+		block = new IndexBuilder(withPositions);
+	}
+
+	/*
+	 * k-way merge of the runs. Runs hold increasing document ranges, so concatenating
+	 * a term's postings in run order keeps them sorted.
+	 */
+	private void mergeRuns(SegmentWriter writer) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(runs.size(), 1), new Comparator<RunReader>() {
+			public int compare(RunReader a, RunReader b) {
+				int cmp = IndexSegment.compareBytes(a.term, b.term);
+				return cmp != 0 ? cmp : a.runIndex - b.runIndex;
+			}
+		});
+		ArrayList<RunReader> readers = new ArrayList<>();
+		try {
+			for(int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(runs.get(i), i, withPositions);
+				readers.add(reader);
+				if(reader.nextTerm()) {
+					queue.add(reader);
+				}
+			}
+
+			while(!queue.isEmpty()) {
+				byte[] term = queue.peek().term;
+				PostingsList merged = new PostingsList(withPositions);
+				while(!queue.isEmpty() && IndexSegment.compareBytes(queue.peek().term, term) == 0) {
+					RunReader reader = queue.poll();
+					reader.readPostings(merged);
+					if(reader.nextTerm()) {
+						queue.add(reader);
+					}
+				}
+				writer.addTerm(term, merged);
+			}
+		} finally {
+			for(RunReader reader: readers) {
+				reader.in.close();
+			}
+		}
+	}
+
+	static void writeVInt(DataOutput out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVInt(DataInput in) throws IOException {
+		byte b = in.readByte();
+		int value = b & 0x7F;
+		for(int shift = 7; b < 0; shift += 7) {
+			b = in.readByte();
+			value |= (b & 0x7F) << shift;
+		}
+		return value;
+	}
+
+	/*
+	 * Sequential reader over one run
+	 */
+	private static class RunReader {
+		final DataInputStream in;
+		final int runIndex;
+		final boolean withPositions;
+		int remainingTerms;
+		byte[] term;
+		int df;
+		int[] positions = new int[16];
+
+		RunReader(File run, int runIndex, boolean withPositions) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			this.runIndex = runIndex;
+			this.withPositions = withPositions;
+			this.remainingTerms = in.readInt();
+		}
+
+		/** Reads the next term and its document frequency, false at the end of the run */
+		boolean nextTerm() throws IOException {
+			if(remainingTerms == 0) return false;
+			remainingTerms--;
+			term = new byte[readVInt(in)];
+			in.readFully(term);
+			df = readVInt(in);
+			return true;
+		}
+
+		/** Appends the postings of the current term */
+		void readPostings(PostingsList target) throws IOException {
+			int doc = 0;
+			for(int i = 0; i < df; i++) {
+				doc += readVInt(in);
+				int freq = readVInt(in);
+				if(!withPositions) {
+					target.add(doc, freq);
+					continue;
+				}
+				if(freq > positions.length) {
+					positions = new int[Math.max(freq, positions.length * 2)];
+				}
+				int position = 0;
+				for(int k = 0; k < freq; k++) {
+					position += readVInt(in);
+					positions[k] = position;
+				}
+				target.add(doc, freq, positions, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Front coded term dictionary of a segment. The sorted terms are split into
+ * blocks of BLOCK_SIZE: the first term of a block is stored whole, every
+ * other term as the length of the prefix it shares with the term before it
+ * and the rest of its bytes. Sorted terms share long prefixes, so this holds
+ * the vocabulary in about half the bytes of the terms themselves, and one
+ * offset per block instead of one per term.
+ *
+ * A lookup binary searches the first terms of the blocks in place and decodes
+ * at most one block. Ordinals are positions in sorted order, so document
+ * frequencies and postings offsets stay in arrays indexed by ordinal.
+ *
+ * Layout:
+ * <pre>
+ * int offset[numBlocks+1] of each block, relative to the first
+ * blocks       first term: vint length, bytes
+ *              other terms: vint shared prefix length, vint suffix length, suffix bytes
+ * </pre>
+ */
+public class FrontCodedDictionary {
+	/** Terms per block, the most a lookup decodes */
+	public static final int BLOCK_SIZE = 16;
+
+	private final ByteBuffer buf;
+	private final int numTerms;
+	private final int numBlocks;
+	private final int blockOffsets;
+	private final int blocks;
+
+	/** Reads the dictionary of numTerms terms starting at offset of the buffer */
+	public FrontCodedDictionary(ByteBuffer buf, int offset, int numTerms) {
+		this.buf = buf;
+		this.numTerms = numTerms;
+		this.numBlocks = numBlocks(numTerms);
+		this.blockOffsets = offset;
+		this.blocks = offset + 4 * (numBlocks + 1);
+	}
+
+	static int numBlocks(int numTerms) {
+		return (numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	public int numTerms() {
+		return numTerms;
+	}
+
+	/** Size of the dictionary in bytes, block offsets included */
+	public int sizeInBytes() {
+		return blocks - blockOffsets + buf.getInt(blockOffsets + 4 * numBlocks);
+	}
+
+	/** Offset in the buffer of the first byte after the dictionary */
+	int end() {
+		return blockOffsets + sizeInBytes();
+	}
+
+	/**
+	 * Returns the ordinal of the term, or if it is not in the dictionary
+	 * (-(insertion point) - 1) like {@link Arrays#binarySearch(int[], int)},
+	 * where the insertion point is the ordinal of the first greater term
+	 */
+	public int seek(byte[] key) {
+		// the last block whose first term is not greater than the key
+		int low = 0;
+		int high = numBlocks - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareFirstTerm(mid, key);
+			if(cmp < 0) {
+				low = mid + 1;
+			} else if(cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid * BLOCK_SIZE;
+			}
+		}
+		if(high < 0) {
+			return -1;
+		}
+
+		int end = Math.min((high + 1) * BLOCK_SIZE, numTerms);
+		Cursor cursor = cursor(high * BLOCK_SIZE);
+		while(cursor.next() && cursor.ord() < end) {
+			int cmp = cursor.compareTo(key);
+			if(cmp == 0) {
+				return cursor.ord();
+			} else if(cmp > 0) {
+				return -cursor.ord() - 1;
+			}
+		}
+		return -end - 1;
+	}
+
+	/** UTF-8 bytes of the term with the ordinal */
+	public byte[] term(int ord) {
+		Cursor cursor = cursor(ord);
+		cursor.next();
+		return cursor.term();
+	}
+
+	/** A cursor whose next term is the one with the ordinal */
+	public Cursor cursor(int ord) {
+		return new Cursor(ord);
+	}
+
+	private int compareFirstTerm(int block, byte[] key) {
+		int position = blocks + buf.getInt(blockOffsets + 4 * block);
+		int length = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get(position++);
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		int n = Math.min(length, key.length);
+		for(int i = 0; i < n; i++) {
+			int cmp = (buf.get(position + i) & 0xFF) - (key[i] & 0xFF);
+			if(cmp != 0) return cmp;
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * Decodes the terms in order from a block start. Reads use absolute
+	 * positions, so cursors of one dictionary can be used by concurrent queries.
+	 */
+	public class Cursor {
+		private int ord;
+		private int position;
+		private byte[] bytes = new byte[32];
+		private int length = 0;
+
+		private Cursor(int target) {
+			int block = target / BLOCK_SIZE;
+			ord = block * BLOCK_SIZE - 1;
+			position = blocks + buf.getInt(blockOffsets + 4 * Math.min(block, numBlocks));
+			while(ord < target - 1 && next()) {
+				// skip to the term before the target
+			}
+		}
+
+		/** Moves to the next term, false once past the last one */
+		public boolean next() {
+			if(ord + 1 >= numTerms) {
+				ord = numTerms;
+				return false;
+			}
+			ord++;
+			int prefix = ord % BLOCK_SIZE == 0 ? 0 : readVInt();
+			int suffix = readVInt();
+			length = prefix + suffix;
+			if(length > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(length, 2 * bytes.length));
+			}
+			for(int i = prefix; i < length; i++) {
+				bytes[i] = buf.get(position++);
+			}
+			return true;
+		}
+
+		/** Ordinal of the current term */
+		public int ord() {
+			return ord;
+		}
+
+		/** UTF-8 bytes of the current term */
+		public byte[] term() {
+			return Arrays.copyOf(bytes, length);
+		}
+
+		/** Whether the current term starts with the bytes of prefix */
+		public boolean startsWith(byte[] prefix) {
+			if(prefix.length > length) return false;
+			for(int i = 0; i < prefix.length; i++) {
+				if(bytes[i] != prefix[i]) return false;
+			}
+			return true;
+		}
+
+		/** Compares the current term with key in unsigned byte order */
+		public int compareTo(byte[] key) {
+			int n = Math.min(length, key.length);
+			for(int i = 0; i < n; i++) {
+				int cmp = (bytes[i] & 0xFF) - (key[i] & 0xFF);
+				if(cmp != 0) return cmp;
+			}
+			return length - key.length;
+		}
+
+		private int readVInt() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf.get(position++);
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+	}
+
+	/**
+	 * Front codes terms added in sorted order, writing the block offsets and
+	 * the blocks to separate outputs that are concatenated in that order
+	 */
+	static class Writer {
+		private final DataOutput offsets;
+		private final DataOutput blocks;
+		private long size = 0;
+		private byte[] last = null;
+		private int numTerms = 0;
+
+		Writer(DataOutput offsets, DataOutput blocks) {
+			this.offsets = offsets;
+			this.blocks = blocks;
+		}
+
+		void add(byte[] term) throws IOException {
+			int prefix = 0;
+			if(numTerms % BLOCK_SIZE == 0) {
+				offsets.writeInt((int) size);
+			} else {
+				int n = Math.min(last.length, term.length);
+				while(prefix < n && last[prefix] == term[prefix]) {
+					prefix++;
+				}
+				writeVInt(prefix);
+			}
+			writeVInt(term.length - prefix);
+			blocks.write(term, prefix, term.length - prefix);
+			size += term.length - prefix;
+			last = term;
+			numTerms++;
+		}
+
+		/** Writes the end offset of the last block */
+		void finish() throws IOException {
+			offsets.writeInt((int) size);
+		}
+
+		private void writeVInt(int value) throws IOException {
+			while((value & ~0x7F) != 0) {
+				blocks.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+				size++;
+			}
+			blocks.writeByte(value);
+			size++;
+		}
+	}
+}
@@ -0,0 +1,471 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Impact-ordered copy of the postings of an {@link IndexSnapshot}, for
+ * anytime score-at-a-time evaluation.
+ *
+ * The document side of a weighting, everything in a term's score except the
+ * query term weight, is computed once per posting of a live document and
+ * quantized to a signed integer impact of the given number of bits, linearly
+ * over the largest absolute weight of the snapshot. The postings of each term
+ * are grouped into runs of equal impact, highest impact first, with the
+ * documents of a run in id order and coded as vbyte deltas.
+ *
+ * A query is scored run by run across all its terms, in decreasing order of
+ * impact times query term weight, so the postings that add the most to the
+ * scores come first. Evaluation can stop after a budget of postings or at a
+ * deadline. The runs left over bound how much any score can still change,
+ * which tells whether the top documents found so far are final.
+ *
+ * Scores are sums of quantized impacts, so even a complete evaluation only
+ * approximates the exact scores and may rank near ties differently.
+ */
+public class ImpactIndex {
+	/** Number of postings scored between two looks at the clock */
+	static final int DEADLINE_CHECK_INTERVAL = 1024;
+
+	private static final Metrics.Counter POSTINGS_SCORED = Metrics.counter("impact.postings.scored");
+	private static final Metrics.Counter EARLY_TERMINATED = Metrics.counter("impact.queries.terminated");
+	private static final Metrics.Counter EXACT = Metrics.counter("impact.queries.exact");
+
+	private final IndexSnapshot snapshot;
+	private final Weighting weighting;
+	private final int bits;
+	// weight of one impact step
+	private final double scale;
+
+	private final TermDictionary terms = new TermDictionary();
+	private final int[] docFreqs;
+	// runs of term t are runStarts[t] until runStarts[t + 1]
+	private final int[] runStarts;
+	private final int[] runImpacts;
+	private final int[] runCounts;
+	private final int[] runOffsets;
+	private final byte[] postings;
+	private final long numPostings;
+
+	private final ConcurrentLinkedQueue<Scratch> scratchPool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Document side weight of a term in a document, for a posting of a live
+	 * document. Its product with the query term weight is the score the term
+	 * adds to the document.
+	 */
+	public interface Weights {
+		/**
+		 * @param doc global id of the document in the snapshot
+		 * @param docFreq number of live documents containing the term
+		 */
+		double weight(IndexSnapshot snapshot, int doc, int freq, int docLength, int docMaxTf, int docFreq);
+	}
+
+	/**
+	 * Builds the impact-ordered postings of every term with live documents in
+	 * the snapshot. The postings are decoded twice, once to find the largest
+	 * weight and once to quantize.
+	 *
+	 * @param weighting the weighting the weights are of
+	 * @param bits precision of the impacts, from 1 to 16
+	 */
+	public static ImpactIndex build(IndexSnapshot snapshot, Weighting weighting, Weights weights, int bits) {
+		if(bits < 1 || bits > 16) {
+			throw new IllegalArgumentException("Impacts need from 1 to 16 bits, not " + bits);
+		}
+		double max_weight = 0;
+		IndexSegment[] segments = segments(snapshot);
+		MultiSegmentTerms walk = new MultiSegmentTerms(segments);
+		while(walk.next()) {
+			int[] ords = walk.ords();
+			int df = snapshot.docFreq(ords);
+			if(df == 0) continue;
+			for(int s = 0; s < segments.length; s++) {
+				if(ords[s] < 0) continue;
+				BitSet deleted = snapshot.deletedDocs(s);
+				SegmentPostings list = segments[s].postings(ords[s]);
+				for(int doc = list.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = list.nextDoc()) {
+					if(deleted.get(doc)) continue;
+					double weight = weights.weight(snapshot, snapshot.docBase(s) + doc, list.freq(),
+							segments[s].docLength(doc), segments[s].docMaxTf(doc), df);
+					max_weight = Math.max(max_weight, Math.abs(weight));
+				}
+			}
+		}
+		return new ImpactIndex(snapshot, weighting, weights, bits, max_weight);
+	}
+
+	private ImpactIndex(IndexSnapshot snapshot, Weighting weighting, Weights weights, int bits, double max_weight) {
+		this.snapshot = snapshot;
+		this.weighting = weighting;
+		this.bits = bits;
+		int levels = (1 << bits) - 1;
+		this.scale = max_weight > 0 ? max_weight / levels : 1;
+
+		IndexSegment[] segments = segments(snapshot);
+		SegmentWriter.ByteArrayBuilder bytes = new SegmentWriter.ByteArrayBuilder();
+		IntList dfs = new IntList();
+		IntList starts = new IntList();
+		IntList impacts = new IntList();
+		IntList counts = new IntList();
+		IntList offsets = new IntList();
+		long num_postings = 0;
+		// impact, inverted so larger impacts sort first, over document id
+		long[] keys = new long[16];
+		MultiSegmentTerms walk = new MultiSegmentTerms(segments);
+		while(walk.next()) {
+			int[] ords = walk.ords();
+			int df = snapshot.docFreq(ords);
+			if(df == 0) continue;
+			terms.add(new String(walk.term(), StandardCharsets.UTF_8));
+			dfs.add(df);
+			starts.add(impacts.size());
+
+			if(keys.length < df) {
+				keys = new long[Math.max(df, keys.length * 2)];
+			}
+			int n = 0;
+			for(int s = 0; s < segments.length; s++) {
+				if(ords[s] < 0) continue;
+				BitSet deleted = snapshot.deletedDocs(s);
+				SegmentPostings list = segments[s].postings(ords[s]);
+				for(int doc = list.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = list.nextDoc()) {
+					if(deleted.get(doc)) continue;
+					int id = snapshot.docBase(s) + doc;
+					double weight = weights.weight(snapshot, id, list.freq(), segments[s].docLength(doc),
+							segments[s].docMaxTf(doc), df);
+					int impact = (int) Math.round(weight / scale);
+					keys[n++] = ((long) (levels - impact) << 32) | id;
+				}
+			}
+			Arrays.sort(keys, 0, n);
+
+			int prev = 0;
+			for(int i = 0; i < n; i++) {
+				int impact = levels - (int) (keys[i] >> 32);
+				int id = (int) keys[i];
+				if(i == 0 || impact != impacts.get(impacts.size() - 1)) {
+					impacts.add(impact);
+					counts.add(0);
+					offsets.add(bytes.size());
+					prev = 0;
+				}
+				counts.set(counts.size() - 1, counts.get(counts.size() - 1) + 1);
+				bytes.writeVInt(id - prev);
+				prev = id;
+			}
+			num_postings += n;
+		}
+		starts.add(impacts.size());
+
+		this.docFreqs = dfs.toArray();
+		this.runStarts = starts.toArray();
+		this.runImpacts = impacts.toArray();
+		this.runCounts = counts.toArray();
+		this.runOffsets = offsets.toArray();
+		this.postings = Arrays.copyOf(bytes.bytes(), bytes.size());
+		this.numPostings = num_postings;
+	}
+
+	private static IndexSegment[] segments(IndexSnapshot snapshot) {
+		IndexSegment[] segments = new IndexSegment[snapshot.numSegments()];
+		for(int s = 0; s < segments.length; s++) {
+			segments[s] = snapshot.segment(s);
+		}
+		return segments;
+	}
+
+	/** The snapshot the impacts were computed from, whose document ids and statistics they use */
+	public IndexSnapshot snapshot() {
+		return snapshot;
+	}
+
+	public Weighting weighting() {
+		return weighting;
+	}
+
+	public int bits() {
+		return bits;
+	}
+
+	/** Weight of one impact step, a sum of impacts times this is a score */
+	public double scale() {
+		return scale;
+	}
+
+	public int numTerms() {
+		return terms.size();
+	}
+
+	/** Number of postings, one per live document of each term */
+	public long numPostings() {
+		return numPostings;
+	}
+
+	/** Size of the coded postings, run tables not included */
+	public long postingsBytes() {
+		return postings.length;
+	}
+
+	/** Returns the id of the term, or -1 if no live document contains it */
+	public int termId(String term) {
+		return terms.get(term);
+	}
+
+	/** Number of live documents of the snapshot containing the term */
+	public int docFreq(int termId) {
+		return docFreqs[termId];
+	}
+
+	/**
+	 * Scores the terms run by run until all runs are scored, postingsBudget
+	 * postings are scored or the deadline passes, and returns the best
+	 * documents, at most limit of them. A document matches once any of its
+	 * postings is scored.
+	 *
+	 * @param termIds ids of the query terms, see {@link #termId(String)}
+	 * @param queryWeights weight of each query term, multiplied with the impacts
+	 * @param postingsBudget maximum number of postings to score, 0 for no limit
+	 * @param deadline {@link System#nanoTime()} to stop at, 0 for none
+	 */
+	public Result search(int[] termIds, double[] queryWeights, int limit, long postingsBudget, long deadline) {
+		// the runs of every term, each term's in decreasing order of contribution
+		List<Run> runs = new ArrayList<>();
+		double[][] contributions = new double[termIds.length][];
+		for(int t = 0; t < termIds.length; t++) {
+			int start = runStarts[termIds[t]];
+			int end = runStarts[termIds[t] + 1];
+			contributions[t] = new double[end - start];
+			for(int i = 0; i < end - start; i++) {
+				// impacts decrease along the runs, a negative query weight reverses them
+				int run = queryWeights[t] >= 0 ? start + i : end - 1 - i;
+				contributions[t][i] = runImpacts[run] * queryWeights[t];
+				runs.add(new Run(t, run, contributions[t][i]));
+			}
+		}
+		// stable, so the runs of one term keep their order on ties
+		Collections.sort(runs, new Comparator<Run>() {
+			public int compare(Run a, Run b) {
+				return Double.compare(b.contribution, a.contribution);
+			}
+		});
+		// number of runs of each term scored in full
+		int[] done = new int[termIds.length];
+
+		Scratch scratch = scratchPool.poll();
+		if(scratch == null) {
+			scratch = new Scratch(snapshot.maxDoc());
+		}
+		double[] accumulators = scratch.accumulators;
+		boolean[] matched = scratch.matched;
+		int[] matchedDocs = scratch.matchedDocs;
+		int num_matched = 0;
+		long num_scored = 0;
+		boolean complete = true;
+		long budget = postingsBudget > 0 ? postingsBudget : Long.MAX_VALUE;
+		for(Run run: runs) {
+			if(num_scored >= budget || (deadline != 0 && System.nanoTime() - deadline >= 0)) {
+				complete = false;
+				break;
+			}
+			int count = runCounts[run.run];
+			int offset = runOffsets[run.run];
+			int doc = 0;
+			int i = 0;
+			for(; i < count; i++) {
+				if(num_scored >= budget || (deadline != 0 && i > 0 && num_scored % DEADLINE_CHECK_INTERVAL == 0
+						&& System.nanoTime() - deadline >= 0)) {
+					break;
+				}
+				// vbyte delta
+				int delta = 0;
+				for(int shift = 0; ; shift += 7) {
+					byte b = postings[offset++];
+					delta |= (b & 0x7F) << shift;
+					if(b >= 0) break;
+				}
+				doc += delta;
+				if(!matched[doc]) {
+					matched[doc] = true;
+					matchedDocs[num_matched++] = doc;
+				}
+				accumulators[doc] += run.contribution;
+				num_scored++;
+			}
+			if(i < count) {
+				// the rest of this run is left over
+				complete = false;
+				break;
+			}
+			done[run.term]++;
+		}
+
+		// the best limit documents, and the best one after them
+		TopKCollector collector = new TopKCollector(limit + 1);
+		for(int i = 0; i < num_matched; i++) {
+			int doc = matchedDocs[i];
+			collector.collect(doc, accumulators[doc] * scale);
+			accumulators[doc] = 0;
+			matched[doc] = false;
+		}
+		scratchPool.add(scratch);
+		double[] scores = new double[collector.size()];
+		int[] docs = collector.topDocs(scores);
+
+		// the largest gain and loss any document can still have, from the runs not scored in full
+		double max_gain = 0;
+		double max_loss = 0;
+		for(int t = 0; t < termIds.length; t++) {
+			if(done[t] < contributions[t].length) {
+				max_gain += Math.max(contributions[t][done[t]], 0);
+				max_loss += Math.min(contributions[t][contributions[t].length - 1], 0);
+			}
+		}
+		boolean exact = complete || isFinal(scores, limit, num_matched < snapshot.numDocs(),
+				max_gain * scale, max_loss * scale);
+		POSTINGS_SCORED.add(num_scored);
+		if(!complete) {
+			EARLY_TERMINATED.increment();
+		}
+		if(exact) {
+			EXACT.increment();
+		}
+
+		int n = Math.min(limit, docs.length);
+		List<String> names = new ArrayList<>();
+		for(int i = 0; i < n; i++) {
+			names.add(snapshot.docName(docs[i]));
+		}
+		return new Result(names, Arrays.copyOf(scores, n), exact, complete, num_scored);
+	}
+
+	/*
+	 * Whether the first limit documents and their order can no longer change:
+	 * each of them stays above the next even if it gains nothing more and the
+	 * next gains everything left, and so does the last above any other document.
+	 * Documents not matched yet have a score of 0.
+	 */
+	static boolean isFinal(double[] scores, int limit, boolean unmatchedDocs, double maxGain, double maxLoss) {
+		if(scores.length <= limit) {
+			// any document the rest of the runs match would still make it in
+			return false;
+		}
+		for(int i = 0; i < limit; i++) {
+			double below = scores[i + 1];
+			if(i + 1 == limit && unmatchedDocs) {
+				below = Math.max(below, 0);
+			}
+			if(!(scores[i] + maxLoss > below + maxGain)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Best documents of an impact-ordered evaluation with their quantized scores,
+	 * and how far the evaluation went.
+	 */
+	public static class Result {
+		private final List<String> docs;
+		private final double[] scores;
+		private final boolean exact;
+		private final boolean complete;
+		private final long postingsScored;
+
+		Result(List<String> docs, double[] scores, boolean exact, boolean complete, long postingsScored) {
+			this.docs = docs;
+			this.scores = scores;
+			this.exact = exact;
+			this.complete = complete;
+			this.postingsScored = postingsScored;
+		}
+
+		/** Names of the best documents, best first */
+		public List<String> docs() {
+			return docs;
+		}
+
+		public double[] scores() {
+			return scores;
+		}
+
+		/**
+		 * Whether the documents and their order are provably those of scoring
+		 * every posting, under the quantized impacts
+		 */
+		public boolean isExact() {
+			return exact;
+		}
+
+		/** Whether every posting of the query terms was scored */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		public long postingsScored() {
+			return postingsScored;
+		}
+	}
+
+	private static class Run {
+		final int term;
+		final int run;
+		// impact times query term weight
+		final double contribution;
+
+		Run(int term, int run, double contribution) {
+			this.term = term;
+			this.run = run;
+			this.contribution = contribution;
+		}
+	}
+
+	private static class Scratch {
+		final double[] accumulators;
+		final boolean[] matched;
+		final int[] matchedDocs;
+
+		Scratch(int max_doc) {
+			accumulators = new double[max_doc];
+			matched = new boolean[max_doc];
+			matchedDocs = new int[max_doc];
+		}
+	}
+
+	/*
+	 * Growable int array
+	 */
+	private static class IntList {
+		private int[] values = new int[16];
+		private int size = 0;
+
+		void add(int value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		void set(int i, int value) {
+			values[i] = value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * In-memory inverted index under construction. Terms and documents get dense
+ * int ids, postings are kept per term id in primitive arrays, and document
+ * frequencies are simply the postings sizes. Documents are added one at a
+ * time with {@link #startDocument(String)}, {@link #addTerm(String, int)} and
+ * {@link #endDocument()}.
+ *
+ * A builder with positions records where each token occurs, its documents
+ * are added token by token with {@link #addToken(char[], int, int)}.
+ */
+public class IndexBuilder {
+	private final TermDictionary dictionary = new TermDictionary();
+	private final ArrayList<PostingsList> postings = new ArrayList<>();
+	private final boolean withPositions;
+
+	private final ArrayList<String> docNames = new ArrayList<>();
+	private int[] docLengths = new int[16];
+	private int[] docMaxTf = new int[16];
+
+	// term counts of the current document, indexed by term id
+	private int[] termCounts = new int[16];
+	private int[] docTerms = new int[16];
+	private int numDocTerms = 0;
+	private String currentDoc = null;
+
+	// term ids and positions of the tokens of the current document, in token order
+	private int[] tokenTerms;
+	private int[] tokenPositions;
+	private int numTokens = 0;
+	// positions of the current document grouped by term, and where each term's group starts
+	private int[] groupedPositions;
+	private int[] groupStarts;
+
+	// for estimating memory use
+	private long numPostings = 0;
+	private long numPositions = 0;
+	private long numChars = 0;
+
+	public IndexBuilder() {
+		this(false);
+	}
+
+	/** @param withPositions record token positions, for phrase and proximity queries */
+	public IndexBuilder(boolean withPositions) {
+		this.withPositions = withPositions;
+		if(withPositions) {
+			tokenTerms = new int[16];
+			tokenPositions = new int[16];
+			groupedPositions = new int[16];
+			groupStarts = new int[16];
+		}
+	}
+
+	public boolean hasPositions() {
+		return withPositions;
+	}
+
+	/** Starts a new document, which gets the next document id */
+	public void startDocument(String docName) {
+		// discard the counts of a document that was started but never ended
+		for(int i = 0; i < numDocTerms; i++) {
+			termCounts[docTerms[i]] = 0;
+		}
+		currentDoc = docName;
+		numDocTerms = 0;
+		numTokens = 0;
+	}
+
+	/** Adds occurrences of a term to the current document, without positions */
+	public void addTerm(String term, int freq) {
+		checkNoPositions();
+		addOccurrences(termId(term), freq);
+	}
+
+	/**
+	 * Adds occurrences of the term held in the first length chars of the buffer,
+	 * such as a CharTermAttribute, without creating a String for known terms
+	 */
+	public void addTerm(char[] buffer, int length, int freq) {
+		checkNoPositions();
+		addOccurrences(termId(buffer, length), freq);
+	}
+
+	/**
+	 * Adds one occurrence of the term held in the first length chars of the
+	 * buffer at the given token position. Positions must not decrease within a
+	 * document. Without positions this is addTerm(buffer, length, 1).
+	 */
+	public void addToken(char[] buffer, int length, int position) {
+		int termId = termId(buffer, length);
+		addOccurrences(termId, 1);
+		if(withPositions) {
+			if(numTokens == tokenTerms.length) {
+				tokenTerms = Arrays.copyOf(tokenTerms, numTokens * 2);
+				tokenPositions = Arrays.copyOf(tokenPositions, numTokens * 2);
+			}
+			tokenTerms[numTokens] = termId;
+			tokenPositions[numTokens] = position;
+			numTokens++;
+		}
+	}
+
+	private void checkNoPositions() {
+		if(withPositions) {
+			throw new IllegalStateException("Terms of an index with positions are added with addToken");
+		}
+	}
+
+	private void addOccurrences(int termId, int freq) {
+		if(termId >= termCounts.length) {
+			termCounts = Arrays.copyOf(termCounts, Math.max(termId + 1, termCounts.length * 2));
+		}
+		if(termCounts[termId] == 0) {
+			if(numDocTerms == docTerms.length) {
+				docTerms = Arrays.copyOf(docTerms, numDocTerms * 2);
+			}
+			docTerms[numDocTerms++] = termId;
+		}
+		termCounts[termId] += freq;
+	}
+
+	/** Appends the current document to the postings of its terms */
+	public void endDocument() {
+		int doc = newDocument(currentDoc);
+		if(withPositions) {
+			groupPositions();
+		}
+
+		int length = 0;
+		int maxTf = 0;
+		for(int i = 0; i < numDocTerms; i++) {
+			int termId = docTerms[i];
+			int tf = termCounts[termId];
+			if(withPositions) {
+				postings.get(termId).add(doc, tf, groupedPositions, groupStarts[termId]);
+			} else {
+				postings.get(termId).add(doc, tf);
+			}
+			numPostings++;
+			length += tf;
+			maxTf = Math.max(maxTf, tf);
+			termCounts[termId] = 0;
+		}
+		docLengths[doc] = length;
+		docMaxTf[doc] = maxTf;
+		numPositions += numTokens;
+		numDocTerms = 0;
+		numTokens = 0;
+		currentDoc = null;
+	}
+
+	/*
+	 * Counting sort of the document's token positions by term, keeping token
+	 * order within a term so each term's positions are increasing
+	 */
+	private void groupPositions() {
+		if(groupStarts.length < termCounts.length) {
+			groupStarts = Arrays.copyOf(groupStarts, termCounts.length);
+		}
+		if(groupedPositions.length < numTokens) {
+			groupedPositions = new int[Math.max(numTokens, groupedPositions.length * 2)];
+		}
+		int start = 0;
+		for(int i = 0; i < numDocTerms; i++) {
+			groupStarts[docTerms[i]] = start;
+			start += termCounts[docTerms[i]];
+		}
+		for(int i = 0; i < numTokens; i++) {
+			groupedPositions[groupStarts[tokenTerms[i]]++] = tokenPositions[i];
+		}
+		// the fill advanced every start to the end of its group
+		for(int i = 0; i < numDocTerms; i++) {
+			groupStarts[docTerms[i]] -= termCounts[docTerms[i]];
+		}
+	}
+
+	/**
+	 * Appends all documents of another builder, in order, after the documents
+	 * of this one. Used to merge partial indexes built in parallel. Both must
+	 * either have positions or not.
+	 */
+	public void append(IndexBuilder other) {
+		if(other.withPositions != withPositions) {
+			throw new IllegalArgumentException("Cannot append an index " + (withPositions ? "without" : "with") + " positions");
+		}
+		int base = numDocs();
+		for(int doc = 0; doc < other.numDocs(); doc++) {
+			newDocument(other.docName(doc));
+			docLengths[base + doc] = other.docLength(doc);
+			docMaxTf[base + doc] = other.docMaxTf(doc);
+		}
+		for(int otherTermId = 0; otherTermId < other.numTerms(); otherTermId++) {
+			PostingsList src = other.postings(otherTermId);
+			PostingsList dst = postings.get(termId(other.term(otherTermId)));
+			int offset = 0;
+			for(int i = 0; i < src.size(); i++) {
+				if(withPositions) {
+					dst.add(base + src.doc(i), src.freq(i), src.positions(), offset);
+					offset += src.freq(i);
+				} else {
+					dst.add(base + src.doc(i), src.freq(i));
+				}
+			}
+			numPostings += src.size();
+			numPositions += offset;
+		}
+	}
+
+	/*
+	 * Returns the id of the term, creating its postings if it is new
+	 */
+	private int termId(String term) {
+		int termId = dictionary.add(term);
+		if(termId == postings.size()) {
+			postings.add(new PostingsList(withPositions));
+			numChars += term.length();
+		}
+		return termId;
+	}
+
+	private int termId(char[] buffer, int length) {
+		int termId = dictionary.add(buffer, length);
+		if(termId == postings.size()) {
+			postings.add(new PostingsList(withPositions));
+			numChars += length;
+		}
+		return termId;
+	}
+
+	/*
+	 * Assigns the next document id
+	 */
+	private int newDocument(String docName) {
+		int doc = docNames.size();
+		docNames.add(docName);
+		numChars += docName.length();
+		if(doc == docLengths.length) {
+			docLengths = Arrays.copyOf(docLengths, doc * 2);
+			docMaxTf = Arrays.copyOf(docMaxTf, doc * 2);
+		}
+		return doc;
+	}
+
+	/**
+	 * Rough estimate of the heap used by the index: postings and positions arrays
+	 * including growth slack, plus the strings, dictionary slots and objects per
+	 * term and per document.
+	 */
+	public long estimatedBytes() {
+		return numPostings * 12 + numPositions * 6 + numTerms() * 120L + numDocs() * 72L + numChars * 2;
+	}
+
+	public int numDocs() {
+		return docNames.size();
+	}
+
+	public String docName(int doc) {
+		return docNames.get(doc);
+	}
+
+	/** Number of tokens in the document */
+	public int docLength(int doc) {
+		return docLengths[doc];
+	}
+
+	public int docMaxTf(int doc) {
+		return docMaxTf[doc];
+	}
+
+	public int numTerms() {
+		return dictionary.size();
+	}
+
+	public String term(int termId) {
+		return dictionary.term(termId);
+	}
+
+	/** Postings of the term, its size is the term's document frequency */
+	public PostingsList postings(int termId) {
+		return postings.get(termId);
+	}
+
+	/**
+	 * Term ids ordered by the unsigned UTF-8 bytes of their terms, the order of
+	 * the segment dictionary. Anything summed over terms in this order does not
+	 * depend on the order in which terms were first seen.
+	 */
+	public int[] sortedTermIds() {
+		final byte[][] termBytes = new byte[numTerms()][];
+		Integer[] sorted = new Integer[numTerms()];
+		for(int termId = 0; termId < termBytes.length; termId++) {
+			termBytes[termId] = term(termId).getBytes(StandardCharsets.UTF_8);
+			sorted[termId] = termId;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return IndexSegment.compareBytes(termBytes[a], termBytes[b]);
+			}
+		});
+
+		int[] termIds = new int[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			termIds[i] = sorted[i];
+		}
+		return termIds;
+	}
+}
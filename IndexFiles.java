@@ -1,22 +1,44 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 // import org.apache.lucene.util.Version;
 
 /** Index all text files under a directory, the directory is at data/txt/
@@ -26,8 +48,107 @@ public class IndexFiles {
 
 	private IndexFiles() {}
 
+	// recorded only while Metrics are enabled
+	private static final Metrics.Histogram BUILD_TIME = Metrics.histogram("lucene.index.build");
+	private static final Metrics.Histogram DOCUMENT_TIME = Metrics.histogram("lucene.index.document");
+	private static final Metrics.Histogram READ_TIME = Metrics.histogram("lucene.index.document.read");
+	private static final Metrics.Histogram COMMIT_TIME = Metrics.histogram("lucene.index.commit");
+	private static final Metrics.Counter DOCS_INDEXED = Metrics.counter("lucene.index.docs");
+	private static final Metrics.Counter BYTES_INDEXED = Metrics.counter("lucene.index.bytes");
+
+	/**
+	 * Settings of an indexing run. The defaults index on one thread into a new
+	 * index with Lucene's default writer settings.
+	 */
+	public static class Options {
+		// null to create a new index unless skipUnchanged is set
+		Boolean create = null;
+		boolean skipUnchanged = false;
+		int threads = 1;
+		double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+		int maxThreadStates = IndexWriterConfig.DEFAULT_MAX_THREAD_STATES;
+		MergePolicy mergePolicy = null;
+		Analyzer analyzer = null;
+		Similarity similarity = null;
+
+		/**
+		 * Whether to replace an existing index, otherwise documents are updated
+		 * by path. Setting it forces a rebuild even with skipUnchanged.
+		 */
+		public Options create(boolean create) {
+			this.create = create;
+			return this;
+		}
+
+		/**
+		 * Keep an existing index and only reindex files whose modification time
+		 * changed. Documents of files that no longer exist are deleted. Files are
+		 * told apart by their path relative to the document directory.
+		 */
+		public Options skipUnchanged(boolean skipUnchanged) {
+			this.skipUnchanged = skipUnchanged;
+			return this;
+		}
+
+		/** Number of indexing threads, fed by one thread reading the files */
+		public Options threads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/** Memory for buffered documents before they are flushed to a segment */
+		public Options ramBufferSizeMB(double ramBufferSizeMB) {
+			this.ramBufferSizeMB = ramBufferSizeMB;
+			return this;
+		}
+
+		/** Maximum number of threads that index into their own in-memory segment at once */
+		public Options maxThreadStates(int maxThreadStates) {
+			this.maxThreadStates = maxThreadStates;
+			return this;
+		}
+
+		/** Merge policy of the writer, Lucene's default if null */
+		public Options mergePolicy(MergePolicy mergePolicy) {
+			this.mergePolicy = mergePolicy;
+			return this;
+		}
+
+		/** Analyzer of the contents, {@link AnalysisChain#lucene} with the stop words if null */
+		public Options analyzer(Analyzer analyzer) {
+			this.analyzer = analyzer;
+			return this;
+		}
+
+		/**
+		 * Similarity whose norms are written, Lucene's default if null. An index
+		 * built with a {@link WeightingSimilarity} must be searched with one, and
+		 * switching the similarity of an existing index needs create. A
+		 * {@link SmartSimilarity} with a cosine weighting reads every posting
+		 * each time a searcher is opened on a changed set of segments.
+		 */
+		public Options similarity(Similarity similarity) {
+			this.similarity = similarity;
+			return this;
+		}
+	}
+
 	/** Index all text files under a directory. */
 	public static void buildIndex(String indexPath, String docsPath, CharArraySet stopwords) {
+		buildIndex(indexPath, docsPath, stopwords, new Options());
+	}
+
+	/**
+	 * Index all text files under a directory. Unless create is set, an existing
+	 * index is kept and each file replaces the document with the same path, so
+	 * new and changed files can be indexed without rebuilding everything.
+	 */
+	public static void buildIndex(String indexPath, String docsPath, CharArraySet stopwords, boolean create) {
+		buildIndex(indexPath, docsPath, stopwords, new Options().create(create));
+	}
+
+	/** Index all text files under a directory with the given settings. */
+	public static void buildIndex(String indexPath, String docsPath, CharArraySet stopwords, Options options) {
 		// Check whether docsPath is valid
 		if (docsPath == null || docsPath.isEmpty()) {
 			System.err.println("Document directory cannot be null");
@@ -42,6 +163,7 @@ public class IndexFiles {
 		}
 
 		Date start = new Date();
+		long buildStart = Metrics.start();
 		IndexWriter writer = null;
 		try {
 			System.out.println("Indexing to directory '" + indexPath + "'...");
@@ -50,28 +172,67 @@ public class IndexFiles {
 //			Analyzer analyzer = new MyAnalyzer(Version.LUCENE_44, stopwords);
 //
 //			IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_44, analyzer);
-			Analyzer analyzer = new MyAnalyzer(stopwords, false);
+			Analyzer analyzer = options.analyzer != null ? options.analyzer : AnalysisChain.lucene(stopwords, false);
 
 			IndexWriterConfig iwc = new IndexWriterConfig(null, analyzer);
-			// Create a new index in the directory, removing any
-			// previously indexed documents:
-			iwc.setOpenMode(OpenMode.CREATE);
+			boolean create = options.create != null ? options.create : !options.skipUnchanged;
+			if (create) {
+				// Create a new index in the directory, removing any
+				// previously indexed documents:
+				iwc.setOpenMode(OpenMode.CREATE);
+			} else {
+				// Add new documents to an existing index:
+				iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+			}
+			iwc.setRAMBufferSizeMB(options.ramBufferSizeMB);
+			iwc.setMaxThreadStates(options.maxThreadStates);
+			if (options.mergePolicy != null) {
+				iwc.setMergePolicy(options.mergePolicy);
+			}
+			if (options.similarity != null) {
+				iwc.setSimilarity(options.similarity);
+			}
+
+			// modification times of the indexed files, to skip the unchanged ones
+			Map<String, Long> indexed = null;
+			if (options.skipUnchanged && !create) {
+				indexed = loadModificationTimes(dir);
+			}
 
 			writer = new IndexWriter(dir, iwc);
 			// Write the index into them.
-			indexDocs(writer, docDir);
+			Ingestion ingestion = new Ingestion(writer, docDir, indexed);
+			if (options.threads <= 1) {
+				indexDocs(ingestion, docDir);
+			} else {
+				indexDocsInParallel(ingestion, docDir, options.threads);
+			}
+			ingestion.deleteRemovedFiles();
 
 			Date end = new Date();
+			long millis = Math.max(end.getTime() - start.getTime(), 1);
 			System.out.println(end.getTime() - start.getTime() + " total milliseconds");
+			System.out.printf("%d documents indexed, %d unchanged skipped, %d deleted: %.1f docs/sec, %.2f MB/sec%n",
+					ingestion.docs.get(), ingestion.skipped.get(), ingestion.deleted,
+					ingestion.docs.get() * 1000.0 / millis, ingestion.bytes.get() * 1000.0 / millis / (1 << 20));
 
 		} catch (IOException e) {
 			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Indexing was interrupted");
 		} finally {
 			try {
-				writer.close();
+				if (writer != null) {
+					// closing commits the changes
+					long commitStart = Metrics.start();
+					writer.close();
+					COMMIT_TIME.recordSince(commitStart);
+				}
 			} catch(IOException e) {
 				System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
 			}
+			BUILD_TIME.recordSince(buildStart);
 		}
 	}
 
@@ -80,42 +241,30 @@ public class IndexFiles {
 	 * recurses over files and directories found under the given directory.
 	 */
 	static void indexDocs(IndexWriter writer, File file) {
+		indexDocs(new Ingestion(writer, file, null), file);
+	}
+
+	private static void indexDocs(Ingestion ingestion, File file) {
 		if (file.canRead()) {
 			if (file.isDirectory()) {
 				String[] files = file.list();
 				if (files != null) {
 					for (int i = 0; i < files.length; i++) {
-						indexDocs(writer, new File(file, files[i]));
+						indexDocs(ingestion, new File(file, files[i]));
 					}
 				}
-			} else {
+			} else if (!ingestion.isUnchanged(file)) {
 				FileInputStream fis = null;
-				
+
 				try {
 					fis = new FileInputStream(file);
 				} catch (FileNotFoundException e) {
 					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+					return;
 				}
 
 				try {
-					// make a new, empty document
-					Document doc = new Document();
-
-					// Add the path of the file as a field named "path".  Use a
-					// field that is indexed (i.e. searchable), but don't tokenize 
-					// the field into separate words and don't index term frequency
-					// or positional information:
-					Field pathField = new StringField("path", file.getName(), Field.Store.YES);
-					doc.add(pathField);
-
-					// Add the contents of the file to a field named "contents".  Specify a Reader,
-					// so that the text of the file is tokenized and indexed, but not stored.
-					doc.add(new TextField("contents", new BufferedReader(new InputStreamReader(fis))));
-
-					// New index, so we just add the document (no old document can be there):
-					// System.out.println("adding " + file);
-					writer.addDocument(doc);
-
+					ingestion.index(file, fis, file.length());
 				} catch (IOException e) {
 					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
 				} finally {
@@ -128,4 +277,205 @@ public class IndexFiles {
 			}
 		}
 	}
+
+	/*
+	 * The calling thread walks the directory and reads the files, the indexing
+	 * threads analyze them and add them to the shared writer
+	 */
+	private static void indexDocsInParallel(final Ingestion ingestion, File docDir, int threads)
+			throws InterruptedException {
+		final BlockingQueue<FileContents> queue = new ArrayBlockingQueue<>(4 * threads);
+		final FileContents done = new FileContents(null, null);
+
+		List<Thread> indexers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread indexer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						FileContents contents;
+						while ((contents = queue.take()) != done) {
+							try {
+								ingestion.index(contents.file, new ByteArrayInputStream(contents.bytes), contents.bytes.length);
+							} catch (Throwable e) {
+								// a bad file must not stop this thread, the reader would block on the full queue
+								System.out.println("Could not index " + contents.file + ": caught a " + e.getClass()
+										+ "\n with message: " + e.getMessage());
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "indexer-" + i);
+			indexer.start();
+			indexers.add(indexer);
+		}
+
+		try {
+			readDocs(ingestion, docDir, queue);
+		} finally {
+			for (int i = 0; i < threads; i++) {
+				queue.put(done);
+			}
+			for (Thread indexer: indexers) {
+				indexer.join();
+			}
+		}
+	}
+
+	private static void readDocs(Ingestion ingestion, File file, BlockingQueue<FileContents> queue)
+			throws InterruptedException {
+		if (file.canRead()) {
+			if (file.isDirectory()) {
+				String[] files = file.list();
+				if (files != null) {
+					for (int i = 0; i < files.length; i++) {
+						readDocs(ingestion, new File(file, files[i]), queue);
+					}
+				}
+			} else if (!ingestion.isUnchanged(file)) {
+				try {
+					long start = Metrics.start();
+					byte[] bytes = Files.readAllBytes(file.toPath());
+					READ_TIME.recordSince(start);
+					queue.put(new FileContents(file, bytes));
+				} catch (IOException e) {
+					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Read the path and modification time of the documents of an existing index
+	 */
+	private static Map<String, Long> loadModificationTimes(Directory dir) throws IOException {
+		Map<String, Long> indexed = new HashMap<>();
+		if (!DirectoryReader.indexExists(dir)) {
+			return indexed;
+		}
+		DirectoryReader reader = DirectoryReader.open(dir);
+		try {
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			for (int i = 0; i < reader.maxDoc(); i++) {
+				if (liveDocs != null && !liveDocs.get(i)) continue;
+				Document doc = reader.document(i);
+				IndexableField modified = doc.getField("modified");
+				// documents indexed before modification times were stored are reindexed
+				indexed.put(doc.get("path"), modified == null ? -1 : modified.numericValue().longValue());
+			}
+		} finally {
+			reader.close();
+		}
+		return indexed;
+	}
+
+	/*
+	 * State of one indexing run shared by the indexing threads
+	 */
+	private static class Ingestion {
+		final IndexWriter writer;
+		// document directory, paths are relative to it
+		final File docDir;
+		final Map<String, Long> indexed;
+		final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicLong docs = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		int deleted = 0;
+
+		Ingestion(IndexWriter writer, File docDir, Map<String, Long> indexed) {
+			this.writer = writer;
+			this.docDir = docDir;
+			this.indexed = indexed;
+		}
+
+		/*
+		 * Path of the file relative to the document directory with / separators,
+		 * the file name of files directly in it, so files of the same name in
+		 * different subdirectories are different documents
+		 */
+		String path(File file) {
+			if (file.equals(docDir)) {
+				return file.getName();
+			}
+			return docDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+		}
+
+		boolean isUnchanged(File file) {
+			if (indexed == null) {
+				return false;
+			}
+			String path = path(file);
+			seen.add(path);
+			Long modified = indexed.get(path);
+			if (modified != null && modified == file.lastModified()) {
+				skipped.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		void index(File file, InputStream in, long length) throws IOException {
+			long start = Metrics.start();
+			// make a new, empty document
+			Document doc = new Document();
+
+			// Add the path of the file as a field named "path".  Use a
+			// field that is indexed (i.e. searchable), but don't tokenize
+			// the field into separate words and don't index term frequency
+			// or positional information:
+			String path = path(file);
+			Field pathField = new StringField("path", path, Field.Store.YES);
+			doc.add(pathField);
+
+			// Store the last modified time of the file, so unchanged files can be skipped
+			doc.add(new StoredField("modified", file.lastModified()));
+
+			// Add the contents of the file to a field named "contents".  Specify a Reader,
+			// so that the text of the file is tokenized and indexed, but not stored.
+			Reader reader = new BufferedReader(new InputStreamReader(in));
+			doc.add(new TextField("contents", reader));
+
+			if (writer.getConfig().getOpenMode() == OpenMode.CREATE) {
+				// New index, so we just add the document (no old document can be there):
+				// System.out.println("adding " + file);
+				writer.addDocument(doc);
+			} else {
+				// Existing index (an old copy of this document may have been indexed) so
+				// we use updateDocument instead to replace the old one matching the exact
+				// path, if present:
+				writer.updateDocument(new Term("path", path), doc);
+			}
+			docs.incrementAndGet();
+			bytes.addAndGet(length);
+			DOCUMENT_TIME.recordSince(start);
+			DOCS_INDEXED.increment();
+			BYTES_INDEXED.add(length);
+		}
+
+		// in skip-unchanged mode, documents of files that are gone are deleted
+		void deleteRemovedFiles() throws IOException {
+			if (indexed == null) return;
+			for (String path: indexed.keySet()) {
+				if (!seen.contains(path)) {
+					writer.deleteDocuments(new Term("path", path));
+					deleted++;
+				}
+			}
+		}
+	}
+
+	/*
+	 * A file read by the producer, waiting for an indexing thread
+	 */
+	private static class FileContents {
+		final File file;
+		final byte[] bytes;
+
+		FileContents(File file, byte[] bytes) {
+			this.file = file;
+			this.bytes = bytes;
+		}
+	}
 }
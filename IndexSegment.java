@@ -0,0 +1,305 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of an index written by {@link SegmentWriter}. Opening a
+ * segment only maps the file, nothing is decoded up front, and all reads use
+ * absolute positions so a segment can be shared by concurrent queries.
+ */
+public class IndexSegment {
+	static final int MAGIC = 0x4D534931;	// "MSI1"
+	// version 1 segments have no codec id and are vbyte coded, versions
+	// before 3 store every term whole with its own offset
+	static final int VERSION = 3;
+	static final int HEADER_SIZE = 64;
+	/** Header flag of segments that store token positions */
+	static final int FLAG_POSITIONS = 1;
+
+	private final ByteBuffer buf;
+	private final int numDocs;
+	private final int numTerms;
+	private final double avg_doc_length;
+	private final PostingsCodec codec;
+
+	private final int docNameOffsets;
+	private final int docNameBytes;
+	private final int docLengths;
+	private final int docMaxTfs;
+	private final int docNorms;
+	private final int termOffsets;
+	private final int termDfs;
+	private final int termPostings;
+	private final int termBytes;
+	// null before version 3
+	private final FrontCodedDictionary dictionary;
+	// 0 without positions
+	private final int termPositions;
+	private final int positions;
+
+	/**
+	 * Memory maps a segment file. The whole file is one buffer addressed with
+	 * int offsets, which is why {@link SegmentWriter} limits segments to 2GB.
+	 */
+	public static IndexSegment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Index file " + file + " is larger than the 2GB a segment can be");
+			}
+			return new IndexSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	public IndexSegment(ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		if(buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+			throw new IOException("Not a MiniSearchEngine index");
+		}
+		int version = buf.getInt(4);
+		if(version < 1 || version > VERSION) {
+			throw new IOException("Unsupported index version " + version);
+		}
+		codec = version == 1 ? PostingsCodec.VBYTE : PostingsCodec.forId(buf.getInt(56));
+		numDocs = buf.getInt(8);
+		numTerms = buf.getInt(12);
+		avg_doc_length = buf.getDouble(16);
+		if(buf.getLong(48) != buf.capacity()) {
+			throw new IOException("Index file is truncated");
+		}
+
+		docNameOffsets = (int) buf.getLong(24);
+		docNameBytes = docNameOffsets + 4 * (numDocs + 1);
+		docLengths = (int) buf.getLong(32);
+		docMaxTfs = docLengths + 4 * numDocs;
+		docNorms = docMaxTfs + 4 * numDocs;
+		int dictionaryEnd;
+		if(version < 3) {
+			termOffsets = (int) buf.getLong(40);
+			termDfs = termOffsets + 4 * (numTerms + 1);
+			termPostings = termDfs + 4 * numTerms;
+			termBytes = termPostings + 8 * numTerms;
+			dictionary = null;
+			dictionaryEnd = termBytes + buf.getInt(termOffsets + 4 * numTerms);
+		} else {
+			termOffsets = 0;
+			termDfs = (int) buf.getLong(40);
+			termPostings = termDfs + 4 * numTerms;
+			termBytes = 0;
+			dictionary = new FrontCodedDictionary(buf, termPostings + 8 * numTerms, numTerms);
+			dictionaryEnd = dictionary.end();
+		}
+		// positions follow the dictionary, version 1 segments have no flags
+		if(version != 1 && (buf.getInt(60) & FLAG_POSITIONS) != 0) {
+			termPositions = dictionaryEnd;
+			positions = termPositions + 8 * numTerms;
+		} else {
+			termPositions = 0;
+			positions = 0;
+		}
+	}
+
+	public int numDocs() {
+		return numDocs;
+	}
+
+	public int numTerms() {
+		return numTerms;
+	}
+
+	public double avgDocLength() {
+		return avg_doc_length;
+	}
+
+	/** Encoding of the postings */
+	public PostingsCodec codec() {
+		return codec;
+	}
+
+	/** Size of the postings section, skip tables included */
+	public long postingsBytes() {
+		return (buf.getLong(40) - docLengths) - 16L * numDocs;
+	}
+
+	/** Size of the terms of the dictionary, without their document frequencies and postings offsets */
+	public long termsBytes() {
+		if(dictionary != null) {
+			return dictionary.sizeInBytes();
+		}
+		return 4L * (numTerms + 1) + buf.getInt(termOffsets + 4 * numTerms);
+	}
+
+	/** Whether the segment stores token positions, needed by phrase and proximity queries */
+	public boolean hasPositions() {
+		return positions != 0;
+	}
+
+	/** Size of the positions section, 0 without positions */
+	public long positionsBytes() {
+		return hasPositions() ? buf.capacity() - termPositions : 0;
+	}
+
+	/** Total number of token positions, the sum of all document lengths */
+	public long numPositions() {
+		long count = 0;
+		for(int doc = 0; doc < numDocs; doc++) {
+			count += docLength(doc);
+		}
+		return count;
+	}
+
+	/** Total number of postings of all terms */
+	public long numPostings() {
+		long postings = 0;
+		for(int ord = 0; ord < numTerms; ord++) {
+			postings += docFreq(ord);
+		}
+		return postings;
+	}
+
+	public String docName(int doc) {
+		int start = buf.getInt(docNameOffsets + 4 * doc);
+		int end = buf.getInt(docNameOffsets + 4 * (doc + 1));
+		return decode(docNameBytes + start, end - start);
+	}
+
+	/** Number of tokens in the document */
+	public int docLength(int doc) {
+		return buf.getInt(docLengths + 4 * doc);
+	}
+
+	public int docMaxTf(int doc) {
+		return buf.getInt(docMaxTfs + 4 * doc);
+	}
+
+	/** Norm of the atc weighted document vector */
+	public double docNorm(int doc) {
+		return buf.getDouble(docNorms + 8 * doc);
+	}
+
+	/** Returns the ordinal of the term in the sorted dictionary, or -1 if it is not indexed */
+	public int termOrd(String term) {
+		byte[] key = term.getBytes(StandardCharsets.UTF_8);
+		if(dictionary != null) {
+			return Math.max(dictionary.seek(key), -1);
+		}
+		int low = 0;
+		int high = numTerms - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareTerm(mid, key);
+			if(cmp < 0) {
+				low = mid + 1;
+			} else if(cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public String term(int ord) {
+		return new String(termBytes(ord), StandardCharsets.UTF_8);
+	}
+
+	/** UTF-8 bytes of the term */
+	public byte[] termBytes(int ord) {
+		if(dictionary != null) {
+			return dictionary.term(ord);
+		}
+		int start = buf.getInt(termOffsets + 4 * ord);
+		int end = buf.getInt(termOffsets + 4 * (ord + 1));
+		byte[] bytes = new byte[end - start];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = buf.get(termBytes + start + i);
+		}
+		return bytes;
+	}
+
+	/** Cursor over all terms in sorted order */
+	public SegmentTerms terms() {
+		return new SegmentTerms(this, dictionary, 0, new byte[0]);
+	}
+
+	/** Cursor over the terms starting with the prefix, in sorted order */
+	public SegmentTerms terms(String prefix) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		return new SegmentTerms(this, dictionary, ceilOrd(key), key);
+	}
+
+	/*
+	 * Ordinal of the first term not less than the key, numTerms if there is none
+	 */
+	private int ceilOrd(byte[] key) {
+		if(dictionary != null) {
+			int ord = dictionary.seek(key);
+			return ord >= 0 ? ord : -ord - 1;
+		}
+		int low = 0;
+		int high = numTerms;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(compareTerm(mid, key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Number of documents containing the term */
+	public int docFreq(int ord) {
+		return buf.getInt(termDfs + 4 * ord);
+	}
+
+	/** Returns a new cursor over the postings of the term */
+	public SegmentPostings postings(int ord) {
+		return codec.postings(buf, (int) buf.getLong(termPostings + 8 * ord), docFreq(ord));
+	}
+
+	/** Returns a new reader of the positions of the term's postings */
+	public SegmentPositions positions(int ord) {
+		if(!hasPositions()) {
+			throw new IllegalStateException("The index has no positions");
+		}
+		return new SegmentPositions(buf, (int) buf.getLong(termPositions + 8 * ord), docFreq(ord), codec.blockSize());
+	}
+
+	private int compareTerm(int ord, byte[] key) {
+		int start = termBytes + buf.getInt(termOffsets + 4 * ord);
+		int length = termBytes + buf.getInt(termOffsets + 4 * (ord + 1)) - start;
+		int n = Math.min(length, key.length);
+		for(int i = 0; i < n; i++) {
+			int cmp = (buf.get(start + i) & 0xFF) - (key[i] & 0xFF);
+			if(cmp != 0) return cmp;
+		}
+		return length - key.length;
+	}
+
+	private String decode(int start, int length) {
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++) {
+			bytes[i] = buf.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Unsigned lexicographic byte order, the order of the term dictionary */
+	static int compareBytes(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for(int i = 0; i < n; i++) {
+			int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if(cmp != 0) return cmp;
+		}
+		return a.length - b.length;
+	}
+}
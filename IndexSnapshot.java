@@ -0,0 +1,334 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Immutable point-in-time view of a {@link SegmentedIndex}: its segments in
+ * document id order and the documents deleted from each. Document ids are
+ * global, the ids of a segment start at its doc base.
+ *
+ * The collection statistics used for scoring (number of documents, document
+ * frequencies, average document length and the atc norms) only count live
+ * documents across all segments, so scores are the same as in an index
+ * rebuilt from the live documents. Unless the norms stored in the segment
+ * are exact, the atc norms are computed by the first query that needs them,
+ * once per snapshot, and snapshots only searched with other weightings never
+ * compute them.
+ *
+ * The snapshot of one shard of a larger collection can be scored with the
+ * statistics of the whole collection instead, see
+ * {@link #withStatistics(CollectionStatistics)}. Then the number of
+ * documents, the average length, the collection document frequencies and the
+ * norms describe the collection, and everything else this shard.
+ */
+public class IndexSnapshot {
+	private final long generation;
+	private final IndexSegment[] segments;
+	private final BitSet[] deleted;
+	private final int[] docBases;
+	private final int maxDoc;
+	private final int numDocs;
+	private final long total_length;
+	private final double avg_doc_length;
+	// statistics of the whole collection when this is a shard, otherwise null
+	private final CollectionStatistics collection;
+
+	// atc norms under the global statistics, built by the first query needing them unless the stored ones are exact
+	private final FutureTask<double[][]> normsBuilder = new FutureTask<double[][]>(new Callable<double[][]>() {
+		public double[][] call() {
+			return computeNorms();
+		}
+	});
+	private volatile double[][] norms;
+
+	/**
+	 * @param deleted the deleted documents of each segment, which must not be
+	 * modified once the snapshot is created
+	 * @param generation commit generation of the index this snapshot shows
+	 */
+	public IndexSnapshot(IndexSegment[] segments, BitSet[] deleted, long generation) {
+		this.generation = generation;
+		this.segments = segments;
+		this.deleted = deleted;
+		this.docBases = new int[segments.length];
+
+		int max_doc = 0;
+		int num_docs = 0;
+		long total_length = 0;
+		for(int s = 0; s < segments.length; s++) {
+			docBases[s] = max_doc;
+			max_doc += segments[s].numDocs();
+			for(int doc = 0; doc < segments[s].numDocs(); doc++) {
+				if(!deleted[s].get(doc)) {
+					num_docs++;
+					total_length += segments[s].docLength(doc);
+				}
+			}
+		}
+		this.maxDoc = max_doc;
+		this.numDocs = num_docs;
+		this.total_length = total_length;
+		this.avg_doc_length = num_docs > 0 ? (double) total_length / num_docs : 0;
+		this.collection = null;
+	}
+
+	private IndexSnapshot(IndexSnapshot shard, CollectionStatistics collection) {
+		this.generation = shard.generation;
+		this.segments = shard.segments;
+		this.deleted = shard.deleted;
+		this.docBases = shard.docBases;
+		this.maxDoc = shard.maxDoc;
+		this.numDocs = collection.numDocs();
+		this.total_length = collection.totalLength();
+		this.avg_doc_length = numDocs > 0 ? (double) total_length / numDocs : 0;
+		this.collection = collection;
+	}
+
+	/**
+	 * The same documents scored with the statistics of a collection this
+	 * snapshot is a shard of. Scores are then the same as in one index of the
+	 * whole collection.
+	 */
+	public IndexSnapshot withStatistics(CollectionStatistics collection) {
+		return new IndexSnapshot(this, collection);
+	}
+
+	/** Commit generation, increasing whenever the index changes */
+	public long generation() {
+		return generation;
+	}
+
+	public int numSegments() {
+		return segments.length;
+	}
+
+	public IndexSegment segment(int s) {
+		return segments[s];
+	}
+
+	/** Global id of the first document of the segment */
+	public int docBase(int s) {
+		return docBases[s];
+	}
+
+	/** Deleted documents of the segment, by segment local id. Must not be modified. */
+	public BitSet deletedDocs(int s) {
+		return deleted[s];
+	}
+
+	/** One more than the largest global document id, deleted documents included */
+	public int maxDoc() {
+		return maxDoc;
+	}
+
+	/** Number of live documents, of the whole collection for a shard */
+	public int numDocs() {
+		return numDocs;
+	}
+
+	/** Summed length of the live documents, of the whole collection for a shard */
+	public long totalLength() {
+		return total_length;
+	}
+
+	/** Average length of the live documents, of the whole collection for a shard */
+	public double avgDocLength() {
+		return avg_doc_length;
+	}
+
+	public String docName(int doc) {
+		int s = segmentOf(doc);
+		return segments[s].docName(doc - docBases[s]);
+	}
+
+	/** Number of tokens in the document */
+	public int docLength(int doc) {
+		int s = segmentOf(doc);
+		return segments[s].docLength(doc - docBases[s]);
+	}
+	
+	/** Norm of the atc weighted vector of a document, under the global statistics */
+	public double docNorm(int doc) {
+		int s = segmentOf(doc);
+		if(storedNormsExact()) {
+			return segments[s].docNorm(doc - docBases[s]);
+		}
+		double[][] n = norms;
+		if(n == null) {
+			n = buildNorms();
+		}
+		return n[s][doc - docBases[s]];
+	}
+
+	/*
+	 * Only the first caller computes the norms, the others wait for it
+	 */
+	private double[][] buildNorms() {
+		normsBuilder.run();
+		try {
+			norms = normsBuilder.get();
+			return norms;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the atc norms");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/** Ordinal of the term in each segment, -1 where a segment does not contain it */
+	public int[] termOrds(String term) {
+		int[] ords = new int[segments.length];
+		for(int s = 0; s < segments.length; s++) {
+			ords[s] = segments[s].termOrd(term);
+		}
+		return ords;
+	}
+
+	/**
+	 * The terms starting with the prefix that some live document of this
+	 * snapshot contains, in sorted order. The empty prefix lists all terms.
+	 */
+	public List<String> terms(String prefix) {
+		List<String> terms = new ArrayList<>();
+		MultiSegmentTerms walk = new MultiSegmentTerms(segments, prefix);
+		while(walk.next()) {
+			if(docFreq(walk.ords()) > 0) {
+				terms.add(new String(walk.term(), StandardCharsets.UTF_8));
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Number of live documents containing the term, in the whole collection for
+	 * a shard. ords are its ordinals in this snapshot, see {@link #termOrds(String)}.
+	 */
+	public int docFreq(String term, int[] ords) {
+		return collection != null ? collection.docFreq(term) : docFreq(ords);
+	}
+
+	/** Number of live documents of this snapshot containing the term with the given per segment ordinals */
+	public int docFreq(int[] ords) {
+		int df = 0;
+		for(int s = 0; s < segments.length; s++) {
+			if(ords[s] >= 0) {
+				df += liveDocFreq(s, ords[s]);
+			}
+		}
+		return df;
+	}
+
+	/**
+	 * Number of occurrences of the term in live documents, in the whole
+	 * collection for a shard. The postings are decoded to count them.
+	 */
+	public long totalTermFreq(String term, int[] ords) {
+		return collection != null ? collection.totalTermFreq(term) : totalTermFreq(ords);
+	}
+	
+	/** Number of occurrences in live documents of this snapshot of the term with the given per segment ordinals */
+	public long totalTermFreq(int[] ords) {
+		long cf = 0;
+		for(int s = 0; s < segments.length; s++) {
+			if(ords[s] < 0) continue;
+			SegmentPostings postings = segments[s].postings(ords[s]);
+			for(int doc = postings.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = postings.nextDoc()) {
+				if(!deleted[s].get(doc)) {
+					cf += postings.freq();
+				}
+			}
+		}
+		return cf;
+	}
+	
+	/*
+	 * Document frequency in one segment less the deleted documents, found by
+	 * leapfrogging the postings and the tombstones so the cost is bounded by
+	 * the smaller of the two
+	 */
+	private int liveDocFreq(int s, int ord) {
+		int df = segments[s].docFreq(ord);
+		BitSet dead = deleted[s];
+		if(dead.isEmpty()) {
+			return df;
+		}
+		SegmentPostings postings = segments[s].postings(ord);
+		int doc = postings.nextDoc();
+		int d = dead.nextSetBit(0);
+		while(d >= 0 && doc != SegmentPostings.NO_MORE_DOCS) {
+			if(doc < d) {
+				doc = postings.advance(d);
+			} else if(doc > d) {
+				d = dead.nextSetBit(doc);
+			} else {
+				df--;
+				doc = postings.nextDoc();
+				d = dead.nextSetBit(d + 1);
+			}
+		}
+		return df;
+	}
+
+	// a lone segment without deletions was written with exactly these statistics
+	private boolean storedNormsExact() {
+		return collection == null && segments.length == 1 && deleted[0].isEmpty();
+	}
+
+	/*
+	 * Recompute the norms of all live documents by walking the merged dictionary,
+	 * summing the term weights of each document in the same order as SegmentWriter
+	 */
+	private double[][] computeNorms() {
+		double[][] n = new double[segments.length][];
+		for(int s = 0; s < segments.length; s++) {
+			n[s] = new double[segments[s].numDocs()];
+		}
+
+		MultiSegmentTerms terms = new MultiSegmentTerms(segments);
+		while(terms.next()) {
+			int[] ords = terms.ords();
+			double num_docs_containing = collection != null
+					? collection.docFreq(new String(terms.term(), StandardCharsets.UTF_8)) : docFreq(ords);
+			if(num_docs_containing == 0) continue;
+
+			for(int s = 0; s < segments.length; s++) {
+				if(ords[s] < 0) continue;
+				SegmentPostings postings = segments[s].postings(ords[s]);
+				for(int doc = postings.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = postings.nextDoc()) {
+					if(deleted[s].get(doc)) continue;
+					double tf_idf = SegmentWriter.atcWeight(postings.freq(), segments[s].docMaxTf(doc),
+							num_docs_containing, numDocs);
+					n[s][doc] += Math.pow(tf_idf, 2);
+				}
+			}
+		}
+		for(double[] segmentNorms: n) {
+			for(int doc = 0; doc < segmentNorms.length; doc++) {
+				segmentNorms[doc] = Math.sqrt(segmentNorms[doc]);
+			}
+		}
+		return n;
+	}
+
+	private int segmentOf(int doc) {
+		int low = 0;
+		int high = segments.length - 1;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if(docBases[mid] <= doc) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+}
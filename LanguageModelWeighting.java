@@ -0,0 +1,137 @@
+import java.util.Map;
+
+/**
+ * Query likelihood under a document language model smoothed with the
+ * collection model p(t|C) = cf / total length, in the rank equivalent form
+ * that only sums over the query terms a document contains:
+ * <pre>
+ * Dirichlet        sum qtf * log(1 + tf / (mu * p(t|C))) + |q| * log(mu / (|d| + mu))
+ * Jelinek-Mercer   sum qtf * log(1 + (1 - lambda) * tf / |d| / (lambda * p(t|C)))
+ * </pre>
+ * |q| counts the query tokens some document contains. Scores are log
+ * probabilities up to a constant of the query, so they can be negative.
+ */
+public class LanguageModelWeighting extends Weighting {
+	public static final double DEFAULT_MU = 2000;
+	public static final double DEFAULT_LAMBDA = 0.1;
+
+	private final boolean dirichlet;
+	// mu for Dirichlet, lambda for Jelinek-Mercer
+	private final double smoothing;
+
+	/** Dirichlet prior smoothing, named LM.dirichlet */
+	public static LanguageModelWeighting dirichlet(double mu) {
+		if(mu <= 0) {
+			throw new IllegalArgumentException("mu must be positive, not " + mu);
+		}
+		return new LanguageModelWeighting(true, mu);
+	}
+
+	/** Linear interpolation with the collection model, named LM.jm */
+	public static LanguageModelWeighting jelinekMercer(double lambda) {
+		if(lambda <= 0 || lambda >= 1) {
+			throw new IllegalArgumentException("lambda must be between 0 and 1, not " + lambda);
+		}
+		return new LanguageModelWeighting(false, lambda);
+	}
+
+	private LanguageModelWeighting(boolean dirichlet, double smoothing) {
+		this.dirichlet = dirichlet;
+		this.smoothing = smoothing;
+	}
+
+	public String name() {
+		return dirichlet ? "LM.dirichlet" : "LM.jm";
+	}
+
+	@Override
+	public boolean needsTotalTermFreq() {
+		return true;
+	}
+
+	public QueryScorer scorer(IndexSnapshot snapshot, final Map<String, Double> queryTfMap, Map<String, Double> queryDfMap) {
+		final double total_length = snapshot.totalLength();
+		if(!dirichlet) {
+			return new QueryScorer() {
+				public TermScorer term(String token, int docFreq, long totalTermFreq) {
+					double collection_prob = totalTermFreq / total_length;
+					return new JelinekMercerScorer(queryTfMap.get(token), (1 - smoothing) / (smoothing * collection_prob));
+				}
+			};
+		}
+
+		double length = 0;
+		for(String token: queryDfMap.keySet()) {
+			length += queryTfMap.get(token);
+		}
+		final double query_length = length;
+		return new QueryScorer() {
+			public TermScorer term(String token, int docFreq, long totalTermFreq) {
+				double collection_prob = totalTermFreq / total_length;
+				return new DirichletScorer(queryTfMap.get(token), 1 / (smoothing * collection_prob));
+			}
+
+			@Override
+			public double finish(IndexSnapshot snapshot, int doc, double score) {
+				return score + query_length * Math.log(smoothing / (snapshot.docLength(doc) + smoothing));
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return name() + (dirichlet ? "(mu=" : "(lambda=") + smoothing + ")";
+	}
+
+	private static final class DirichletScorer extends TermScorer {
+		private final double query_tf;
+		// 1 / (mu * p(t|C))
+		private final double inverse_prior;
+
+		DirichletScorer(double query_tf, double inverse_prior) {
+			this.query_tf = query_tf;
+			this.inverse_prior = inverse_prior;
+		}
+
+		public double queryWeight() {
+			return query_tf;
+		}
+
+		public double docWeight(int freq, int docLength, int docMaxTf) {
+			return Math.log(1 + freq * inverse_prior);
+		}
+
+		@Override
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			for(int i = 0; i < count; i++) {
+				accumulators[docs[i]] += Math.log(1 + freqs[i] * inverse_prior) * query_tf;
+			}
+		}
+	}
+
+	private static final class JelinekMercerScorer extends TermScorer {
+		private final double query_tf;
+		// (1 - lambda) / (lambda * p(t|C))
+		private final double ratio;
+
+		JelinekMercerScorer(double query_tf, double ratio) {
+			this.query_tf = query_tf;
+			this.ratio = ratio;
+		}
+
+		public double queryWeight() {
+			return query_tf;
+		}
+
+		public double docWeight(int freq, int docLength, int docMaxTf) {
+			return Math.log(1 + ratio * freq / docLength);
+		}
+
+		@Override
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			for(int i = 0; i < count; i++) {
+				accumulators[docs[i]] += Math.log(1 + ratio * freqs[i] / docLengths[i]) * query_tf;
+			}
+		}
+	}
+}
@@ -0,0 +1,469 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Latency histograms, counters and gauges of searching and indexing, shared
+ * by the whole JVM. Metrics are off by default, and then recording costs one
+ * read of a flag: {@link #start()} returns 0 and histograms and counters
+ * ignore what they are given.
+ *
+ * Timing a phase looks like:
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * PHASE_HISTOGRAM.recordSince(start);
+ * </pre>
+ *
+ * Metrics are turned on with {@link #setEnabled(boolean)} or the system
+ * property metrics.enabled=true. When on, they are published as the JMX
+ * MBean InfoRetrieval:type=Metrics, and with the system property
+ * metrics.report.interval (ms) they are also printed periodically, as JSON
+ * if metrics.report.format=json and as text otherwise.
+ */
+public class Metrics {
+	public static final String MBEAN_NAME = "InfoRetrieval:type=Metrics";
+
+	private static volatile boolean enabled = false;
+	private static boolean mbeanRegistered = false;
+	private static ScheduledExecutorService reporter = null;
+
+	private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	static {
+		gauge("jvm.heap.used", new Gauge() {
+			public long value() {
+				return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			}
+		});
+		gauge("jvm.heap.max", new Gauge() {
+			public long value() {
+				MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+				return heap.getMax() >= 0 ? heap.getMax() : heap.getCommitted();
+			}
+		});
+
+		if(Boolean.getBoolean("metrics.enabled")) {
+			setEnabled(true);
+			long interval = Long.getLong("metrics.report.interval", 0);
+			if(interval > 0) {
+				startReporting(interval, System.out, "json".equals(System.getProperty("metrics.report.format")));
+			}
+		}
+	}
+
+	private Metrics() {}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Turns recording on or off, the first time it is turned on the MBean is registered */
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+		if(enabled) {
+			registerMBean();
+		}
+	}
+
+	/** The current time in nanoseconds to time a phase from, or 0 if metrics are off */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** The histogram with the given name, created on first use */
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if(histogram == null) {
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if(existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	/** The counter with the given name, created on first use */
+	public static Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if(counter == null) {
+			counter = new Counter();
+			Counter existing = counters.putIfAbsent(name, counter);
+			if(existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/** Registers a gauge, replacing any gauge of the same name. Gauges are read even when metrics are off. */
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/** Removes a gauge, for instance when the index it measures is closed */
+	public static void removeGauge(String name) {
+		gauges.remove(name);
+	}
+
+	/** Clears all histograms and counters */
+	public static void reset() {
+		for(Histogram histogram: histograms.values()) {
+			histogram.reset();
+		}
+		for(Counter counter: counters.values()) {
+			counter.reset();
+		}
+	}
+
+	/**
+	 * A value read when metrics are reported, like the size of an index
+	 */
+	public interface Gauge {
+		long value();
+	}
+
+	/**
+	 * Count of events, updated only while metrics are on
+	 */
+	public static class Counter {
+		private final AtomicLong count = new AtomicLong();
+
+		public void increment() {
+			add(1);
+		}
+
+		public void add(long n) {
+			if(enabled) {
+				count.addAndGet(n);
+			}
+		}
+
+		public long value() {
+			return count.get();
+		}
+
+		void reset() {
+			count.set(0);
+		}
+	}
+
+	/**
+	 * Histogram of durations in nanoseconds with log-linear buckets like an
+	 * HdrHistogram: each power of two is split into 128 buckets, so
+	 * percentiles are within 1% of the recorded values, from 1ns to hours.
+	 * Recording is lock free.
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKET_BITS = 7;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		// largest value with its own bucket, about 4.9 hours in nanoseconds
+		private static final int MAX_EXPONENT = 44;
+
+		private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/** Records the time since start, unless start is 0 because metrics were off */
+		public void recordSince(long start) {
+			if(start != 0) {
+				record(System.nanoTime() - start);
+			}
+		}
+
+		/** Records a duration, if metrics are on */
+		public void record(long nanos) {
+			if(!enabled) {
+				return;
+			}
+			long value = Math.max(0, nanos);
+			counts.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while(value > (current = max.get()) && !max.compareAndSet(current, value)) {
+				// another thread raised the maximum, compare again
+			}
+		}
+
+		public long count() {
+			return count.get();
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		public double mean() {
+			long n = count.get();
+			return n > 0 ? (double) sum.get() / n : 0;
+		}
+
+		/** Smallest recorded value that at least a fraction p of the values do not exceed, 0 if empty */
+		public long percentile(double p) {
+			long n = count.get();
+			if(n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * n));
+			long seen = 0;
+			for(int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if(seen >= rank) {
+					return Math.min(highestValue(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for(int i = 0; i < counts.length(); i++) {
+				counts.set(i, 0);
+			}
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+
+		// the first SUB_BUCKETS values have a bucket each, then each power of two has SUB_BUCKETS buckets
+		private static int bucket(long value) {
+			if(value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+			int shift = exponent - SUB_BUCKET_BITS;
+			long subBucket = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+			return (shift + 1) * SUB_BUCKETS + (int) (subBucket - SUB_BUCKETS);
+		}
+
+		private static long highestValue(int bucket) {
+			if(bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = bucket / SUB_BUCKETS - 1;
+			long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+			return ((subBucket + 1) << shift) - 1;
+		}
+	}
+
+	/** All metrics as text, one per line, durations in microseconds */
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		for(String name: sorted(histograms.keySet())) {
+			Histogram h = histograms.get(name);
+			text.append(String.format("%-40s count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n",
+					name, h.count(), h.mean() / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3,
+					h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+		}
+		for(String name: sorted(counters.keySet())) {
+			text.append(String.format("%-40s %d%n", name, counters.get(name).value()));
+		}
+		for(String name: sorted(gauges.keySet())) {
+			text.append(String.format("%-40s %d%n", name, gaugeValue(name)));
+		}
+		return text.toString();
+	}
+
+	/** All metrics as a JSON object, durations in microseconds */
+	public static String toJson() {
+		StringBuilder json = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis());
+		json.append(",\"histograms\":{");
+		String separator = "";
+		for(String name: sorted(histograms.keySet())) {
+			Histogram h = histograms.get(name);
+			json.append(separator).append(quote(name)).append(String.format(
+					":{\"count\":%d,\"mean_us\":%.1f,\"p50_us\":%.1f,\"p90_us\":%.1f,\"p99_us\":%.1f,\"p999_us\":%.1f,\"max_us\":%.1f}",
+					h.count(), h.mean() / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3,
+					h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+			separator = ",";
+		}
+		json.append("},\"counters\":{");
+		separator = "";
+		for(String name: sorted(counters.keySet())) {
+			json.append(separator).append(quote(name)).append(':').append(counters.get(name).value());
+			separator = ",";
+		}
+		json.append("},\"gauges\":{");
+		separator = "";
+		for(String name: sorted(gauges.keySet())) {
+			json.append(separator).append(quote(name)).append(':').append(gaugeValue(name));
+			separator = ",";
+		}
+		return json.append("}}").toString();
+	}
+
+	/** Prints the metrics every periodMs on a daemon thread, replacing any earlier reporting */
+	public static synchronized void startReporting(long periodMs, final PrintStream out, final boolean json) {
+		stopReporting();
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-reporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.println(json ? toJson() : toText());
+			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void stopReporting() {
+		if(reporter != null) {
+			reporter.shutdown();
+			reporter = null;
+		}
+	}
+
+	private static long gaugeValue(String name) {
+		Gauge gauge = gauges.get(name);
+		return gauge != null ? gauge.value() : 0;
+	}
+
+	private static List<String> sorted(Iterable<String> names) {
+		List<String> list = new ArrayList<String>();
+		for(String name: names) {
+			list.add(name);
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	static String quote(String s) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if(c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static synchronized void registerMBean() {
+		if(mbeanRegistered) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(MBEAN_NAME));
+			mbeanRegistered = true;
+		} catch (Exception e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * Read only JMX view of the metrics. A histogram shows up as the attributes
+	 * name.count, name.mean_us, name.p50_us, ..., name.max_us.
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+		private static final String[] STATISTICS = {"count", "mean_us", "p50_us", "p90_us", "p99_us", "p999_us", "max_us"};
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			if(counters.containsKey(attribute)) {
+				return counters.get(attribute).value();
+			}
+			if(gauges.containsKey(attribute)) {
+				return gaugeValue(attribute);
+			}
+			int dot = attribute.lastIndexOf('.');
+			Histogram h = dot > 0 ? histograms.get(attribute.substring(0, dot)) : null;
+			if(h != null) {
+				String statistic = attribute.substring(dot + 1);
+				if(statistic.equals("count")) return (double) h.count();
+				if(statistic.equals("mean_us")) return h.mean() / 1e3;
+				if(statistic.equals("p50_us")) return h.percentile(0.5) / 1e3;
+				if(statistic.equals("p90_us")) return h.percentile(0.9) / 1e3;
+				if(statistic.equals("p99_us")) return h.percentile(0.99) / 1e3;
+				if(statistic.equals("p999_us")) return h.percentile(0.999) / 1e3;
+				if(statistic.equals("max_us")) return h.max() / 1e3;
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for(String attribute: attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// left out, like the JMX contract asks
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			if(actionName.equals("reset")) {
+				reset();
+				return null;
+			}
+			if(actionName.equals("toJson")) {
+				return toJson();
+			}
+			throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name: sorted(histograms.keySet())) {
+				for(String statistic: STATISTICS) {
+					attributes.add(new MBeanAttributeInfo(name + "." + statistic, "java.lang.Double",
+							"latency histogram", true, false, false));
+				}
+			}
+			for(String name: sorted(counters.keySet())) {
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+			}
+			for(String name: sorted(gauges.keySet())) {
+				attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "gauge", true, false, false));
+			}
+			MBeanOperationInfo[] operations = {
+					new MBeanOperationInfo("reset", "Clears all histograms and counters",
+							new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+					new MBeanOperationInfo("toJson", "All metrics as JSON",
+							new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+			};
+			return new MBeanInfo(Metrics.class.getName(), "Search and indexing metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+		}
+	}
+}
@@ -1,45 +1,205 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.StopFilter;
-import org.apache.lucene.analysis.en.PorterStemFilter;
-import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.util.CharArraySet;
 
 public class MiniSearchEngine {
-	private HashMap<String, HashMap<String, Double>> docIndex = new HashMap<>();
-	private HashMap<String, Double> docLengths = new HashMap<>();
-	private double avg_doc_length = 0;
-
-	private HashMap<String, Double> idfMap = new HashMap<>();
-	private HashMap<String, HashSet<String>> idfDocMap = new HashMap<>();
+	// index under construction, released once it is written
+	private IndexBuilder builder = new IndexBuilder();
+	private ExternalIndexBuilder externalBuilder = null;
+	
+	// the segments queries are evaluated against, each query reads one snapshot
+	private SegmentedIndex index;
+	private volatile boolean dynamicPruning = false;
+	// BM25 proximity boost window in positions, 0 when off
+	private volatile int proximityWindow = 0;
+	
+	// ranked results of recent queries, null when caching is off
+	private volatile QueryCache<List<String>> queryCache = null;
+	
+	// impact-ordered postings for score-at-a-time queries, null when off
+	private volatile ImpactIndex impactIndex = null;
+	private final Object impactLock = new Object();
+	private ExecutorService impactBuilder = null;
+	private boolean impactRebuilding = false;
+	
+	// parallel batch queries run here unless an executor is given
+	private ExecutorService queryExecutor = null;
+	// score accumulators borrowed by running queries, so concurrency bounds their number
+	private final ConcurrentLinkedQueue<QueryScratch> scratchPool = new ConcurrentLinkedQueue<>();
+	
+	// changes not yet committed, applied in the background every REFRESH_INTERVAL_MS
+	public static final long REFRESH_INTERVAL_MS = 1000;
+	private LinkedHashMap<String, String> pendingDocuments = new LinkedHashMap<>();
+	private HashSet<String> pendingDeletes = new HashSet<>();
+	private final Object refreshLock = new Object();
+	private ScheduledExecutorService refresher = null;
 	
 	private HashSet<String> stopwordsSet = new HashSet<>();
-	private HashSet<String> possible_weightings = new HashSet<>(Arrays.asList("atc.atc", "atn.atn", "ann.bpn", "BM25"));
+	private CharArraySet stopwords;
+	// shared by indexing and queries, keeps a token stream per thread
+	private AnalysisChain analyzer;
+	// weightings queries ask for by name, see setWeighting
+	private final ConcurrentHashMap<String, Weighting> weightings = new ConcurrentHashMap<>();
+	
+	// postings decoded before their block is scored by every weighting
+	static final int SCORE_BLOCK_SIZE = 128;
 	
-	private final double k1 = 1.2;
-	private final double k2 = 100;
-	private final double b = 0.75;
+	// number of files tokenized by each task of a parallel build
+	private static final int FILES_PER_TASK = 256;
+	
+	// recorded only while Metrics are enabled, query totals are per weighting
+	private static final Metrics.Histogram QUERY_TOKENIZE = Metrics.histogram("engine.query.tokenize");
+	private static final Metrics.Histogram QUERY_STATS = Metrics.histogram("engine.query.stats");
+	private static final Metrics.Histogram QUERY_PHRASE = Metrics.histogram("engine.query.phrase");
+	private static final Metrics.Histogram QUERY_SCORE = Metrics.histogram("engine.query.score");
+	private static final Metrics.Histogram QUERY_RANK = Metrics.histogram("engine.query.rank");
+	private static final Metrics.Histogram QUERY_IMPACT = Metrics.histogram("engine.query.impact");
+	private static final Metrics.Histogram IMPACT_BUILD = Metrics.histogram("engine.index.impact.build");
+	private static final Metrics.Counter POSTINGS_SCORED = Metrics.counter("engine.postings.scored");
+	private static final Metrics.Counter DOCS_SCORED = Metrics.counter("engine.docs.scored");
+	private static final Metrics.Counter DOCS_DELETED = Metrics.counter("engine.docs.deleted");
+	private static final Metrics.Histogram INDEX_DOCUMENT = Metrics.histogram("engine.index.document");
+	private static final Metrics.Histogram INDEX_READ = Metrics.histogram("engine.index.document.read");
+	private static final Metrics.Histogram INDEX_ANALYSIS = Metrics.histogram("engine.index.document.analysis");
+	private static final Metrics.Histogram INDEX_UPDATE = Metrics.histogram("engine.index.document.update");
+	private static final Metrics.Counter INDEX_DOCS = Metrics.counter("engine.index.docs");
+	private static final Metrics.Counter INDEX_TOKENS = Metrics.counter("engine.index.tokens");
+	private static final Metrics.Histogram INDEX_BUILD = Metrics.histogram("engine.index.build");
+	private static final Metrics.Histogram INDEX_LOAD_TEXT = Metrics.histogram("engine.index.loadText");
+	private static final Metrics.Histogram INDEX_WRITE = Metrics.histogram("engine.index.write");
+	private static final Metrics.Histogram INDEX_OPEN = Metrics.histogram("engine.index.open");
+	
+	// gauges of this index, registered while it is open
+	private final String gaugePrefix;
+	private final int indexThreads;
+	private final long indexMemoryBudget;
+	private final PostingsCodec codec;
+	private final boolean withPositions;
+	// this engine indexes the files firstFile to endFile - 1 in sorted path order, all if endFile is -1
+	private final int firstFile;
+	private final int endFile;
 	
 	public MiniSearchEngine(String docsPath, String indexDir, String stopDir) {
+		this(docsPath, indexDir, stopDir, 1);
+	}
+	
+	public MiniSearchEngine(String docsPath, String indexDir, String stopDir, int indexThreads) {
+		this(docsPath, indexDir, stopDir, indexThreads, 0);
+	}
+	
+	/**
+	 * @param indexThreads number of threads used if the index has to be built. The
+	 * index is identical to the one built by a single thread.
+	 * @param indexMemoryBudget if positive, the index is built in sorted runs of about
+	 * this many bytes that are merged on disk, for collections larger than the heap
+	 */
+	public MiniSearchEngine(String docsPath, String indexDir, String stopDir, int indexThreads, long indexMemoryBudget) {
+		this(docsPath, indexDir, stopDir, indexThreads, indexMemoryBudget, PostingsCodec.DEFAULT);
+	}
+	
+	/**
+	 * @param codec encoding of the postings if the index has to be built. An existing
+	 * index is read with the codec it was written with.
+	 */
+	public MiniSearchEngine(String docsPath, String indexDir, String stopDir, int indexThreads, long indexMemoryBudget,
+			PostingsCodec codec) {
+		this(docsPath, indexDir, stopDir, indexThreads, indexMemoryBudget, codec, false);
+	}
+	
+	/**
+	 * @param withPositions store token positions if the index has to be built, which
+	 * phrase and proximity queries and the BM25 proximity boost need. An existing
+	 * index keeps whatever it was built with, see {@link #hasPositions()}.
+	 */
+	public MiniSearchEngine(String docsPath, String indexDir, String stopDir, int indexThreads, long indexMemoryBudget,
+			PostingsCodec codec, boolean withPositions) {
+		this(docsPath, indexDir, stopDir, indexThreads, indexMemoryBudget, codec, withPositions, 0, -1);
+	}
+	
+	/**
+	 * Opens one shard of a collection, see {@link ShardedSearchEngine}. If its index has
+	 * to be built, the files under docsPath are split in sorted path order into numShards
+	 * contiguous ranges of about the same size, and the shard-th range is indexed.
+	 */
+	public static MiniSearchEngine shard(String docsPath, String indexDir, String stopDir, int shard, int numShards,
+			int indexThreads, long indexMemoryBudget, PostingsCodec codec, boolean withPositions) {
+		if(shard < 0 || shard >= numShards) {
+			throw new IllegalArgumentException("No shard " + shard + " of " + numShards);
+		}
+		int[] range = shardRange(listFiles(new File(docsPath)).size(), shard, numShards);
+		return files(docsPath, indexDir, stopDir, range[0], range[1], indexThreads, indexMemoryBudget, codec,
+				withPositions);
+	}
+	
+	/**
+	 * Opens the index of the files from firstFile to endFile - 1 under docsPath
+	 * in sorted path order, building it from those files if it does not exist
+	 */
+	public static MiniSearchEngine files(String docsPath, String indexDir, String stopDir, int firstFile, int endFile,
+			int indexThreads, long indexMemoryBudget, PostingsCodec codec, boolean withPositions) {
+		if(firstFile < 0 || endFile < firstFile) {
+			throw new IllegalArgumentException("Bad file range " + firstFile + " to " + endFile);
+		}
+		return new MiniSearchEngine(docsPath, indexDir, stopDir, indexThreads, indexMemoryBudget, codec, withPositions,
+				firstFile, endFile);
+	}
+	
+	/** First and end file of the shard-th of numShards contiguous ranges of about the same size */
+	static int[] shardRange(int numFiles, int shard, int numShards) {
+		return new int[] {(int) ((long) numFiles * shard / numShards), (int) ((long) numFiles * (shard + 1) / numShards)};
+	}
+	
+	/** The files under a directory in the sorted path order document ids follow */
+	static List<File> listFiles(File docDir) {
+		List<File> files = new ArrayList<>();
+		collectFiles(docDir, files);
+		return files;
+	}
+	
+	private MiniSearchEngine(String docsPath, String indexDir, String stopDir, int indexThreads, long indexMemoryBudget,
+			PostingsCodec codec, boolean withPositions, int firstFile, int endFile) {
+		this.firstFile = firstFile;
+		this.endFile = endFile;
+		this.indexThreads = indexThreads;
+		this.indexMemoryBudget = indexMemoryBudget;
+		this.codec = codec;
+		this.withPositions = withPositions;
+		for(Weighting weighting: Weighting.defaults()) {
+			weightings.put(weighting.name(), weighting);
+		}
+		
 		// Check whether docsPath is valid
 		if (docsPath == null || docsPath.isEmpty()) {
 			System.err.println("Document directory cannot be null");
@@ -66,153 +226,650 @@ public class MiniSearchEngine {
 				e1.printStackTrace();
 			}
 		}
+		stopwords = new CharArraySet(stopwordsSet, true);
+		analyzer = AnalysisChain.miniSearchEngine(stopwords);
 
 		// build index if it doesn't exist, otherwise load index from file
-		File indexFile = new File(indexDir + "/dd_index.txt");
-		if (!indexFile.exists()) {
-			buildIndex(docDir);
+		File indexFile = new File(indexDir + "/dd_index.bin");
+		if (!SegmentedIndex.exists(new File(indexDir))) {
+			indexFile.getParentFile().mkdirs();
+			// migrate an index in the old text format, otherwise index the documents
+			File textIndexFile = new File(indexDir + "/dd_index.txt");
+			long start = Metrics.start();
+			if (textIndexFile.exists()) {
+				loadIndexFile(textIndexFile);
+				INDEX_LOAD_TEXT.recordSince(start);
+			} else {
+				builder = new IndexBuilder(withPositions);
+				if (indexMemoryBudget > 0) {
+					externalBuilder = new ExternalIndexBuilder(indexFile, indexMemoryBudget, codec, withPositions);
+				}
+				buildIndex(docDir);
+				INDEX_BUILD.recordSince(start);
+			}
 			
-			writeIndexFile(indexFile);
+			try {
+				start = Metrics.start();
+				writeIndexFile(indexFile);
+				INDEX_WRITE.recordSince(start);
+				reportPostingsSize(indexFile);
+			} catch (IOException e) {
+				System.out.println("Could not write index '" + indexFile.getAbsolutePath() + "': " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		
+		try {
+			long start = Metrics.start();
+			index = SegmentedIndex.open(new File(indexDir));
+			INDEX_OPEN.recordSince(start);
+		} catch (IOException e) {
+			System.out.println("Could not open index '" + indexDir + "': " + e.getMessage());
+			System.exit(1);
+		}
+		gaugePrefix = "engine.index[" + indexDir + "]";
+		registerGauges(new File(indexDir));
+	}
+	
+	private void registerGauges(final File indexDir) {
+		Metrics.gauge(gaugePrefix + ".docs", new Metrics.Gauge() {
+			public long value() {
+				return index.snapshot().numDocs();
+			}
+		});
+		Metrics.gauge(gaugePrefix + ".segments", new Metrics.Gauge() {
+			public long value() {
+				return index.snapshot().numSegments();
+			}
+		});
+		Metrics.gauge(gaugePrefix + ".bytes", new Metrics.Gauge() {
+			public long value() {
+				long bytes = 0;
+				File[] files = indexDir.listFiles();
+				if(files != null) {
+					for(File file: files) {
+						bytes += file.length();
+					}
+				}
+				return bytes;
+			}
+		});
+	}
+	
+	/**
+	 * Caches the results of up to capacity queries, keyed on the analyzed query
+	 * tokens in any order, the weighting and the number of results. Index updates
+	 * invalidate the cache. Cached results are unmodifiable. 0 turns caching off.
+	 */
+	public void setQueryCache(int capacity) {
+		queryCache = capacity > 0 ? new QueryCache<List<String>>(capacity) : null;
+	}
+	
+	/** The result cache with its hit, miss and eviction counters, or null if caching is off */
+	public QueryCache<List<String>> getQueryCache() {
+		return queryCache;
+	}
+	
+	/**
+	 * Enables Block-Max WAND dynamic pruning for BM25 queries. Rankings are the
+	 * same as with exhaustive evaluation, but documents that cannot enter the
+	 * top results are skipped.
+	 */
+	public void setDynamicPruning(boolean dynamicPruning) {
+		this.dynamicPruning = dynamicPruning;
+	}
+	
+	/**
+	 * Registers a weighting under its name, replacing the one registered
+	 * before, so queries can ask for it. The built in weightings are
+	 * registered from the start, see {@link Weighting#defaults()}. Cached
+	 * results of the weighting it replaces are not returned any more.
+	 */
+	public void setWeighting(Weighting weighting) {
+		weightings.put(weighting.name(), weighting);
+	}
+	
+	/** The weighting registered under the name */
+	public Weighting getWeighting(String name) {
+		Weighting weighting = weightings.get(name);
+		if(weighting == null) {
+			throw new IllegalArgumentException("Unknown weighting " + name);
+		}
+		return weighting;
+	}
+	
+	/**
+	 * The analysis chain of documents and queries, so a Lucene index can be
+	 * built and searched with the same tokens, see {@link WeightingSimilarity}
+	 */
+	public Analyzer getAnalyzer() {
+		return analyzer;
+	}
+	
+	/** Registers BM25 with other parameters, see {@link BM25Weighting#BM25Weighting(double, double, double)} */
+	public void setBM25Parameters(double k1, double b, double k2) {
+		setWeighting(new BM25Weighting(k1, b, k2));
+	}
+	
+	/**
+	 * Builds impact-ordered postings of the current snapshot for
+	 * {@link #searchImpactOrdered}, with the document side of the weighting
+	 * quantized to impacts of the given number of bits, see {@link ImpactIndex}.
+	 * After the index changes, the next impact-ordered query starts a rebuild in
+	 * the background, and queries read the old impacts and snapshot until it is
+	 * done. A null weighting drops them.
+	 * 
+	 * @param weighting name of a SMART weighting or of BM25, the only ones
+	 * whose scores are sums of a query weight times a document weight
+	 * @param bits from 1 to 16, more bits rank closer to the exact scores
+	 */
+	public void setImpactOrdered(String weighting, int bits) {
+		ImpactIndex impacts = weighting != null ? buildImpactIndex(index.snapshot(), getWeighting(weighting), bits) : null;
+		synchronized(impactLock) {
+			impactIndex = impacts;
+			if(impacts != null && impactBuilder == null) {
+				impactBuilder = Executors.newSingleThreadExecutor(daemonThreads("impact-builder"));
+			}
+		}
+	}
+	
+	/** The impact-ordered postings queries currently read, null when off */
+	public ImpactIndex getImpactIndex() {
+		return impactIndex;
+	}
+	
+	/**
+	 * Ranks the documents for a query score-at-a-time over the impact-ordered
+	 * postings, highest impacts first, and stops early once postingsBudget
+	 * postings are scored or the timeout has passed, whichever comes first.
+	 * This bounds the work and latency of a query whatever its terms. The
+	 * result tells whether the ranking is provably the one of scoring every
+	 * posting. Scores are those of the quantized impacts. Phrases are not
+	 * supported, and neither is the proximity boost.
+	 * 
+	 * @param postingsBudget 0 for no limit
+	 * @param timeout 0 for no limit
+	 */
+	public ImpactIndex.Result searchImpactOrdered(String query, int limit, long postingsBudget, long timeout, TimeUnit unit) {
+		long deadline = 0;
+		if(timeout > 0) {
+			// 0 means no deadline
+			deadline = (System.nanoTime() + unit.toNanos(timeout)) | 1;
+		}
+		long start = Metrics.start();
+		ImpactIndex impacts = currentImpactIndex();
+		if(impacts == null) {
+			throw new IllegalStateException("Impact-ordered evaluation is off, see setImpactOrdered");
+		}
+		ArrayList<PhraseQuery> phrases = new ArrayList<>();
+		ArrayList<String> queryTokens = parseQuery(query, phrases);
+		if(!phrases.isEmpty()) {
+			throw new IllegalArgumentException("Phrases are not supported by impact-ordered evaluation");
+		}
+		
+		// query term weights under the statistics the impacts were computed with
+		IndexSnapshot snapshot = impacts.snapshot();
+		Weighting weighting = impacts.weighting();
+		HashMap<String, Double> queryTfMap = countTokens(queryTokens);
+		HashMap<String, Double> queryDfMap = new HashMap<>();
+		ArrayList<String> terms = new ArrayList<>();
+		for(String token: queryTfMap.keySet()) {
+			int id = impacts.termId(token);
+			if(id >= 0) {
+				queryDfMap.put(token, (double) impacts.docFreq(id));
+				terms.add(token);
+			}
+		}
+		BM25Scorer bm25 = null;
+		SmartWeighting.QueryVector queryVector = null;
+		if(weighting instanceof BM25Weighting) {
+			bm25 = ((BM25Weighting) weighting).scorer(snapshot);
+		} else {
+			queryVector = ((SmartWeighting) weighting).queryVector(queryTfMap, queryDfMap, snapshot.numDocs());
+		}
+		int[] termIds = new int[terms.size()];
+		double[] queryWeights = new double[terms.size()];
+		for(int t = 0; t < termIds.length; t++) {
+			String token = terms.get(t);
+			termIds[t] = impacts.termId(token);
+			if(bm25 != null) {
+				queryWeights[t] = bm25.queryPart(queryTfMap.get(token));
+			} else {
+				queryWeights[t] = queryVector.weight(token);
+				if(((SmartWeighting) weighting).isCosine()) {
+					// the document norms are in the impacts
+					queryWeights[t] /= queryVector.norm();
+				}
+			}
+		}
+		
+		ImpactIndex.Result result = impacts.search(termIds, queryWeights, limit, postingsBudget, deadline);
+		QUERY_IMPACT.recordSince(start);
+		return result;
+	}
+	
+	/*
+	 * The impact-ordered postings, starting a rebuild if the index changed since they were built
+	 */
+	private ImpactIndex currentImpactIndex() {
+		final ImpactIndex impacts = impactIndex;
+		if(impacts == null || impacts.snapshot().generation() == index.snapshot().generation()) {
+			return impacts;
+		}
+		synchronized(impactLock) {
+			if(impactRebuilding || impactBuilder.isShutdown()) {
+				return impacts;
+			}
+			impactRebuilding = true;
+			impactBuilder.submit(new Runnable() {
+				public void run() {
+					ImpactIndex rebuilt = null;
+					try {
+						rebuilt = buildImpactIndex(index.snapshot(), impacts.weighting(), impacts.bits());
+					} catch (RuntimeException e) {
+						System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+					}
+					synchronized(impactLock) {
+						impactRebuilding = false;
+						// unless the settings changed in the meantime
+						if(rebuilt != null && impactIndex == impacts) {
+							impactIndex = rebuilt;
+						}
+					}
+				}
+			});
+		}
+		return impacts;
+	}
+	
+	private ImpactIndex buildImpactIndex(IndexSnapshot snapshot, Weighting weighting, int bits) {
+		long start = Metrics.start();
+		ImpactIndex.Weights weights;
+		if(weighting instanceof BM25Weighting) {
+			final BM25Scorer bm25 = ((BM25Weighting) weighting).scorer(snapshot);
+			weights = new ImpactIndex.Weights() {
+				public double weight(IndexSnapshot snapshot, int doc, int freq, int docLength, int docMaxTf, int docFreq) {
+					return bm25.score(bm25.idf(docFreq), bm25.tfPart(freq, bm25.lengthNorm(docLength)), 1);
+				}
+			};
+		} else if(weighting instanceof SmartWeighting) {
+			final SmartWeighting smart = (SmartWeighting) weighting;
+			weights = new ImpactIndex.Weights() {
+				public double weight(IndexSnapshot snapshot, int doc, int freq, int docLength, int docMaxTf, int docFreq) {
+					double weight = smart.docWeight(freq, docMaxTf, docFreq, snapshot.numDocs());
+					return smart.isCosine() ? weight / snapshot.docNorm(doc) : weight;
+				}
+			};
 		} else {
-			loadIndexFile(indexFile);
+			throw new IllegalArgumentException("No impact-ordered evaluation with " + weighting.name());
+		}
+		ImpactIndex impacts = ImpactIndex.build(snapshot, weighting, weights, bits);
+		IMPACT_BUILD.recordSince(start);
+		return impacts;
+	}
+	
+	/** Whether the index stores token positions */
+	public boolean hasPositions() {
+		return index.hasPositions();
+	}
+	
+	/**
+	 * Adds a term proximity boost to BM25 scores, for pairs of query terms at most
+	 * window positions apart, see {@link ProximityScorer}. 0 turns it off. BM25
+	 * queries are evaluated exhaustively while it is on. Needs an index with
+	 * positions.
+	 */
+	public void setProximityBoost(int window) {
+		if(window > 0 && !hasPositions()) {
+			throw new IllegalStateException("The proximity boost needs an index with positions");
+		}
+		this.proximityWindow = Math.max(window, 0);
+	}
+	
+	/**
+	 * Returns the names of the best documents for a query, at most limit of them,
+	 * or an empty list if the query has no indexed tokens. Safe to call from any
+	 * number of threads: each query reads the index snapshot current when it starts.
+	 * 
+	 * Text in double quotes is an exact phrase, and "..."~N asks for the terms within
+	 * N other words of each other in any order. Only documents matching every phrase
+	 * are returned, and phrase terms are scored like the other query terms. Phrases
+	 * of more than one term need an index with positions.
+	 * 
+	 * @param weighting name of a registered weighting, like atc.atc, atn.atn,
+	 * ann.bpn, BM25, BM25F, LM.dirichlet or LM.jm, see {@link #setWeighting(Weighting)}
+	 */
+	public List<String> search(String query, String weighting, int limit) {
+		Weighting resolved = getWeighting(weighting);
+		long start = Metrics.start();
+		List<String> results = makeQuery(query, resolved, limit);
+		if(start != 0) {
+			Metrics.histogram("engine.query." + weighting).recordSince(start);
+		}
+		return results == null ? new ArrayList<String>() : results;
+	}
+	
+	/**
+	 * Runs the queries in parallel on the query executor and returns their results
+	 * in query order.
+	 */
+	public List<List<String>> searchBatch(List<String> queries, String weighting, int limit) throws InterruptedException {
+		return searchBatch(queries, weighting, limit, queryExecutor());
+	}
+	
+	/**
+	 * Runs the queries in parallel on the given executor, which may use platform or
+	 * virtual threads, and returns their results in query order.
+	 */
+	public List<List<String>> searchBatch(List<String> queries, final String weighting, final int limit,
+			ExecutorService executor) throws InterruptedException {
+		List<Future<List<String>>> futures = new ArrayList<>();
+		for(final String query: queries) {
+			futures.add(executor.submit(new Callable<List<String>>() {
+				public List<String> call() {
+					return search(query, weighting, limit);
+				}
+			}));
+		}
+		
+		List<List<String>> results = new ArrayList<>();
+		try {
+			for(Future<List<String>> future: futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for(Future<List<String>> future: futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Sets the executor used by batch queries. By default a pool with a thread per
+	 * processor is created on first use.
+	 */
+	public synchronized void setQueryExecutor(ExecutorService executor) {
+		this.queryExecutor = executor;
+	}
+	
+	private synchronized ExecutorService queryExecutor() {
+		if(queryExecutor == null) {
+			queryExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					daemonThreads("query-worker"));
+		}
+		return queryExecutor;
+	}
+	
+	/**
+	 * Adds a document, replacing any document with the same name. Changes become
+	 * searchable at the next refresh, at most REFRESH_INTERVAL_MS later.
+	 */
+	public synchronized void addDocument(String docName, String contents) {
+		pendingDocuments.remove(docName);
+		pendingDocuments.put(docName, contents);
+		startRefresher();
+	}
+	
+	/** Replaces the document with the given name, documents are identified by name */
+	public void updateDocument(String docName, String contents) {
+		addDocument(docName, contents);
+	}
+	
+	public synchronized void deleteDocument(String docName) {
+		pendingDocuments.remove(docName);
+		pendingDeletes.add(docName);
+		startRefresher();
+	}
+	
+	/**
+	 * Commits the pending changes to a new delta segment and tombstones, and makes
+	 * them visible to queries started afterwards. Running queries are not affected.
+	 */
+	public void refresh() throws IOException {
+		synchronized(refreshLock) {
+			LinkedHashMap<String, String> documents;
+			HashSet<String> deletes;
+			synchronized(this) {
+				documents = pendingDocuments;
+				deletes = pendingDeletes;
+				pendingDocuments = new LinkedHashMap<>();
+				pendingDeletes = new HashSet<>();
+			}
+			if(documents.isEmpty() && deletes.isEmpty()) return;
+			
+			IndexBuilder added = new IndexBuilder(index.hasPositions());
+			for(Map.Entry<String, String> document: documents.entrySet()) {
+				indexDocument(document.getKey(), new StringReader(document.getValue()), added);
+			}
+			index.commit(added, deletes);
+		}
+	}
+	
+	/** Commits pending changes and waits for background merges */
+	public void close() throws IOException {
+		synchronized(this) {
+			if(refresher != null) {
+				refresher.shutdown();
+			}
+		}
+		synchronized(impactLock) {
+			if(impactBuilder != null) {
+				impactBuilder.shutdown();
+			}
 		}
+		refresh();
+		index.close();
+		analyzer.close();
+		Metrics.removeGauge(gaugePrefix + ".docs");
+		Metrics.removeGauge(gaugePrefix + ".segments");
+		Metrics.removeGauge(gaugePrefix + ".bytes");
+	}
+	
+	private void startRefresher() {
+		if(refresher != null) return;
+		refresher = Executors.newSingleThreadScheduledExecutor(daemonThreads("index-refresher"));
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refresh();
+				} catch (IOException e) {
+					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+				}
+			}
+		}, REFRESH_INTERVAL_MS, REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+	
+	// background threads must not keep the JVM alive
+	static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
 	}
 	
 	/**
-	 * Indexes the given file using the given writer, or if a directory is given,
-	 * recurses over files and directories found under the given directory.
+	 * Indexes all files found under the given directory, or a range of them,
+	 * in sorted path order, on one thread or in parallel.
 	 */
 	private void buildIndex(File file) {
-		buildIndexRecursive(file);
-		avg_doc_length /= docIndex.size();
+		List<File> files = listFiles(file);
+		if(endFile >= 0) {
+			files = files.subList(Math.min(firstFile, files.size()), Math.min(endFile, files.size()));
+		}
 		
-		// build the idf map
-		for(String token: idfDocMap.keySet()) {
-			idfMap.put(token, (double) idfDocMap.get(token).size());
+		if(indexThreads <= 1 && externalBuilder == null) {
+			for(File f: files) {
+				indexDocument(f, builder);
+			}
+		} else {
+			buildIndexInRanges(files);
+		}
+	}
+	
+	/*
+	 * Tokenize contiguous ranges of files into partial indexes on a thread pool, and
+	 * append them in file order so document ids are the same as in a serial build
+	 */
+	private void buildIndexInRanges(List<File> files) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(indexThreads, 1));
+		try {
+			List<Future<IndexBuilder>> partials = new ArrayList<>();
+			for(int start = 0; start < files.size(); start += FILES_PER_TASK) {
+				final List<File> range = files.subList(start, Math.min(start + FILES_PER_TASK, files.size()));
+				partials.add(pool.submit(new Callable<IndexBuilder>() {
+					public IndexBuilder call() {
+						IndexBuilder partial = new IndexBuilder(withPositions);
+						for(File f: range) {
+							indexDocument(f, partial);
+						}
+						return partial;
+					}
+				}));
+			}
+			
+			for(Future<IndexBuilder> partial: partials) {
+				if(externalBuilder != null) {
+					externalBuilder.append(partial.get());
+				} else {
+					builder.append(partial.get());
+				}
+			}
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Indexing was interrupted");
+			System.exit(1);
+		} catch (ExecutionException e) {
+			System.out.println(" caught a " + e.getCause().getClass() + "\n with message: " + e.getCause().getMessage());
+			System.exit(1);
+		} finally {
+			pool.shutdown();
 		}
 	}
 
-	// Recursively builds index from files in directory
-	private void buildIndexRecursive(File file) {		
+	// Recursively collects the files to index under a directory
+	private static void collectFiles(File file, List<File> files) {
 		if (file.canRead()) {
 			if (file.isDirectory()) {
-				String[] files = file.list();
-				if (files != null) {
-					for (int i = 0; i < files.length; i++) {
-						buildIndexRecursive(new File(file, files[i]));
+				String[] names = file.list();
+				if (names != null) {
+					// sorted so that document ids, and therefore tie-breaking, are deterministic
+					Arrays.sort(names);
+					for (int i = 0; i < names.length; i++) {
+						collectFiles(new File(file, names[i]), files);
 					}
 				}
 			} else {
-				String fname = file.getName();
-				String docName = fname.substring(0, fname.indexOf("."));
-				
-				docIndex.put(docName, new HashMap<String, Double>());
-				HashMap<String, Double> tfMap = docIndex.get(docName);
-				
-				try {
-					BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-					TokenStream stream = new StandardTokenizer(br);
-					stream = new PorterStemFilter(stream);
-					stream = new StopFilter(stream, new CharArraySet(stopwordsSet, true));
-					stream.reset();
-					
-					double num_tokens = 0;
-					while(stream.incrementToken()) {
-						String token = stream.getAttribute(CharTermAttribute.class).toString().toLowerCase();
-						num_tokens++;
-						
-						// increment the token frequency for this doc's tfMap
-						if(!tfMap.containsKey(token)) {
-							tfMap.put(token, 0.0);
-						}
-						tfMap.put(token, tfMap.get(token)+1);
-						
-						// add this document to the inverse term set
-						if(!idfDocMap.containsKey(token)) {
-							idfDocMap.put(token, new HashSet<String>());
-						}
-						idfDocMap.get(token).add(docName);
-					}
-					docLengths.put(docName, num_tokens);
-					avg_doc_length += num_tokens;
-					
-					stream.close();
-				} catch (IOException e) {
-					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
-				}
+				files.add(file);
 			}
 		}
 	}
 	
 	/*
-	 * Write the built index to a file
+	 * Tokenize one document file into the given index
 	 */
-	private void writeIndexFile(File outputFile) {
+	private void indexDocument(File file, IndexBuilder target) {
+		String fname = file.getName();
+		String docName = fname.substring(0, fname.indexOf("."));
+		
 		try {
-			outputFile.createNewFile();
-			BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-
-			for(String doc: docIndex.keySet()) {
-				bw.write(doc + ":");
-				for(String word: docIndex.get(doc).keySet()) {
-					bw.write(word + " " + docIndex.get(doc).get(word).intValue() + ";");
+			indexDocument(docName, new InputStreamReader(new FileInputStream(file)), target);
+		} catch (FileNotFoundException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
+	}
+	
+	private void indexDocument(String docName, Reader reader, IndexBuilder target) {
+		// with metrics on, the time is split into reading, analysis and index updates
+		long start = Metrics.start();
+		TimedReader timedReader = null;
+		if(start != 0) {
+			timedReader = new TimedReader(reader);
+			reader = timedReader;
+		}
+		long update_nanos = 0;
+		int num_tokens = 0;
+		
+		try {
+			TokenStream stream = analyzer.tokenStream("contents", new BufferedReader(reader));
+			try {
+				// terms are looked up straight from the token buffer
+				CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+				// removed stop words leave a gap in the positions
+				PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+				stream.reset();
+				
+				target.startDocument(docName);
+				int position = -1;
+				while(stream.incrementToken()) {
+					long update_start = start != 0 ? System.nanoTime() : 0;
+					position += increment.getPositionIncrement();
+					target.addToken(term.buffer(), term.length(), position);
+					if(update_start != 0) {
+						update_nanos += System.nanoTime() - update_start;
+					}
+					num_tokens++;
 				}
-				bw.write("\n");
+				target.endDocument();
+				stream.end();
+			} finally {
+				stream.close();
 			}
-			bw.write("IDF_START\n");
-			for(String term: idfMap.keySet()) {
-				bw.write(term + " " + idfMap.get(term).intValue() + "\n");
+			
+			if(start != 0) {
+				long total_nanos = System.nanoTime() - start;
+				INDEX_DOCUMENT.record(total_nanos);
+				INDEX_READ.record(timedReader.nanos);
+				INDEX_UPDATE.record(update_nanos);
+				INDEX_ANALYSIS.record(total_nanos - timedReader.nanos - update_nanos);
+				INDEX_DOCS.increment();
+				INDEX_TOKENS.add(num_tokens);
 			}
-			bw.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
 		}
 	}
 	
+	/*
+	 * Read an index in the old text format. The document frequencies after
+	 * IDF_START are not needed, they are the sizes of the rebuilt postings.
+	 */
 	private void loadIndexFile(File indexFile) {
 		try {
 			BufferedReader br = new BufferedReader(new FileReader(indexFile));
 			String line = "";
-			// indicates if we are parsing idf or document index
-			boolean parsing_idf = false;
 			while((line = br.readLine()) != null) {
 				if(line.trim().equals("IDF_START")) {
-					parsing_idf = true;
-					continue;
+					break;
 				}
 				
-				if(parsing_idf) {
-					String[] tokens = line.split(" ");
-					if(tokens.length < 2) continue;
-					
-					idfMap.put(tokens[0].trim(), Double.parseDouble(tokens[1].trim()));
-				} else {
-					String[] docToken = line.split(":");
-					if(docToken.length < 2) continue;
-					
-					// parse document
-					String docName = docToken[0].trim();
-					docIndex.put(docName, new HashMap<String, Double>());
-					HashMap<String, Double> tfMap = docIndex.get(docName);
+				String[] docToken = line.split(":");
+				if(docToken.length < 2) continue;
+				
+				// parse document
+				builder.startDocument(docToken[0].trim());
+				
+				// parse word,frequency tuples
+				String[] tupleTokens = docToken[1].split(";");
+				for(String tuple: tupleTokens) {
+					String[] wordFreq = tuple.split(" ");
+					if(wordFreq.length < 2) continue;
 					
-					// parse word,frequency tuples
-					String[] tupleTokens = docToken[1].split(";");
-					double docLength = 0;
-					for(String tuple: tupleTokens) {
-						String[] wordFreq = tuple.split(" ");
-						if(wordFreq.length < 2) continue;
-						
-						String word = wordFreq[0].trim();
-						double freq = Double.parseDouble(wordFreq[1].trim());
-						tfMap.put(word, freq);
-						
-						docLength += freq;
-					}
-					docLengths.put(docName, docLength);
-					avg_doc_length += docLength;
+					builder.addTerm(wordFreq[0].trim(), Integer.parseInt(wordFreq[1].trim()));
 				}
+				builder.endDocument();
 			}
-			avg_doc_length /= docIndex.size();
 			br.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -220,40 +877,108 @@ public class MiniSearchEngine {
 	}
 	
 	/*
-	 * Tokenize the query with Lucene
+	 * Write the index in the binary segment format
 	 */
-	private ArrayList<String> tokenizeQuery(String query) {
+	private void writeIndexFile(File outputFile) throws IOException {
+		if(externalBuilder != null) {
+			externalBuilder.write();
+		} else {
+			SegmentWriter.write(outputFile, builder, codec);
+		}
+		
+		// queries only use the segment from here on
+		builder = null;
+		externalBuilder = null;
+	}
+	
+	/*
+	 * Print the size of the postings of a newly written index
+	 */
+	private static void reportPostingsSize(File indexFile) throws IOException {
+		IndexSegment segment = IndexSegment.open(indexFile);
+		long postings = segment.numPostings();
+		long bytes = segment.postingsBytes();
+		System.out.println(postings + " postings in " + bytes + " bytes, "
+				+ String.format("%.2f", postings > 0 ? (double) bytes / postings : 0.0)
+				+ " bytes/posting (" + segment.codec().name() + ")");
+		System.out.println(segment.numTerms() + " terms in " + segment.termsBytes() + " bytes, "
+				+ String.format("%.2f", segment.numTerms() > 0 ? (double) segment.termsBytes() / segment.numTerms() : 0.0)
+				+ " bytes/term (front coded)");
+		if(segment.hasPositions()) {
+			long positions = segment.numPositions();
+			bytes = segment.positionsBytes();
+			System.out.println(positions + " positions in " + bytes + " bytes, "
+					+ String.format("%.2f", positions > 0 ? (double) bytes / positions : 0.0) + " bytes/position");
+		}
+	}
+	
+	/*
+	 * Split the query into its tokens and its quoted phrases, "..." or "..."~N.
+	 * Phrase tokens are query tokens too, an unmatched quote is plain text.
+	 */
+	private ArrayList<String> parseQuery(String query, List<PhraseQuery> phrases) {
 		ArrayList<String> queryTokens = new ArrayList<>();
-		try {
-			BufferedReader br = new BufferedReader(new StringReader(query));
-			TokenStream stream = new StandardTokenizer(br);
-			stream = new PorterStemFilter(stream);
-			stream = new StopFilter(stream, new CharArraySet(stopwordsSet, true));
-			stream.reset();
-
-			while(stream.incrementToken()) {
-				String token = stream.getAttribute(CharTermAttribute.class).toString().toLowerCase();
-				queryTokens.add(token);
+		StringBuilder text = new StringBuilder();
+		int i = 0;
+		while(i < query.length()) {
+			int open = query.indexOf('"', i);
+			int close = open < 0 ? -1 : query.indexOf('"', open + 1);
+			if(close < 0) {
+				text.append(query, i, query.length());
+				break;
 			}
-			stream.close();
-		} catch (IOException e) {
-			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			text.append(query, i, open).append(' ');
+			i = close + 1;
+			
+			int distance = -1;
+			if(i < query.length() && query.charAt(i) == '~') {
+				int end = i + 1;
+				while(end < query.length() && Character.isDigit(query.charAt(end))) {
+					end++;
+				}
+				if(end > i + 1 && end - i <= 10) {
+					distance = Integer.parseInt(query.substring(i + 1, end));
+					i = end;
+				}
+			}
+			
+			ArrayList<String> phraseTokens = new ArrayList<>();
+			ArrayList<Integer> positions = new ArrayList<>();
+			tokenize(query.substring(open + 1, close), phraseTokens, positions);
+			if(phraseTokens.isEmpty()) continue;
+			queryTokens.addAll(phraseTokens);
+			phrases.add(distance < 0 ? PhraseQuery.exact(phraseTokens, positions) : PhraseQuery.near(phraseTokens, distance));
 		}
+		tokenize(text.toString(), queryTokens, null);
 		return queryTokens;
 	}
 	
 	/*
-	 * Return the maximum value of entries in a map
+	 * Tokenize query text with Lucene, adding the tokens and, unless null, their positions
 	 */
-	private double getMaxInMap(HashMap<String, Double> map) {
-		double max = 0;
-		for(String token: map.keySet()) {
-			double tf = map.get(token);
-			if(tf > max) {
-				max = tf;
+	private void tokenize(String text, List<String> tokens, List<Integer> positions) {
+		try {
+			TokenStream stream = analyzer.tokenStream("contents", new StringReader(text));
+			try {
+				CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+				PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+				stream.reset();
+
+				int position = -1;
+				while(stream.incrementToken()) {
+					position += increment.getPositionIncrement();
+					tokens.add(term.toString());
+					if(positions != null) {
+						positions.add(position);
+					}
+				}
+				stream.end();
+			} finally {
+				stream.close();
 			}
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
 		}
-		return max;
 	}
 	
 	/*
@@ -271,211 +996,588 @@ public class MiniSearchEngine {
 	}
 	
 	/*
-	 * Calculates tf*idf weights and returns a map
+	 * Accumulate scores term-at-a-time, only touching the postings of the query terms.
+	 * The live postings of a term are decoded once, a block at a time, and every block
+	 * is scored by the term scorer of each weighting into its own accumulators.
 	 */
-	private Vector calculateTfIdfWeights(
-			HashMap<String, Double> tfMap, HashMap<String, Double> idfMap, String simMeasure, double max_tf) {
-		HashMap<String, Double> weightVector = new HashMap<>();
-		double norm = 0;		
-		int num_docs = docIndex.size();
-
-		for(String token: tfMap.keySet()) {
-			double tf = tfMap.get(token);
-			if(simMeasure.startsWith("a")) {
-				tf = 0.5 + 0.5 * (tf / max_tf);
-			} else if(simMeasure.equals("bpn")) {
-				tf = (tf > 0 ? 1 : 0);
-			}
+	private void scoreTermAtATime(IndexSnapshot snapshot, BitSet[] excluded, ProximityScorer[] proximity,
+			HashMap<String, Double> queryTfMap, HashMap<String, int[]> termOrds, HashMap<String, Double> queryDfMap,
+			List<Weighting> simMeasures, Weighting.QueryScorer[] queryScorers, TopKCollector[] collectors) {
+		int num_weightings = simMeasures.size();
+		boolean needsTotalTermFreq = false;
+		QueryScratch[] scratches = new QueryScratch[num_weightings];
+		double[][] accumulators = new double[num_weightings][];
+		for(int w = 0; w < num_weightings; w++) {
+			needsTotalTermFreq |= simMeasures.get(w).needsTotalTermFreq();
+			scratches[w] = borrowScratch(snapshot.maxDoc());
+			accumulators[w] = scratches[w].accumulators;
+		}
+		// the first scratch tracks the matched documents of all weightings and holds the blocks
+		boolean[] matched = scratches[0].matched;
+		int[] matchedDocs = scratches[0].matchedDocs;
+		int[] blockDocs = scratches[0].blockDocs;
+		int[] blockFreqs = scratches[0].blockFreqs;
+		int[] blockLengths = scratches[0].blockLengths;
+		int[] blockMaxTfs = scratches[0].blockMaxTfs;
+		int num_matched = 0;
+		long num_scored = 0;
+		long num_deleted = 0;
+		Weighting.TermScorer[] termScorers = new Weighting.TermScorer[num_weightings];
+		for(String token: queryTfMap.keySet()) {
+			if(!termOrds.containsKey(token)) continue;	// no documents contain token, so term is 0
 			
-			double idf = 1;
-			if(idfMap.containsKey(token)) {
-				idf = idfMap.get(token);
+			int[] ords = termOrds.get(token);
+			long total_term_freq = needsTotalTermFreq ? snapshot.totalTermFreq(token, ords) : 0;
+			for(int w = 0; w < num_weightings; w++) {
+				termScorers[w] = queryScorers[w].term(token, queryDfMap.get(token).intValue(), total_term_freq);
+			}
+			int count = 0;
+			for(int s = 0; s < snapshot.numSegments(); s++) {
+				if(ords[s] < 0) continue;
+				IndexSegment segment = snapshot.segment(s);
+				BitSet deleted = snapshot.deletedDocs(s);
+				int docBase = snapshot.docBase(s);
+				SegmentPostings postings = segment.postings(ords[s]);
+				for(int doc = postings.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = postings.nextDoc()) {
+					if(excluded[s].get(doc)) {
+						if(deleted.get(doc)) {
+							num_deleted++;
+						}
+						continue;
+					}
+					int id = docBase + doc;
+					if(!matched[id]) {
+						matched[id] = true;
+						matchedDocs[num_matched++] = id;
+					}
+					blockDocs[count] = id;
+					blockFreqs[count] = postings.freq();
+					blockLengths[count] = segment.docLength(doc);
+					blockMaxTfs[count] = segment.docMaxTf(doc);
+					if(++count == SCORE_BLOCK_SIZE) {
+						for(int w = 0; w < num_weightings; w++) {
+							termScorers[w].score(blockDocs, blockFreqs, blockLengths, blockMaxTfs, count, accumulators[w]);
+						}
+						num_scored += count;
+						count = 0;
+					}
+				}
 			}
-			if(simMeasure.equals("bpn")) {
-				idf = Math.log((num_docs - idf) / idf);
-			} else if (simMeasure.equals("atc") || simMeasure.equals("atn")) {
-				idf = Math.log(num_docs / idf);
+			for(int w = 0; w < num_weightings; w++) {
+				termScorers[w].score(blockDocs, blockFreqs, blockLengths, blockMaxTfs, count, accumulators[w]);
+			}
+			num_scored += count;
+		}
+		
+		for(int w = 0; w < num_weightings; w++) {
+			if(proximity[w] != null) {
+				BM25Scorer bm25 = ((BM25Weighting) simMeasures.get(w)).scorer(snapshot);
+				addProximityBoost(snapshot, excluded, bm25, proximity[w], queryTfMap, termOrds, queryDfMap, accumulators[w]);
+			}
+		}
+		
+		for(int i = 0; i < num_matched; i++) {
+			int doc = matchedDocs[i];
+			for(int w = 0; w < num_weightings; w++) {
+				collectors[w].collect(doc, queryScorers[w].finish(snapshot, doc, accumulators[w][doc]));
+				
+				// leave the scratch clean for the next query
+				accumulators[w][doc] = 0;
+			}
+			matched[doc] = false;
+		}
+		for(QueryScratch scratch: scratches) {
+			scratchPool.add(scratch);
+		}
+		POSTINGS_SCORED.add(num_scored);
+		DOCS_SCORED.add(num_matched);
+		DOCS_DELETED.add(num_deleted);
+	}
+	
+	/*
+	 * Add the proximity boost of every segment to the BM25 accumulators
+	 */
+	private void addProximityBoost(IndexSnapshot snapshot, BitSet[] excluded, BM25Scorer bm25, ProximityScorer proximity,
+			HashMap<String, Double> queryTfMap, HashMap<String, int[]> termOrds, HashMap<String, Double> queryDfMap,
+			double[] accumulators) {
+		for(int s = 0; s < snapshot.numSegments(); s++) {
+			ArrayList<String> terms = new ArrayList<>();
+			for(String token: queryTfMap.keySet()) {
+				if(termOrds.containsKey(token) && termOrds.get(token)[s] >= 0) {
+					terms.add(token);
+				}
+			}
+			int[] ords = new int[terms.size()];
+			double[] idfs = new double[terms.size()];
+			for(int t = 0; t < ords.length; t++) {
+				ords[t] = termOrds.get(terms.get(t))[s];
+				idfs[t] = bm25.idf(queryDfMap.get(terms.get(t)));
+			}
+			// only documents with two of the terms are boosted, they are all matched already
+			proximity.score(snapshot.segment(s), snapshot.docBase(s), excluded[s], ords, idfs, accumulators);
+		}
+	}
+	
+	private QueryScratch borrowScratch(int max_doc) {
+		QueryScratch scratch = scratchPool.poll();
+		if(scratch == null || scratch.matched.length < max_doc) {
+			// too small for the current snapshot, it is dropped
+			scratch = new QueryScratch(max_doc);
+		}
+		return scratch;
+	}
+	
+	/*
+	 * WAND only skips documents safely when every term adds a positive score
+	 */
+	private boolean canPrune(BM25Scorer bm25, HashMap<String, Double> queryDfMap) {
+		for(double df: queryDfMap.values()) {
+			if(bm25.idf(df) <= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Evaluate a BM25 query document-at-a-time with Block-Max WAND. Terms are passed
+	 * in the same order as the term-at-a-time path so document scores are identical.
+	 */
+	private void makeWandQuery(IndexSnapshot snapshot, BitSet[] excluded, BM25Scorer bm25, HashMap<String, Double> queryTfMap,
+			HashMap<String, int[]> termOrds, HashMap<String, Double> queryDfMap, TopKCollector collector) {
+		WandEvaluator wand = new WandEvaluator(bm25);
+		// segments share the collector, so later segments start from the threshold reached so far
+		for(int s = 0; s < snapshot.numSegments(); s++) {
+			ArrayList<String> terms = new ArrayList<>();
+			for(String token: queryTfMap.keySet()) {
+				if(termOrds.containsKey(token) && termOrds.get(token)[s] >= 0) {
+					terms.add(token);
+				}
 			}
 			
-			double td_idf = tf * idf;
-			weightVector.put(token, td_idf);
-			
-			norm += Math.pow(td_idf, 2);
+			IndexSegment segment = snapshot.segment(s);
+			SegmentPostings[] postings = new SegmentPostings[terms.size()];
+			double[] idfs = new double[terms.size()];
+			double[] queryParts = new double[terms.size()];
+			for(int t = 0; t < terms.size(); t++) {
+				postings[t] = segment.postings(termOrds.get(terms.get(t))[s]);
+				idfs[t] = bm25.idf(queryDfMap.get(terms.get(t)));
+				queryParts[t] = bm25.queryPart(queryTfMap.get(terms.get(t)));
+			}
+			wand.search(segment, snapshot.docBase(s), excluded[s], postings, idfs, queryParts, collector);
 		}
-		return new Vector(weightVector, Math.sqrt(norm));
 	}
 	
-	private List<String> makeQuery(String query, String simMeasure, int limit) {
-		List<String> docResults = new ArrayList<>();
-		
+	private List<String> makeQuery(String query, Weighting simMeasure, int limit) {
 		// tokenize query terms
-		ArrayList<String> queryTokens = tokenizeQuery(query);
+		long start = Metrics.start();
+		ArrayList<PhraseQuery> phrases = new ArrayList<>();
+		ArrayList<String> queryTokens = parseQuery(query, phrases);
+		QUERY_TOKENIZE.recordSince(start);
 		if(queryTokens.size() == 0) {
 			return null;
 		}
-				
-		// scores data structures
-		HashMap<String, Double> docScores = new HashMap<>();
-		ValueComparator vc = new ValueComparator(docScores);
-		TreeMap<String, Double> sortedScores = new TreeMap<>(vc);
+		int window = simMeasure instanceof BM25Weighting ? proximityWindow : 0;
 		
-		//=========== Query calculations ===========
-		// create tf map for query
-		HashMap<String, Double> queryTfMap = countTokens(queryTokens);
+		IndexSnapshot snapshot = index.snapshot();
+		QueryCache<List<String>> cache = queryCache;
+		String cacheKey = null;
+		if(cache != null) {
+			cacheKey = cacheKey(queryTokens, phrases, simMeasure.toString(), limit, window);
+			List<String> cached = cache.get(cacheKey, snapshot.generation());
+			if(cached != null) {
+				return cached;
+			}
+		}
+		
+		TopKCollector collector = scoreQuery(snapshot, queryTokens, phrases, Collections.singletonList(simMeasure),
+				limit, window)[0];
 		
-		double query_max_tf = 0;
-		Vector queryVec = null;
-		HashMap<String, Double> queryWeights = null;
-		double query_norm = 0;
-		if(!simMeasure.equals("BM25")) {
-			// find max_tf
-			query_max_tf = getMaxInMap(queryTfMap);
-	
-			// calculate query weight vector
-			queryVec = calculateTfIdfWeights(queryTfMap, idfMap,
-					simMeasure.split("[.]")[1], query_max_tf);
-			queryWeights = queryVec.getVector();
-			query_norm = queryVec.getNorm();
+		// rank the best documents
+		start = Metrics.start();
+		List<String> docResults = new ArrayList<>();
+		for(int doc: collector.topDocs()) {
+			docResults.add(snapshot.docName(doc));
+		}
+		QUERY_RANK.recordSince(start);
+		if(cache != null) {
+			docResults = Collections.unmodifiableList(docResults);
+			cache.put(cacheKey, snapshot.generation(), docResults);
+		}
+		return docResults;
+	}
+	
+	/** The current snapshot of the index */
+	public IndexSnapshot snapshot() {
+		return index.snapshot();
+	}
+
+	/** Runs the listener after each refresh or merge that publishes a new snapshot */
+	public void setPublishListener(Runnable listener) {
+		index.setPublishListener(listener);
+	}
+	
+	/**
+	 * Scores a query against a snapshot of this engine's index, which may carry the
+	 * statistics of a whole sharded collection, and returns the best documents with
+	 * their scores, at most limit of them. Document ids are those of the snapshot.
+	 * The query cache is not used.
+	 */
+	public TopKCollector searchSnapshot(IndexSnapshot snapshot, String query, String weighting, int limit) {
+		Weighting resolved = getWeighting(weighting);
+		long start = Metrics.start();
+		ArrayList<PhraseQuery> phrases = new ArrayList<>();
+		ArrayList<String> queryTokens = parseQuery(query, phrases);
+		QUERY_TOKENIZE.recordSince(start);
+		if(queryTokens.size() == 0) {
+			return new TopKCollector(limit);
+		}
+		int window = resolved instanceof BM25Weighting ? proximityWindow : 0;
+		return scoreQuery(snapshot, queryTokens, phrases, Collections.singletonList(resolved), limit, window)[0];
+	}
+	
+	/**
+	 * Indexed terms starting with the prefix, in sorted order, see
+	 * {@link IndexSnapshot#terms(String)}
+	 */
+	public List<String> terms(String prefix) {
+		return index.snapshot().terms(prefix);
+	}
+	
+	/**
+	 * Ranks the documents for a query under several weightings at once, at most
+	 * limit per weighting, in the order of the weightings. The query is analyzed
+	 * once and the postings of its terms are decoded once for all weightings, and
+	 * each ranking is the one {@link #search(String, String, int)} returns. BM25
+	 * includes the proximity boost if it is on. The query cache is not used.
+	 */
+	public List<List<String>> searchAll(String query, List<String> weightings, int limit) {
+		List<Weighting> resolved = new ArrayList<>();
+		for(String weighting: weightings) {
+			resolved.add(getWeighting(weighting));
+		}
+		long start = Metrics.start();
+		ArrayList<PhraseQuery> phrases = new ArrayList<>();
+		ArrayList<String> queryTokens = parseQuery(query, phrases);
+		QUERY_TOKENIZE.recordSince(start);
+		List<List<String>> rankings = new ArrayList<>();
+		if(queryTokens.size() == 0) {
+			for(int w = 0; w < weightings.size(); w++) {
+				rankings.add(new ArrayList<String>());
+			}
+			return rankings;
 		}
-		// =====================================
 		
-		// compute doc scores using cosine similarity!
-		double num_docs = docIndex.size();
-		for(String doc: docIndex.keySet()) {
-			double simScore = 0;
-			
-			// get tf map
-			HashMap<String, Double> tfMap = docIndex.get(doc);
+		IndexSnapshot snapshot = index.snapshot();
+		int window = proximityWindow;
+		for(TopKCollector collector: scoreQuery(snapshot, queryTokens, phrases, resolved, limit, window)) {
+			List<String> docResults = new ArrayList<>();
+			for(int doc: collector.topDocs()) {
+				docResults.add(snapshot.docName(doc));
+			}
+			rankings.add(docResults);
+		}
+		return rankings;
+	}
+	
+	/**
+	 * BM25 rankings of a query under many parameter settings, for tuning them.
+	 * The live postings of the query terms are decoded once and rescored for
+	 * every setting. Each ranking is the one {@link #search(String, String, int)}
+	 * would return with those parameters and no proximity boost.
+	 * 
+	 * @param parameters one {k1, b, k2} triple per setting
+	 */
+	public List<List<String>> searchBM25Grid(String query, double[][] parameters, int limit) {
+		ArrayList<PhraseQuery> phrases = new ArrayList<>();
+		ArrayList<String> queryTokens = parseQuery(query, phrases);
+		List<List<String>> rankings = new ArrayList<>();
+		if(queryTokens.size() == 0) {
+			for(int i = 0; i < parameters.length; i++) {
+				rankings.add(new ArrayList<String>());
+			}
+			return rankings;
+		}
+		
+		IndexSnapshot snapshot = index.snapshot();
+		HashMap<String, Double> queryTfMap = countTokens(queryTokens);
+		BitSet[] excluded = excludedDocs(snapshot, phrases);
+		
+		// in scoring order, the global ids, frequencies and lengths of the documents of each term
+		ArrayList<Double> queryFreqs = new ArrayList<>();
+		ArrayList<Double> docFreqs = new ArrayList<>();
+		ArrayList<int[]> termDocs = new ArrayList<>();
+		ArrayList<int[]> termFreqs = new ArrayList<>();
+		ArrayList<int[]> termLengths = new ArrayList<>();
+		for(String token: queryTfMap.keySet()) {
+			int[] ords = snapshot.termOrds(token);
+			int df = snapshot.docFreq(token, ords);
+			if(df == 0) continue;
 			
-			if(simMeasure.equals("BM25")) {
-				double a = docLengths.get(doc);
-				// We only have to loop over terms in the query, because all other terms would be 0 anyways
-				double K = k1 * ((1-b) + b * (docLengths.get(doc) / avg_doc_length));
-				for(String token: queryTfMap.keySet()) {
-					if(!idfMap.containsKey(token)) continue;	// no documents contain token, so term is 0
-					
-					double num_docs_containing = idfMap.get(token);
-					double score_term = Math.log(1.0 / ((num_docs_containing + 0.5) / (num_docs - num_docs_containing + 0.5)));
-					
-					double doc_freq = 0;
-					if(tfMap.containsKey(token)) {
-						doc_freq = tfMap.get(token);
-					}
-					score_term *= (((k1 + 1) * doc_freq) / (K + doc_freq));
-
-					double query_freq = queryTfMap.get(token);
-					score_term *= (((k2 + 1) * query_freq) / (k2 + query_freq));
-					
-					simScore += score_term;
+			int size = 0;
+			for(int s = 0; s < snapshot.numSegments(); s++) {
+				if(ords[s] >= 0) {
+					size += snapshot.segment(s).docFreq(ords[s]);
 				}
-				
-			} else {
-				// find max_tf
-				double doc_max_tf = getMaxInMap(tfMap);
-				
-				// calculate document tf*idf's
-				double doc_norm = 0;			
-				for(String token: tfMap.keySet()) {
-					if(!idfMap.containsKey(token)) {
-						System.out.println("Token: " + token + " not found in idfMap.");
-						continue;
-					}
-	
-					double doc_tf = tfMap.get(token);
-					if(simMeasure.startsWith("a")) {
-						doc_tf = 0.5 + 0.5 * (doc_tf / doc_max_tf);
-					}
-					
-					double idf = idfMap.get(token);
-					if(simMeasure.startsWith("atc") || simMeasure.startsWith("atn")) {
-						idf = Math.log(num_docs / idf);
-					}
-					else if(simMeasure.startsWith("ann")) {
-						idf = 1;
-					}
-					
-					double tf_idf = doc_tf * idf;
-					doc_norm += Math.pow(tf_idf, 2);
-					
-					// increment score if query contains it, otherwise the term is just 0
-					if(queryWeights.containsKey(token)) {
-						simScore += tf_idf * queryWeights.get(token);
+			}
+			int[] docs = new int[size];
+			int[] freqs = new int[size];
+			int[] lengths = new int[size];
+			int n = 0;
+			for(int s = 0; s < snapshot.numSegments(); s++) {
+				if(ords[s] < 0) continue;
+				IndexSegment segment = snapshot.segment(s);
+				SegmentPostings postings = segment.postings(ords[s]);
+				for(int doc = postings.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = postings.nextDoc()) {
+					if(excluded[s].get(doc)) continue;
+					docs[n] = snapshot.docBase(s) + doc;
+					freqs[n] = postings.freq();
+					lengths[n] = segment.docLength(doc);
+					n++;
+				}
+			}
+			queryFreqs.add(queryTfMap.get(token));
+			docFreqs.add((double) df);
+			termDocs.add(Arrays.copyOf(docs, n));
+			termFreqs.add(Arrays.copyOf(freqs, n));
+			termLengths.add(Arrays.copyOf(lengths, n));
+		}
+		
+		QueryScratch scratch = borrowScratch(snapshot.maxDoc());
+		double[] accumulators = scratch.accumulators;
+		boolean[] matched = scratch.matched;
+		int[] matchedDocs = scratch.matchedDocs;
+		for(double[] setting: parameters) {
+			BM25Scorer bm25 = new BM25Scorer(setting[0], setting[2], setting[1], snapshot.avgDocLength(), snapshot.numDocs());
+			int num_matched = 0;
+			for(int t = 0; t < termDocs.size(); t++) {
+				double bm25_idf = bm25.idf(docFreqs.get(t));
+				double bm25_query_part = bm25.queryPart(queryFreqs.get(t));
+				int[] docs = termDocs.get(t);
+				int[] freqs = termFreqs.get(t);
+				int[] lengths = termLengths.get(t);
+				for(int i = 0; i < docs.length; i++) {
+					int id = docs[i];
+					if(!matched[id]) {
+						matched[id] = true;
+						matchedDocs[num_matched++] = id;
 					}
+					double K = bm25.lengthNorm(lengths[i]);
+					accumulators[id] += bm25.score(bm25_idf, bm25.tfPart(freqs[i], K), bm25_query_part);
 				}
+			}
+			
+			TopKCollector collector = new TopKCollector(limit);
+			for(int i = 0; i < num_matched; i++) {
+				int doc = matchedDocs[i];
+				collector.collect(doc, accumulators[doc]);
+				accumulators[doc] = 0;
+				matched[doc] = false;
+			}
+			List<String> docResults = new ArrayList<>();
+			for(int doc: collector.topDocs()) {
+				docResults.add(snapshot.docName(doc));
+			}
+			rankings.add(docResults);
+		}
+		scratchPool.add(scratch);
+		return rankings;
+	}
 	
-				if(simMeasure.equals("atc.atc") && simScore != 0) {
-					// cosine normalization
-					doc_norm = Math.sqrt(doc_norm);
-				} else {
-					doc_norm = 1;
-					query_norm = 1;
-				}
-				simScore = simScore / (doc_norm * query_norm);
+	/*
+	 * Collect the best documents of the snapshot for the parsed query under each
+	 * weighting, decoding the postings once for all of them
+	 */
+	private TopKCollector[] scoreQuery(IndexSnapshot snapshot, List<String> queryTokens, List<PhraseQuery> phrases,
+			List<Weighting> simMeasures, int limit, int window) {
+		//=========== Query calculations ===========
+		long start = Metrics.start();
+		// create tf map for query
+		HashMap<String, Double> queryTfMap = countTokens(queryTokens);
+		
+		// look up the query terms in the dictionaries of the current segments
+		HashMap<String, int[]> termOrds = new HashMap<>();
+		HashMap<String, Double> queryDfMap = new HashMap<>();
+		for(String token: queryTfMap.keySet()) {
+			int[] ords = snapshot.termOrds(token);
+			int df = snapshot.docFreq(token, ords);
+			if(df > 0) {
+				termOrds.put(token, ords);
+				queryDfMap.put(token, (double) df);
 			}
-
-			docScores.put(doc, simScore);
 		}
 		
-		// sort docs by scores
-		sortedScores.putAll(docScores);
-		for(String doc: sortedScores.keySet()) {
-			docResults.add(doc);
+		// resolve the scorer of each weighting once, the query weights are computed here
+		Weighting.QueryScorer[] queryScorers = new Weighting.QueryScorer[simMeasures.size()];
+		for(int w = 0; w < queryScorers.length; w++) {
+			queryScorers[w] = simMeasures.get(w).scorer(snapshot, queryTfMap, queryDfMap);
+		}
+		// =====================================
+		QUERY_STATS.recordSince(start);
+		
+		// documents that are deleted or miss a phrase are skipped by scoring
+		start = Metrics.start();
+		BitSet[] excluded = excludedDocs(snapshot, phrases);
+		if(!phrases.isEmpty()) {
+			QUERY_PHRASE.recordSince(start);
+		}
+		ProximityScorer[] proximity = new ProximityScorer[simMeasures.size()];
+		for(int w = 0; w < proximity.length; w++) {
+			if(window > 0 && termOrds.size() > 1 && simMeasures.get(w) instanceof BM25Weighting) {
+				proximity[w] = new ProximityScorer(((BM25Weighting) simMeasures.get(w)).scorer(snapshot), window);
+			}
+		}
+		
+		start = Metrics.start();
+		TopKCollector[] collectors = new TopKCollector[simMeasures.size()];
+		for(int w = 0; w < collectors.length; w++) {
+			collectors[w] = new TopKCollector(limit);
+		}
+		BM25Scorer bm25 = null;
+		if(simMeasures.size() == 1 && simMeasures.get(0) instanceof BM25Weighting && dynamicPruning && proximity[0] == null) {
+			bm25 = ((BM25Weighting) simMeasures.get(0)).scorer(snapshot);
+		}
+		if(bm25 != null && canPrune(bm25, queryDfMap)) {
+			makeWandQuery(snapshot, excluded, bm25, queryTfMap, termOrds, queryDfMap, collectors[0]);
+		} else {
+			scoreTermAtATime(snapshot, excluded, proximity, queryTfMap, termOrds, queryDfMap, simMeasures,
+					queryScorers, collectors);
+		}
+		
+		QUERY_SCORE.recordSince(start);
+		return collectors;
+	}
+	
+	/*
+	 * Queries with the same tokens and phrases in any order have the same result
+	 */
+	private static String cacheKey(List<String> queryTokens, List<PhraseQuery> phrases, String simMeasure,
+			int limit, int proximityWindow) {
+		ArrayList<String> sorted = new ArrayList<>(queryTokens);
+		Collections.sort(sorted);
+		StringBuilder key = new StringBuilder(simMeasure).append(' ').append(limit);
+		if(proximityWindow > 0) {
+			key.append(" ~").append(proximityWindow);
+		}
+		for(String token: sorted) {
+			key.append(' ').append(token);
 		}
-//		System.out.println(sortedScores);
-		return docResults.subList(0, limit);
+		sorted.clear();
+		for(PhraseQuery phrase: phrases) {
+			sorted.add(phrase.toString());
+		}
+		Collections.sort(sorted);
+		for(String phrase: sorted) {
+			key.append(' ').append(phrase);
+		}
+		return key.toString();
 	}
 	
 	/*
-	 * For sorting hashmap elements by value
+	 * Per segment, the deleted documents and, with phrases, those not matching
+	 * all of them
 	 */
-	private class ValueComparator implements Comparator<String> {
-	    HashMap<String, Double> base;
-	    public ValueComparator(HashMap<String, Double> base) {
-	        this.base = base;
-	    }
-
-	    // Note: this comparator imposes orderings that are inconsistent with equals.    
-	    public int compare(String a, String b) {
-	        if (base.get(a) >= base.get(b)) {
-	            return -1;
-	        } else {
-	            return 1;
-	        } // returning 0 would merge keys
-	    }
+	private static BitSet[] excludedDocs(IndexSnapshot snapshot, List<PhraseQuery> phrases) {
+		BitSet[] excluded = new BitSet[snapshot.numSegments()];
+		for(int s = 0; s < excluded.length; s++) {
+			BitSet deleted = snapshot.deletedDocs(s);
+			if(phrases.isEmpty()) {
+				excluded[s] = deleted;
+				continue;
+			}
+			IndexSegment segment = snapshot.segment(s);
+			BitSet matches = null;
+			for(PhraseQuery phrase: phrases) {
+				BitSet phraseMatches = phrase.matches(segment, deleted);
+				if(matches == null) {
+					matches = phraseMatches;
+				} else {
+					matches.and(phraseMatches);
+				}
+				if(matches.isEmpty()) break;
+			}
+			// matches never include deleted documents
+			excluded[s] = new BitSet(segment.numDocs());
+			excluded[s].set(0, segment.numDocs());
+			excluded[s].andNot(matches);
+		}
+		return excluded;
 	}
 	
 	/*
-	 * Vector class encapsulates weight vector and norm
+	 * Adds up the time spent reading a document
 	 */
-	private class Vector {
-		private HashMap<String, Double> vector;
-		double norm;
-		public Vector(HashMap<String, Double> vector, double norm) {
-			this.vector = vector;
-			this.norm = norm;
+	private static class TimedReader extends FilterReader {
+		long nanos = 0;
+		
+		TimedReader(Reader in) {
+			super(in);
 		}
 		
-		public HashMap<String, Double> getVector() {
-			return vector;
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int c = super.read();
+			nanos += System.nanoTime() - start;
+			return c;
 		}
 		
-		public double getNorm() {
-			return norm;
+		@Override
+		public int read(char[] buffer, int offset, int length) throws IOException {
+			long start = System.nanoTime();
+			int n = super.read(buffer, offset, length);
+			nanos += System.nanoTime() - start;
+			return n;
+		}
+	}
+	
+	/*
+	 * Per query buffers of term-at-a-time scoring, clean between queries
+	 */
+	private static class QueryScratch {
+		final double[] accumulators;
+		final boolean[] matched;
+		final int[] matchedDocs;
+		final int[] blockDocs = new int[SCORE_BLOCK_SIZE];
+		final int[] blockFreqs = new int[SCORE_BLOCK_SIZE];
+		final int[] blockLengths = new int[SCORE_BLOCK_SIZE];
+		final int[] blockMaxTfs = new int[SCORE_BLOCK_SIZE];
+		
+		QueryScratch(int max_doc) {
+			accumulators = new double[max_doc];
+			matched = new boolean[max_doc];
+			matchedDocs = new int[max_doc];
 		}
 	}
 	
 	public double evaluate(Map<Integer, String> queries, Map<Integer, HashSet<String>> queryAnswers,
 			int numResults, String weighting) {
-		if(!possible_weightings.contains(weighting)) {
+		if(!weightings.containsKey(weighting)) {
 			System.out.println("Weighting does not exist. Defaulting to atc.atc");
 			weighting = "atc.atc";
 		}
 		
-		// Search and evaluate
+		// Search in parallel, then evaluate in query order
+		long start = System.currentTimeMillis();
+		List<Integer> ids = new ArrayList<>(queries.keySet());
+		List<String> texts = new ArrayList<>();
+		for (Integer i : ids) {
+			texts.add(queries.get(i));
+		}
+		List<List<String>> batch = null;
+		try {
+			batch = searchBatch(texts, weighting, numResults);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.out.println("Evaluation was interrupted");
+			System.exit(1);
+		}
+		
 		double sum = 0;
 		int num_evaluated = 0;
-		for (Integer i : queries.keySet()) {
-			List<String> results = makeQuery(queries.get(i), weighting, numResults);
+		for (int q = 0; q < ids.size(); q++) {
+			Integer i = ids.get(q);
+			List<String> results = batch.get(q);
 			
 //				sum += precision(queryAnswers.get(i), results);
 			sum += EvaluateQueries.MAP(queryAnswers.get(i), results);
@@ -487,7 +1589,8 @@ public class MiniSearchEngine {
 //			System.out.print(EvaluateQueries.MAP(queryAnswers.get(i), results));
 //			System.out.println();
 		}
-		System.out.println(sum/num_evaluated);
+		long end = System.currentTimeMillis();
+		System.out.println(sum/num_evaluated + "\t" + (end - start) + " total milliseconds");
 		return sum / num_evaluated;
 	}
 }
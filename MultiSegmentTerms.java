@@ -0,0 +1,58 @@
+/**
+ * Walks the union of the term dictionaries of several segments in sorted
+ * order, reporting for each term its ordinal in every segment that has it.
+ * Each dictionary is read with one sequential {@link SegmentTerms} cursor.
+ */
+public class MultiSegmentTerms {
+	private final SegmentTerms[] cursors;
+	// current term of each cursor, null once it is exhausted
+	private final byte[][] heads;
+	private final int[] ords;
+	private byte[] term;
+
+	public MultiSegmentTerms(IndexSegment[] segments) {
+		this(segments, null);
+	}
+
+	/** Walks only the terms starting with the prefix, all terms if it is null */
+	public MultiSegmentTerms(IndexSegment[] segments, String prefix) {
+		this.cursors = new SegmentTerms[segments.length];
+		this.heads = new byte[segments.length][];
+		this.ords = new int[segments.length];
+		for(int s = 0; s < segments.length; s++) {
+			cursors[s] = prefix == null ? segments[s].terms() : segments[s].terms(prefix);
+			heads[s] = cursors[s].next() ? cursors[s].term() : null;
+		}
+	}
+
+	/** Moves to the next term, false once all dictionaries are exhausted */
+	public boolean next() {
+		term = null;
+		for(byte[] head: heads) {
+			if(head != null && (term == null || IndexSegment.compareBytes(head, term) < 0)) {
+				term = head;
+			}
+		}
+		if(term == null) return false;
+
+		for(int s = 0; s < cursors.length; s++) {
+			if(heads[s] != null && IndexSegment.compareBytes(heads[s], term) == 0) {
+				ords[s] = cursors[s].ord();
+				heads[s] = cursors[s].next() ? cursors[s].term() : null;
+			} else {
+				ords[s] = -1;
+			}
+		}
+		return true;
+	}
+
+	/** UTF-8 bytes of the current term */
+	public byte[] term() {
+		return term;
+	}
+
+	/** Ordinal of the current term in each segment, -1 where the segment does not contain it */
+	public int[] ords() {
+		return ords;
+	}
+}
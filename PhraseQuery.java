@@ -0,0 +1,204 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An exact phrase or a proximity clause of a MiniSearchEngine query, written
+ * "..." and "..."~N. A document matches an exact phrase if the terms occur
+ * at the same relative positions as in the analyzed phrase, so a removed stop
+ * word still takes up its position. It matches a proximity clause if one
+ * occurrence of each distinct term fits in a window with at most N other
+ * words, in any order.
+ *
+ * The postings of the terms are intersected document-at-a-time, rarest term
+ * first, and positions are only decoded for live documents that contain
+ * every term.
+ */
+public class PhraseQuery {
+	private static final int NO_MORE_DOCS = SegmentPostings.NO_MORE_DOCS;
+
+	private static final Metrics.Counter CANDIDATES = Metrics.counter("engine.phrase.candidates");
+	private static final Metrics.Counter MATCHES = Metrics.counter("engine.phrase.matches");
+
+	private final String[] terms;
+	// position of each term relative to the first, for exact phrases
+	private final int[] offsets;
+	// at most this many other words between the terms, -1 for an exact phrase
+	private final int distance;
+
+	private PhraseQuery(String[] terms, int[] offsets, int distance) {
+		this.terms = terms;
+		this.offsets = offsets;
+		this.distance = distance;
+	}
+
+	/**
+	 * @param terms the analyzed terms of the phrase
+	 * @param positions their token positions
+	 */
+	public static PhraseQuery exact(List<String> terms, List<Integer> positions) {
+		int[] offsets = new int[terms.size()];
+		for(int i = 0; i < offsets.length; i++) {
+			offsets[i] = positions.get(i) - positions.get(0);
+		}
+		return new PhraseQuery(terms.toArray(new String[terms.size()]), offsets, -1);
+	}
+
+	/** The terms within distance other words of each other, a repeated term counts once */
+	public static PhraseQuery near(List<String> terms, int distance) {
+		if(distance < 0) {
+			throw new IllegalArgumentException("Negative proximity distance " + distance);
+		}
+		LinkedHashSet<String> distinct = new LinkedHashSet<>(terms);
+		return new PhraseQuery(distinct.toArray(new String[distinct.size()]), new int[distinct.size()], distance);
+	}
+
+	public List<String> terms() {
+		return Arrays.asList(terms);
+	}
+
+	public boolean isExact() {
+		return distance < 0;
+	}
+
+	/**
+	 * Returns the documents of the segment that match the clause and are not
+	 * deleted. Clauses of more than one term need a segment with positions.
+	 */
+	public BitSet matches(IndexSegment segment, BitSet deleted) {
+		int n = terms.length;
+		BitSet result = new BitSet();
+		if(n > 1 && !segment.hasPositions()) {
+			throw new IllegalArgumentException("Phrase and proximity queries need an index with positions");
+		}
+		final SegmentPostings[] postings = new SegmentPostings[n];
+		SegmentPositions[] positions = new SegmentPositions[n];
+		for(int t = 0; t < n; t++) {
+			int ord = segment.termOrd(terms[t]);
+			if(ord < 0) {
+				return result;
+			}
+			postings[t] = segment.postings(ord);
+			if(n > 1) {
+				positions[t] = segment.positions(ord);
+			}
+		}
+
+		// leapfrog from the rarest term
+		Integer[] order = new Integer[n];
+		for(int t = 0; t < n; t++) {
+			order[t] = t;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(postings[a].size(), postings[b].size());
+			}
+		});
+		SegmentPostings lead = postings[order[0]];
+		int[] next = new int[n];
+		long candidates = 0;
+
+		int doc = lead.nextDoc();
+		while(doc != NO_MORE_DOCS) {
+			int target = doc;
+			for(int i = 1; i < n && target == doc; i++) {
+				target = postings[order[i]].advance(doc);
+			}
+			if(target != doc) {
+				doc = lead.advance(target);
+				continue;
+			}
+			if(!deleted.get(doc)) {
+				candidates++;
+				if(n == 1 || matchPositions(postings, positions, next)) {
+					result.set(doc);
+				}
+			}
+			doc = lead.nextDoc();
+		}
+		CANDIDATES.add(candidates);
+		MATCHES.add(result.cardinality());
+		return result;
+	}
+
+	private boolean matchPositions(SegmentPostings[] postings, SegmentPositions[] positions, int[] next) {
+		for(int t = 0; t < terms.length; t++) {
+			positions[t].read(postings[t].index());
+			next[t] = 0;
+		}
+		return distance < 0 ? matchExact(positions, next) : matchWindow(positions, next);
+	}
+
+	/*
+	 * Some occurrence of the first term has every other term at its offset
+	 */
+	private boolean matchExact(SegmentPositions[] positions, int[] next) {
+		int[] first = positions[0].positions();
+		for(int i = 0; i < positions[0].count(); i++) {
+			int start = first[i] - offsets[0];
+			boolean all = true;
+			for(int t = 1; t < terms.length && all; t++) {
+				int target = start + offsets[t];
+				int[] termPositions = positions[t].positions();
+				while(next[t] < positions[t].count() && termPositions[next[t]] < target) {
+					next[t]++;
+				}
+				if(next[t] == positions[t].count()) {
+					// later starts need later positions, which this term does not have
+					return false;
+				}
+				all = termPositions[next[t]] == target;
+			}
+			if(all) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Slide over the occurrences in position order, moving the term with the
+	 * smallest current position, until a window holding one occurrence of every
+	 * term is small enough
+	 */
+	private boolean matchWindow(SegmentPositions[] positions, int[] next) {
+		while(true) {
+			int minTerm = 0;
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for(int t = 0; t < terms.length; t++) {
+				int position = positions[t].positions()[next[t]];
+				if(position < min) {
+					min = position;
+					minTerm = t;
+				}
+				max = Math.max(max, position);
+			}
+			if(max - min + 1 - terms.length <= distance) {
+				return true;
+			}
+			if(++next[minTerm] == positions[minTerm].count()) {
+				return false;
+			}
+		}
+	}
+
+	/** The clause in query syntax, with the offset of phrase terms that do not follow each other */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("\"");
+		for(int t = 0; t < terms.length; t++) {
+			sb.append(t > 0 ? " " : "").append(terms[t]);
+			if(distance < 0 && offsets[t] != t) {
+				sb.append('@').append(offsets[t]);
+			}
+		}
+		sb.append('"');
+		if(distance >= 0) {
+			sb.append('~').append(distance);
+		}
+		return sb.toString();
+	}
+}
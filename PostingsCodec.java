@@ -0,0 +1,100 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of the postings of a segment. Every codec writes the same skip
+ * table, one {@link SegmentPostings#SKIP_ENTRY_SIZE} byte entry per block of
+ * postings, followed by the blocks in its own encoding of the delta coded
+ * document ids and the term frequencies. A segment records the id of its
+ * codec, so segments written with different codecs can be read side by side.
+ *
+ * {@link #VBYTE} stores each posting as two variable-byte integers.
+ * {@link #BLOCK_PACKED} bit-packs blocks of 128 deltas and frequencies at
+ * the width of their largest value, which is smaller and decodes a block at
+ * a time in a tight loop.
+ */
+public abstract class PostingsCodec {
+	public static final PostingsCodec VBYTE = new VByteCodec();
+	public static final PostingsCodec BLOCK_PACKED = new BlockPackedCodec();
+
+	/** The codec of new indexes unless another one is chosen */
+	public static final PostingsCodec DEFAULT = VBYTE;
+
+	private static final PostingsCodec[] CODECS = {VBYTE, BLOCK_PACKED};
+
+	/** Returns the codec with the given name, vbyte or block128 */
+	public static PostingsCodec forName(String name) {
+		for(PostingsCodec codec: CODECS) {
+			if(codec.name().equals(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown postings codec " + name);
+	}
+
+	static PostingsCodec forId(int id) throws IOException {
+		for(PostingsCodec codec: CODECS) {
+			if(codec.id() == id) {
+				return codec;
+			}
+		}
+		throw new IOException("Unknown postings codec id " + id);
+	}
+
+	/** Identifies the codec in the segment header */
+	abstract int id();
+
+	public abstract String name();
+
+	/** Number of postings per block and skip table entry */
+	public abstract int blockSize();
+
+	/** Returns a new cursor over postings written by this codec */
+	abstract SegmentPostings postings(ByteBuffer buf, int offset, int size);
+
+	/*
+	 * Appends the postings from start to end, whose previous document is
+	 * prevDoc, or 0 for the first block
+	 */
+	abstract void encodeBlock(SegmentWriter.ByteArrayBuilder data, PostingsList postings, int start, int end, int prevDoc);
+
+	/*
+	 * Write the skip table and the encoded blocks of one term
+	 */
+	void writePostings(DataOutputStream out, PostingsList postings, int[] docLengths) throws IOException {
+		int size = postings.size();
+		int blockSize = blockSize();
+		int numBlocks = (size + blockSize - 1) / blockSize;
+
+		SegmentWriter.ByteArrayBuilder data = new SegmentWriter.ByteArrayBuilder();
+		int[] skipTable = new int[numBlocks * 4];
+		int prevDoc = 0;
+		for(int block = 0; block < numBlocks; block++) {
+			int start = block * blockSize;
+			int end = Math.min(start + blockSize, size);
+			int maxTf = 0;
+			int minLength = Integer.MAX_VALUE;
+			skipTable[block * 4 + 1] = data.size();
+			encodeBlock(data, postings, start, end, prevDoc);
+			for(int i = start; i < end; i++) {
+				maxTf = Math.max(maxTf, postings.freq(i));
+				minLength = Math.min(minLength, docLengths[postings.doc(i)]);
+			}
+			prevDoc = postings.doc(end - 1);
+			skipTable[block * 4] = prevDoc;
+			skipTable[block * 4 + 2] = maxTf;
+			skipTable[block * 4 + 3] = minLength;
+		}
+
+		for(int value: skipTable) {
+			out.writeInt(value);
+		}
+		out.write(data.bytes(), 0, data.size());
+	}
+
+	@Override
+	public String toString() {
+		return name();
+	}
+}
@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/**
+ * Postings for a single term: the ids of the documents containing the term,
+ * in increasing order, and the term frequency in each of them. A positional
+ * list also holds the token positions of every occurrence.
+ */
+public class PostingsList {
+	private int[] docs = new int[4];
+	private int[] freqs = new int[4];
+	private int size = 0;
+
+	// positions of all postings in posting order, freq(i) of them for posting i
+	private int[] positions;
+	private int numPositions = 0;
+
+	public PostingsList() {
+		this(false);
+	}
+
+	public PostingsList(boolean withPositions) {
+		positions = withPositions ? new int[4] : null;
+	}
+
+	/** Appends a posting. Documents must be added in increasing id order. */
+	public void add(int doc, int freq) {
+		if(positions != null) {
+			throw new IllegalStateException("Postings with positions need the positions of every posting");
+		}
+		addPosting(doc, freq);
+	}
+
+	/** Appends a posting with its freq positions, taken from docPositions starting at offset */
+	public void add(int doc, int freq, int[] docPositions, int offset) {
+		if(positions == null) {
+			throw new IllegalStateException("Postings without positions");
+		}
+		addPosting(doc, freq);
+		if(numPositions + freq > positions.length) {
+			positions = Arrays.copyOf(positions, Math.max(numPositions + freq, positions.length * 2));
+		}
+		System.arraycopy(docPositions, offset, positions, numPositions, freq);
+		numPositions += freq;
+	}
+
+	private void addPosting(int doc, int freq) {
+		if(size == docs.length) {
+			docs = Arrays.copyOf(docs, size * 2);
+			freqs = Arrays.copyOf(freqs, size * 2);
+		}
+		docs[size] = doc;
+		freqs[size] = freq;
+		size++;
+	}
+
+	/** Number of documents containing the term */
+	public int size() {
+		return size;
+	}
+
+	public int doc(int i) {
+		return docs[i];
+	}
+
+	public int freq(int i) {
+		return freqs[i];
+	}
+
+	public boolean hasPositions() {
+		return positions != null;
+	}
+
+	/**
+	 * Positions of all postings, in posting order: the freq(i) positions of
+	 * posting i follow those of posting i - 1, increasing within a posting
+	 */
+	public int[] positions() {
+		return positions;
+	}
+}
@@ -0,0 +1,135 @@
+import java.util.BitSet;
+
+/**
+ * Term proximity boost for BM25, after Rasolofo and Savoy. Every pair of
+ * occurrences of two different query terms at most window positions apart
+ * adds 1 / distance^2, weighted by the idf of the other term, to an
+ * accumulator of each of the two terms. The accumulators are saturated like
+ * term frequencies, so the boost of a document is the sum over the terms of
+ * min(1, idf) * (k1 + 1) * acc / (K + acc).
+ *
+ * Only documents containing at least two query terms can get a boost, they
+ * are found by walking the postings of the terms document-at-a-time and only
+ * their positions are decoded.
+ */
+public class ProximityScorer {
+	private static final int NO_MORE_DOCS = SegmentPostings.NO_MORE_DOCS;
+
+	private static final Metrics.Counter DOCS_BOOSTED = Metrics.counter("engine.proximity.docs");
+
+	private final BM25Scorer bm25;
+	private final int window;
+
+	// occurrences of the query terms in the current document, in position order
+	private int[] occurrences = new int[64];
+	private int[] occurrenceTerms = new int[64];
+
+	public ProximityScorer(BM25Scorer bm25, int window) {
+		this.bm25 = bm25;
+		this.window = window;
+	}
+
+	/**
+	 * Adds the boost of the segment's documents that are not excluded to their
+	 * accumulators, at docBase plus the segment id. A scorer is used by one
+	 * query at a time.
+	 *
+	 * @param ords dictionary ordinals of the distinct query terms in the segment
+	 * @param idfs BM25 idf of each term
+	 */
+	public void score(IndexSegment segment, int docBase, BitSet excluded, int[] ords, double[] idfs, double[] accumulators) {
+		int n = ords.length;
+		if(n < 2 || !segment.hasPositions()) return;
+
+		SegmentPostings[] postings = new SegmentPostings[n];
+		SegmentPositions[] positions = new SegmentPositions[n];
+		double[] weights = new double[n];
+		for(int t = 0; t < n; t++) {
+			postings[t] = segment.postings(ords[t]);
+			positions[t] = segment.positions(ords[t]);
+			postings[t].nextDoc();
+			// terms with a negative idf, found in most documents, add nothing
+			weights[t] = Math.max(idfs[t], 0);
+		}
+		int[] present = new int[n];
+		int[] next = new int[n];
+		double[] acc = new double[n];
+		long boosted = 0;
+
+		while(true) {
+			int doc = NO_MORE_DOCS;
+			for(int t = 0; t < n; t++) {
+				doc = Math.min(doc, postings[t].docID());
+			}
+			if(doc == NO_MORE_DOCS) break;
+
+			int num_present = 0;
+			for(int t = 0; t < n; t++) {
+				if(postings[t].docID() == doc) {
+					present[num_present++] = t;
+				}
+			}
+			if(num_present > 1 && !excluded.get(doc)) {
+				for(int i = 0; i < num_present; i++) {
+					positions[present[i]].read(postings[present[i]].index());
+					next[present[i]] = 0;
+					acc[present[i]] = 0;
+				}
+				accumulate(positions, present, num_present, next, weights, acc);
+
+				double K = bm25.lengthNorm(segment.docLength(doc));
+				double boost = 0;
+				for(int i = 0; i < num_present; i++) {
+					int t = present[i];
+					boost += Math.min(1, weights[t]) * bm25.tfPart(acc[t], K);
+				}
+				accumulators[docBase + doc] += boost;
+				boosted++;
+			}
+			for(int i = 0; i < num_present; i++) {
+				postings[present[i]].nextDoc();
+			}
+		}
+		DOCS_BOOSTED.add(boosted);
+	}
+
+	/*
+	 * Merge the positions of the present terms in position order and pair each
+	 * occurrence with the following ones of other terms inside the window
+	 */
+	private void accumulate(SegmentPositions[] positions, int[] present, int num_present, int[] next,
+			double[] weights, double[] acc) {
+		int total = 0;
+		for(int i = 0; i < num_present; i++) {
+			total += positions[present[i]].count();
+		}
+		if(total > occurrences.length) {
+			occurrences = new int[Math.max(total, occurrences.length * 2)];
+			occurrenceTerms = new int[occurrences.length];
+		}
+		for(int k = 0; k < total; k++) {
+			int best = -1;
+			for(int i = 0; i < num_present; i++) {
+				int t = present[i];
+				if(next[t] < positions[t].count()
+						&& (best < 0 || positions[t].positions()[next[t]] < positions[best].positions()[next[best]])) {
+					best = t;
+				}
+			}
+			occurrences[k] = positions[best].positions()[next[best]++];
+			occurrenceTerms[k] = best;
+		}
+
+		for(int i = 0; i < total; i++) {
+			for(int j = i + 1; j < total && occurrences[j] - occurrences[i] <= window; j++) {
+				int a = occurrenceTerms[i];
+				int b = occurrenceTerms[j];
+				if(a == b) continue;
+				double distance = Math.max(occurrences[j] - occurrences[i], 1);
+				double tpi = 1 / (distance * distance);
+				acc[a] += tpi * weights[b];
+				acc[b] += tpi * weights[a];
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of query results with TinyLFU admission over a segmented LRU.
+ *
+ * Every lookup is counted in a small count-min sketch whose counters are
+ * halved periodically, so it tracks recent query frequency. New results enter
+ * the probationary segment, and move to the protected segment when they are
+ * hit again. Once the cache is full, a new result only replaces the
+ * probationary LRU entry if its query has been seen more often, which keeps
+ * one-off queries from flushing the popular ones.
+ *
+ * Results belong to an index generation. A result computed on an older
+ * generation than the newest one seen is never returned, and seeing a new
+ * generation empties the cache. All methods are thread safe.
+ */
+public class QueryCache<V> {
+	// share of the capacity for entries that were hit at least twice
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private final int capacity;
+	private final int protectedCapacity;
+	private final LinkedHashMap<String, V> probation = new LinkedHashMap<>();
+	private final LinkedHashMap<String, V> protectedEntries = new LinkedHashMap<>();
+	private final FrequencySketch sketch;
+	private long generation = Long.MIN_VALUE;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+	private long invalidations = 0;
+
+	public QueryCache(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.protectedCapacity = (int) (capacity * PROTECTED_SHARE);
+		this.sketch = new FrequencySketch(capacity);
+	}
+
+	/** Returns the cached result for the key, or null if there is none for this generation */
+	public synchronized V get(String key, long generation) {
+		advanceGeneration(generation);
+		sketch.increment(key);
+		if(generation < this.generation) {
+			misses++;
+			return null;
+		}
+
+		V value = protectedEntries.remove(key);
+		if(value != null) {
+			protectedEntries.put(key, value);
+			hits++;
+			return value;
+		}
+		value = probation.remove(key);
+		if(value != null) {
+			promote(key, value);
+			hits++;
+			return value;
+		}
+		misses++;
+		return null;
+	}
+
+	/** Offers a result computed on the given generation */
+	public synchronized void put(String key, long generation, V value) {
+		advanceGeneration(generation);
+		if(generation < this.generation || protectedEntries.containsKey(key) || probation.containsKey(key)) {
+			return;
+		}
+
+		if(size() >= capacity) {
+			LinkedHashMap<String, V> segment = probation.isEmpty() ? protectedEntries : probation;
+			String victim = segment.keySet().iterator().next();
+			if(sketch.frequency(key) <= sketch.frequency(victim)) {
+				rejections++;
+				return;
+			}
+			segment.remove(victim);
+			evictions++;
+		}
+		probation.put(key, value);
+	}
+
+	public synchronized int size() {
+		return probation.size() + protectedEntries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/** Entries removed to make room for new ones */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/** Results not admitted because their query was less frequent than the eviction candidate */
+	public synchronized long rejections() {
+		return rejections;
+	}
+
+	/** Number of times the cache was emptied because the index changed */
+	public synchronized long invalidations() {
+		return invalidations;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits " + hits + ", misses " + misses + ", evictions " + evictions
+				+ ", rejections " + rejections + ", invalidations " + invalidations + ", size " + size();
+	}
+
+	private void advanceGeneration(long generation) {
+		if(generation > this.generation) {
+			if(size() > 0) {
+				invalidations++;
+			}
+			probation.clear();
+			protectedEntries.clear();
+			this.generation = generation;
+		}
+	}
+
+	// a second hit moves an entry to the protected segment, demoting its LRU entry if full
+	private void promote(String key, V value) {
+		protectedEntries.put(key, value);
+		if(protectedEntries.size() > protectedCapacity) {
+			Iterator<Map.Entry<String, V>> eldest = protectedEntries.entrySet().iterator();
+			Map.Entry<String, V> demoted = eldest.next();
+			eldest.remove();
+			probation.put(demoted.getKey(), demoted.getValue());
+		}
+	}
+
+	/*
+	 * Count-min sketch of 4 rows of small counters. After a sample of ten times
+	 * the cache capacity, all counters are halved so old popularity fades.
+	 */
+	private static class FrequencySketch {
+		private static final int ROWS = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+		private final byte[][] counts;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int capacity) {
+			int width = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2;
+			counts = new byte[ROWS][width];
+			mask = width - 1;
+			sampleSize = 10 * Math.max(capacity, 8);
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for(int row = 0; row < ROWS; row++) {
+				int i = index(hash, row);
+				if(counts[row][i] < MAX_COUNT) {
+					counts[row][i]++;
+				}
+			}
+			if(++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int min = MAX_COUNT;
+			for(int row = 0; row < ROWS; row++) {
+				min = Math.min(min, counts[row][index(hash, row)]);
+			}
+			return min;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * SEEDS[row];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		private void reset() {
+			for(byte[] row: counts) {
+				for(int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
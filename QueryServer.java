@@ -0,0 +1,713 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.util.CharArraySet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running HTTP query server over a MiniSearchEngine or a Lucene index,
+ * which is opened once at startup.
+ *
+ * POST /search takes a JSON object {"query": "...", "weighting": "BM25", "k": 10}
+ * and answers {"results": [{"doc": "...", "score": 1.5}, ...]}, best first.
+ * The weighting defaults to BM25 and k to 10. A Lucene index ignores the
+ * weighting and scores with its own similarity. GET /metrics returns
+ * {@link Metrics#toJson()}.
+ *
+ * Requests wait in a bounded queue. Each worker takes everything queued, up
+ * to a batch of requests, and answers them together: identical queries in a
+ * batch are evaluated once and all queries of a batch read the same index
+ * snapshot. Under light load batches are single requests, so no request waits
+ * for a batch to fill. Under overload a full queue sheds new requests with 503,
+ * and requests that waited in the queue longer than the timeout get 503
+ * without being evaluated, so latency stays bounded instead of growing with
+ * the backlog. Requests still queued when the server stops get 503 too.
+ *
+ * Usage: java QueryServer -index DIR [-docs DIR] [-stopwords FILE] [-lucene]
+ *   [-host 127.0.0.1] [-port 8080] [-workers N] [-queue N] [-batch N] [-timeout MS]
+ */
+public class QueryServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_K = 10;
+	public static final int MAX_K = 1000;
+	// larger request bodies are refused
+	private static final int MAX_BODY_BYTES = 64 * 1024;
+	// deeper nested JSON is refused, the parser recurses once per level
+	private static final int MAX_JSON_DEPTH = 64;
+	// threads reading requests and parsing their JSON, evaluation happens on the workers
+	private static final int IO_THREADS = 4;
+
+	private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("server.request");
+	private static final Metrics.Histogram QUEUE_TIME = Metrics.histogram("server.queue");
+	private static final Metrics.Counter REQUESTS = Metrics.counter("server.requests");
+	private static final Metrics.Counter SHED = Metrics.counter("server.shed");
+	private static final Metrics.Counter EXPIRED = Metrics.counter("server.expired");
+	private static final Metrics.Counter BATCHES = Metrics.counter("server.batches");
+	private static final Metrics.Counter BATCHED = Metrics.counter("server.batched");
+	private static final Metrics.Counter DEDUPLICATED = Metrics.counter("server.deduplicated");
+
+	static {
+		// headers and body are written separately, so Nagle's algorithm would hold back small responses
+		if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final Backend backend;
+	private final BlockingQueue<Request> queue;
+	private final int batchSize;
+	private final long timeoutNanos;
+	private final HttpServer server;
+	private final ExecutorService io;
+	private final Thread[] workers;
+	// set by stop, new requests are refused from then on
+	private volatile boolean stopping = false;
+
+	/**
+	 * @param workers number of threads evaluating queries
+	 * @param queueCapacity requests waiting beyond this many are shed
+	 * @param batchSize most requests a worker answers at once
+	 * @param timeoutMs requests that waited longer in the queue are shed
+	 */
+	private QueryServer(Backend backend, String host, int port, int workers, int queueCapacity, int batchSize,
+			long timeoutMs) throws IOException {
+		this.backend = backend;
+		this.queue = new ArrayBlockingQueue<Request>(queueCapacity);
+		this.batchSize = Math.max(batchSize, 1);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+		server = HttpServer.create(new InetSocketAddress(host, port), queueCapacity);
+		server.createContext("/search", new SearchHandler());
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, Metrics.toJson());
+			}
+		});
+		io = Executors.newFixedThreadPool(IO_THREADS, MiniSearchEngine.daemonThreads("server-io"));
+		server.setExecutor(io);
+
+		Metrics.gauge("server.queue.depth", new Metrics.Gauge() {
+			public long value() {
+				return queue.size();
+			}
+		});
+		this.workers = new Thread[workers];
+		for(int w = 0; w < workers; w++) {
+			this.workers[w] = new Thread(new Worker(), "server-worker-" + w);
+			this.workers[w].setDaemon(true);
+		}
+	}
+
+	/** Serves a MiniSearchEngine, which is closed when the server stops */
+	public static QueryServer start(final MiniSearchEngine engine, String host, int port, int workers,
+			int queueCapacity, int batchSize, long timeoutMs) throws IOException {
+		return start(new Backend() {
+			Object snapshot() {
+				return engine.snapshot();
+			}
+
+			Result search(Object snapshot, String query, String weighting, int k) {
+				IndexSnapshot view = (IndexSnapshot) snapshot;
+				TopKCollector collector = engine.searchSnapshot(view, query, weighting, k);
+				Result result = new Result(collector.size());
+				int[] docs = collector.topDocs(result.scores);
+				for(int doc: docs) {
+					result.docs.add(view.docName(doc));
+				}
+				return result;
+			}
+
+			void close() throws IOException {
+				engine.close();
+			}
+		}, host, port, workers, queueCapacity, batchSize, timeoutMs);
+	}
+
+	/** Serves a Lucene index, which is closed when the server stops */
+	public static QueryServer start(final SearchFiles searcher, String host, int port, int workers,
+			int queueCapacity, int batchSize, long timeoutMs) throws IOException {
+		return start(new Backend() {
+			Object snapshot() {
+				// each query acquires the current searcher
+				return null;
+			}
+
+			Result search(Object snapshot, String query, String weighting, int k) {
+				List<Float> scores = new ArrayList<Float>();
+				List<String> docs = searcher.search(query, k, scores);
+				Result result = new Result(docs.size());
+				result.docs.addAll(docs);
+				for(int i = 0; i < scores.size(); i++) {
+					result.scores[i] = scores.get(i);
+				}
+				return result;
+			}
+
+			void close() throws IOException {
+				searcher.close();
+			}
+		}, host, port, workers, queueCapacity, batchSize, timeoutMs);
+	}
+
+	private static QueryServer start(Backend backend, String host, int port, int workers, int queueCapacity,
+			int batchSize, long timeoutMs) throws IOException {
+		QueryServer queryServer = new QueryServer(backend, host, port, workers, queueCapacity, batchSize, timeoutMs);
+		for(Thread worker: queryServer.workers) {
+			worker.start();
+		}
+		queryServer.server.start();
+		return queryServer;
+	}
+
+	/** The port the server listens on, useful when it was started on port 0 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Refuses new requests, stops the workers once their current batch is
+	 * answered and answers the requests still queued with 503, then waits up to
+	 * delaySeconds for running exchanges and closes the index.
+	 */
+	public void stop(int delaySeconds) throws IOException {
+		stopping = true;
+		for(Thread worker: workers) {
+			worker.interrupt();
+		}
+		for(Thread worker: workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		rejectQueued();
+		server.stop(delaySeconds);
+		// requests a handler queued while the workers stopped
+		rejectQueued();
+		io.shutdown();
+		Metrics.removeGauge("server.queue.depth");
+		backend.close();
+	}
+
+	private void rejectQueued() {
+		List<Request> queued = new ArrayList<Request>();
+		queue.drainTo(queued);
+		for(Request request: queued) {
+			SHED.increment();
+			respond(request.exchange, 503, error("Server stopping"));
+		}
+	}
+
+	public static void main(String[] args) {
+		String indexDir = null;
+		String docsDir = null;
+		String stopWordsFile = null;
+		boolean lucene = false;
+		String host = "127.0.0.1";
+		int port = DEFAULT_PORT;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int queueCapacity = 1024;
+		int batchSize = 16;
+		long timeoutMs = 1000;
+
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-index")) {
+				indexDir = args[++i];
+			} else if(args[i].equals("-docs")) {
+				docsDir = args[++i];
+			} else if(args[i].equals("-stopwords")) {
+				stopWordsFile = args[++i];
+			} else if(args[i].equals("-lucene")) {
+				lucene = true;
+			} else if(args[i].equals("-host")) {
+				host = args[++i];
+			} else if(args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-workers")) {
+				workers = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-queue")) {
+				queueCapacity = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-batch")) {
+				batchSize = Integer.parseInt(args[++i]);
+			} else if(args[i].equals("-timeout")) {
+				timeoutMs = Long.parseLong(args[++i]);
+			} else {
+				System.out.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		if(indexDir == null || (!lucene && docsDir == null)) {
+			System.out.println("Usage: java QueryServer -index DIR [-docs DIR] [-stopwords FILE] [-lucene]\n"
+					+ "  [-host 127.0.0.1] [-port 8080] [-workers N] [-queue N] [-batch N] [-timeout MS]\n"
+					+ "A MiniSearchEngine index needs -docs, it is built from them if it does not exist.");
+			System.exit(1);
+		}
+
+		try {
+			final QueryServer queryServer;
+			if(lucene) {
+				// the analysis settings of EvaluateQueries
+				queryServer = start(new SearchFiles(indexDir, new CharArraySet(0, false)), host, port, workers,
+						queueCapacity, batchSize, timeoutMs);
+			} else {
+				queryServer = start(new MiniSearchEngine(docsDir, indexDir, stopWordsFile), host, port, workers,
+						queueCapacity, batchSize, timeoutMs);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						queryServer.stop(1);
+					} catch (IOException e) {
+						System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+					}
+				}
+			});
+			System.out.println("Serving " + indexDir + " on http://" + host + ":" + queryServer.port() + "/search");
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Parses and validates a search request and queues it, or sheds it if the
+	 * queue is full. Any failure is answered with 500 rather than leaving the
+	 * exchange open.
+	 */
+	private class SearchHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) {
+			try {
+				accept(exchange);
+			} catch (Throwable e) {
+				respond(exchange, 500, error(e.getClass().getName() + ": " + e.getMessage()));
+			}
+		}
+
+		private void accept(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			REQUESTS.increment();
+			if(stopping) {
+				SHED.increment();
+				respond(exchange, 503, error("Server stopping"));
+				return;
+			}
+			if(!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, error("Use POST with a JSON body"));
+				return;
+			}
+			String body = readBody(exchange.getRequestBody());
+			if(body == null) {
+				respond(exchange, 413, error("Request body over " + MAX_BODY_BYTES + " bytes"));
+				return;
+			}
+
+			Request request;
+			try {
+				request = parseRequest(exchange, body, start);
+			} catch (IllegalArgumentException e) {
+				respond(exchange, 400, error(e.getMessage()));
+				return;
+			}
+			if(!queue.offer(request)) {
+				SHED.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, error("Server overloaded"));
+			}
+		}
+	}
+
+	private static Request parseRequest(HttpExchange exchange, String body, long start) {
+		Object parsed = new JsonParser(body).parse();
+		if(!(parsed instanceof Map)) {
+			throw new IllegalArgumentException("Expected a JSON object");
+		}
+		Map<?, ?> json = (Map<?, ?>) parsed;
+		Object query = json.get("query");
+		if(!(query instanceof String)) {
+			throw new IllegalArgumentException("Missing query string");
+		}
+		Object weighting = json.containsKey("weighting") ? json.get("weighting") : "BM25";
+		if(!(weighting instanceof String)) {
+			throw new IllegalArgumentException("The weighting must be a string");
+		}
+		int k = DEFAULT_K;
+		if(json.containsKey("k")) {
+			Object value = json.get("k");
+			if(!(value instanceof Double) || (Double) value != Math.rint((Double) value)) {
+				throw new IllegalArgumentException("k must be an integer");
+			}
+			double number = (Double) value;
+			if(number < 1 || number > MAX_K) {
+				throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+			}
+			k = (int) number;
+		}
+		return new Request(exchange, (String) query, (String) weighting, k, start);
+	}
+
+	/*
+	 * Takes whatever requests have queued up, at most batchSize of them, and
+	 * answers them together
+	 */
+	private class Worker implements Runnable {
+		private final List<Request> batch = new ArrayList<Request>();
+
+		public void run() {
+			while(true) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.drainTo(batch, batchSize - 1);
+				try {
+					answer(batch);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	private void answer(List<Request> batch) {
+		BATCHES.increment();
+		BATCHED.add(batch.size());
+		Object snapshot = backend.snapshot();
+		HashMap<String, Result> answered = new HashMap<String, Result>();
+		for(Request request: batch) {
+			// waiting for the requests before it in the batch counts too
+			long waited = System.nanoTime() - request.received;
+			QUEUE_TIME.record(waited);
+			if(waited > timeoutNanos) {
+				EXPIRED.increment();
+				request.exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(request.exchange, 503, error("Request timed out in the queue"));
+				continue;
+			}
+
+			String key = request.weighting + " " + request.k + " " + request.query;
+			Result result = answered.get(key);
+			if(result != null) {
+				DEDUPLICATED.increment();
+			} else {
+				try {
+					result = backend.search(snapshot, request.query, request.weighting, request.k);
+				} catch (IllegalArgumentException e) {
+					respond(request.exchange, 400, error(e.getMessage()));
+					continue;
+				} catch (Throwable e) {
+					// errors of one query, a stack overflow say, must not kill the worker
+					respond(request.exchange, 500, error(e.getClass().getName() + ": " + e.getMessage()));
+					continue;
+				}
+				answered.put(key, result);
+			}
+			respond(request.exchange, 200, result.toJson());
+			REQUEST_TIME.recordSince(request.received);
+		}
+	}
+
+	/*
+	 * The body as UTF-8 text, or null if it is too large
+	 */
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		try {
+			while((n = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, n);
+				if(body.size() > MAX_BODY_BYTES) {
+					return null;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) {
+		try {
+			byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + Metrics.quote(String.valueOf(message)) + "}";
+	}
+
+	private static class Request {
+		final HttpExchange exchange;
+		final String query;
+		final String weighting;
+		final int k;
+		// System.nanoTime() when the request arrived
+		final long received;
+
+		Request(HttpExchange exchange, String query, String weighting, int k, long received) {
+			this.exchange = exchange;
+			this.query = query;
+			this.weighting = weighting;
+			this.k = k;
+			this.received = received;
+		}
+	}
+
+	/*
+	 * Ranked document names and their scores
+	 */
+	private static class Result {
+		final List<String> docs;
+		final double[] scores;
+
+		Result(int size) {
+			docs = new ArrayList<String>(size);
+			scores = new double[size];
+		}
+
+		String toJson() {
+			StringBuilder json = new StringBuilder("{\"results\":[");
+			for(int i = 0; i < docs.size(); i++) {
+				json.append(i > 0 ? "," : "").append("{\"doc\":").append(Metrics.quote(docs.get(i)));
+				// JSON has no NaN or infinity
+				double score = scores[i];
+				json.append(",\"score\":").append(Double.isNaN(score) || Double.isInfinite(score) ? "null" : String.valueOf(score));
+				json.append('}');
+			}
+			return json.append("]}").toString();
+		}
+	}
+
+	/*
+	 * What the workers search: snapshot() is called once per batch and passed
+	 * to every search of the batch
+	 */
+	private abstract static class Backend {
+		abstract Object snapshot();
+
+		abstract Result search(Object snapshot, String query, String weighting, int k);
+
+		abstract void close() throws IOException;
+	}
+
+	/*
+	 * Minimal JSON reader: objects become maps, arrays lists, numbers doubles
+	 */
+	private static class JsonParser {
+		private final String text;
+		private int pos = 0;
+		// objects and arrays the parser is in
+		private int depth = 0;
+
+		JsonParser(String text) {
+			this.text = text;
+		}
+
+		Object parse() {
+			Object value = value();
+			skipWhitespace();
+			if(pos < text.length()) {
+				throw error("Unexpected text after the JSON value");
+			}
+			return value;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			if(pos >= text.length()) {
+				throw error("Unexpected end of JSON");
+			}
+			char c = text.charAt(pos);
+			if(c == '{' || c == '[') {
+				if(++depth > MAX_JSON_DEPTH) {
+					throw error("JSON nested deeper than " + MAX_JSON_DEPTH + " levels");
+				}
+				Object value = c == '{' ? object() : array();
+				depth--;
+				return value;
+			} else if(c == '"') {
+				return string();
+			} else if(text.startsWith("true", pos)) {
+				pos += 4;
+				return Boolean.TRUE;
+			} else if(text.startsWith("false", pos)) {
+				pos += 5;
+				return Boolean.FALSE;
+			} else if(text.startsWith("null", pos)) {
+				pos += 4;
+				return null;
+			}
+			return number();
+		}
+
+		private Map<String, Object> object() {
+			LinkedHashMap<String, Object> object = new LinkedHashMap<String, Object>();
+			pos++;
+			skipWhitespace();
+			if(peek() == '}') {
+				pos++;
+				return object;
+			}
+			while(true) {
+				skipWhitespace();
+				if(peek() != '"') {
+					throw error("Expected a member name");
+				}
+				String name = string();
+				skipWhitespace();
+				expect(':');
+				object.put(name, value());
+				skipWhitespace();
+				if(peek() == ',') {
+					pos++;
+				} else {
+					expect('}');
+					return object;
+				}
+			}
+		}
+
+		private List<Object> array() {
+			ArrayList<Object> array = new ArrayList<Object>();
+			pos++;
+			skipWhitespace();
+			if(peek() == ']') {
+				pos++;
+				return array;
+			}
+			while(true) {
+				array.add(value());
+				skipWhitespace();
+				if(peek() == ',') {
+					pos++;
+				} else {
+					expect(']');
+					return array;
+				}
+			}
+		}
+
+		private String string() {
+			StringBuilder s = new StringBuilder();
+			pos++;
+			while(true) {
+				if(pos >= text.length()) {
+					throw error("Unterminated string");
+				}
+				char c = text.charAt(pos++);
+				if(c == '"') {
+					return s.toString();
+				} else if(c != '\\') {
+					s.append(c);
+					continue;
+				}
+				if(pos >= text.length()) {
+					throw error("Unterminated string");
+				}
+				char escaped = text.charAt(pos++);
+				switch(escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					s.append(escaped);
+					break;
+				case 'b':
+					s.append('\b');
+					break;
+				case 'f':
+					s.append('\f');
+					break;
+				case 'n':
+					s.append('\n');
+					break;
+				case 'r':
+					s.append('\r');
+					break;
+				case 't':
+					s.append('\t');
+					break;
+				case 'u':
+					if(pos + 4 > text.length()) {
+						throw error("Bad unicode escape");
+					}
+					try {
+						s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Bad unicode escape");
+					}
+					pos += 4;
+					break;
+				default:
+					throw error("Bad escape \\" + escaped);
+				}
+			}
+		}
+
+		private Double number() {
+			int start = pos;
+			while(pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+				pos++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, pos));
+			} catch (NumberFormatException e) {
+				pos = start;
+				throw error("Unexpected character");
+			}
+		}
+
+		private char peek() {
+			if(pos >= text.length()) {
+				throw error("Unexpected end of JSON");
+			}
+			return text.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if(peek() != c) {
+				throw error("Expected '" + c + "'");
+			}
+			pos++;
+		}
+
+		private void skipWhitespace() {
+			while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at offset " + pos);
+		}
+	}
+}
@@ -1,54 +1,401 @@
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
-public class SearchFiles {
+/**
+ * Search service over a Lucene index. The index is opened once and its
+ * searcher is shared by all queries: each query acquires the current searcher
+ * and releases it when done, so a searcher replaced by a reopen is closed
+ * once its last query finishes. Commits made by {@link IndexFiles} are picked
+ * up every REOPEN_INTERVAL_MS, or at once with {@link #maybeReopen()}.
+ *
+ * Queries are scored with Lucene's default similarity, or with the one given
+ * when the service is opened. With a {@link WeightingSimilarity} they are
+ * scored like MiniSearchEngine scores them, see {@link #weightTerms}.
+ */
+public class SearchFiles implements Closeable {
+	public static final long REOPEN_INTERVAL_MS = 1000;
 
-	private SearchFiles() {}
+	private static final String field = "contents";
 
-	/** This function is only for test search. */
-	public static List<String> searchQuery(String indexDir, String queryString, int numResults, CharArraySet stopwords) {
-		String field = "contents";
+	// recorded only while Metrics are enabled
+	private static final Metrics.Histogram QUERY_TIME = Metrics.histogram("lucene.query");
+	private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("lucene.query.parse");
+	private static final Metrics.Histogram SEARCH_TIME = Metrics.histogram("lucene.query.search");
+	private static final Metrics.Histogram FETCH_TIME = Metrics.histogram("lucene.query.fetch");
+	private static final Metrics.Histogram SEARCH_QUERY_TIME = Metrics.histogram("lucene.searchQuery");
+	private static final Metrics.Histogram REOPEN_TIME = Metrics.histogram("lucene.reopen");
+	private static final Metrics.Counter QUERIES_CACHED = Metrics.counter("lucene.query.cached");
+	private static final Metrics.Counter HITS_TOTAL = Metrics.counter("lucene.query.totalHits");
+
+	private final Directory directory;
+	private final SearcherManager manager;
+	private final ScheduledExecutorService reopener;
+	// gauges of this index, registered while it is open
+	private final String gaugePrefix;
+
+	// ranked results of recent queries, null when caching is off
+	private volatile QueryCache<List<String>> queryCache = null;
+
+	// analyzers reuse their token streams per thread, query parsers are not thread safe
+	private final Analyzer analyzer;
+	private final boolean ownsAnalyzer;
+	// null for Lucene's default
+	private final Similarity similarity;
+	private final ThreadLocal<QueryParser> parsers = new ThreadLocal<QueryParser>() {
+		@Override
+		protected QueryParser initialValue() {
+			return new QueryParser(field, analyzer);
+		}
+	};
+
+	public SearchFiles(String indexDir, CharArraySet stopwords) throws IOException {
+		this(indexDir, AnalysisChain.lucene(stopwords, false), true, null);
+	}
+
+	/**
+	 * Searches with the analyzer and similarity the index was built with, see
+	 * {@link IndexFiles.Options}. The analyzer is not closed with the service.
+	 * The similarity is warmed on each opened searcher, so with a cosine
+	 * {@link SmartSimilarity} opening, and reopening after a commit that
+	 * changed the segments, takes a pass over all postings.
+	 *
+	 * @param similarity null for Lucene's default
+	 */
+	public SearchFiles(String indexDir, Analyzer analyzer, Similarity similarity) throws IOException {
+		this(indexDir, analyzer, false, similarity);
+	}
+
+	private SearchFiles(String indexDir, Analyzer analyzer, boolean ownsAnalyzer, final Similarity similarity)
+			throws IOException {
+		directory = FSDirectory.open(new File(indexDir));
+		manager = new SearcherManager(directory, similarity == null ? null : new SearcherFactory() {
+			@Override
+			public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+				IndexSearcher searcher = new IndexSearcher(reader);
+				searcher.setSimilarity(similarity);
+				// per index state is computed here, when the reader is opened, and not by queries
+				if(similarity instanceof WeightingSimilarity) {
+					((WeightingSimilarity) similarity).warm(reader, field);
+				}
+				return searcher;
+			}
+		});
+		this.analyzer = analyzer;
+		this.ownsAnalyzer = ownsAnalyzer;
+		this.similarity = similarity;
+
+		gaugePrefix = "lucene.index[" + indexDir + "]";
+		registerGauges();
+
+		reopener = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "searcher-reopener");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reopener.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				maybeReopen();
+			}
+		}, REOPEN_INTERVAL_MS, REOPEN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void registerGauges() {
+		Metrics.gauge(gaugePrefix + ".docs", new Metrics.Gauge() {
+			public long value() {
+				try {
+					IndexSearcher searcher = manager.acquire();
+					try {
+						return searcher.getIndexReader().numDocs();
+					} finally {
+						manager.release(searcher);
+					}
+				} catch (IOException e) {
+					return -1;
+				}
+			}
+		});
+		Metrics.gauge(gaugePrefix + ".bytes", new Metrics.Gauge() {
+			public long value() {
+				long bytes = 0;
+				try {
+					for (String file: directory.listAll()) {
+						bytes += directory.fileLength(file);
+					}
+				} catch (IOException e) {
+					// files can go away while a merge finishes
+				}
+				return bytes;
+			}
+		});
+	}
+
+	/**
+	 * Caches the results of up to capacity queries, keyed on the analyzed query
+	 * tokens in any order, the similarity and the number of results. A reopen
+	 * that sees a new commit invalidates the cache. Cached results are
+	 * unmodifiable. 0 turns caching off.
+	 */
+	public void setQueryCache(int capacity) {
+		queryCache = capacity > 0 ? new QueryCache<List<String>>(capacity) : null;
+	}
+
+	/** The result cache with its hit, miss and eviction counters, or null if caching is off */
+	public QueryCache<List<String>> getQueryCache() {
+		return queryCache;
+	}
+
+	/** Returns the paths, without extension, of the best documents. Safe to call from any thread. */
+	public List<String> search(String queryString, int numResults) {
+		return search(queryString, numResults, null);
+	}
+
+	/**
+	 * Like {@link #search(String, int)}, also adding the score of each returned
+	 * document to scores unless it is null. Queries asking for scores bypass the
+	 * query cache, which only holds paths.
+	 */
+	public List<String> search(String queryString, int numResults, List<Float> scores) {
 		List<String> hitPaths = new ArrayList<String>();
 
+		long queryStart = Metrics.start();
+		IndexSearcher searcher = null;
 		try {
-			IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexDir)));
-			IndexSearcher searcher = new IndexSearcher(reader);
-//			Analyzer analyzer = new MyAnalyzer(Version.LUCENE_44, stopwords);
-//
-//			QueryParser parser = new QueryParser(Version.LUCENE_44, field, analyzer);
-			Analyzer analyzer = new MyAnalyzer(stopwords, false);
+			searcher = manager.acquire();
 
-			QueryParser parser = new QueryParser(field, analyzer);
-			Query query;
-			query = parser.parse(QueryParser.escape(queryString));
+			QueryCache<List<String>> cache = scores == null ? queryCache : null;
+			String cacheKey = null;
+			long generation = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+			if (cache != null) {
+				cacheKey = cacheKey(queryString, numResults, searcher);
+				List<String> cached = cache.get(cacheKey, generation);
+				if (cached != null) {
+					QUERIES_CACHED.increment();
+					return cached;
+				}
+			}
 
+			long start = Metrics.start();
+			Query query = parsers.get().parse(escapeQuery(queryString));
+			if (similarity instanceof WeightingSimilarity) {
+				query = weightTerms(queryString, query, (WeightingSimilarity) similarity);
+			}
+			PARSE_TIME.recordSince(start);
+
+			start = Metrics.start();
 			TopDocs results = searcher.search(query, null, numResults);
-			
+			SEARCH_TIME.recordSince(start);
+			HITS_TOTAL.add(results.totalHits);
+
+			start = Metrics.start();
 			for (ScoreDoc hit : results.scoreDocs) {
 				String path = searcher.doc(hit.doc).get("path");
 				hitPaths.add(path.substring(0, path.length()-4)); // chop off the file extension (".txt")
+				if (scores != null) {
+					scores.add(hit.score);
+				}
+			}
+			FETCH_TIME.recordSince(start);
+			if (cache != null) {
+				hitPaths = Collections.unmodifiableList(hitPaths);
+				cache.put(cacheKey, generation, hitPaths);
 			}
 		} catch (IOException e) {
 			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
 		} catch (ParseException e) {
 			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		} finally {
+			if (searcher != null) {
+				try {
+					manager.release(searcher);
+				} catch (IOException e) {
+					System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+				}
+			}
+			QUERY_TIME.recordSince(queryStart);
 		}
 
 		return hitPaths;
 	}
+
+	/**
+	 * Escapes the query syntax of the text, except for "..." phrases and "..."~N
+	 * proximity clauses, where Lucene reads N as the phrase slop. Like in
+	 * MiniSearchEngine, documents must match every phrase, and the other words
+	 * are optional.
+	 */
+	static String escapeQuery(String queryString) {
+		StringBuilder escaped = new StringBuilder();
+		int i = 0;
+		while (i < queryString.length()) {
+			int open = queryString.indexOf('"', i);
+			int close = open < 0 ? -1 : queryString.indexOf('"', open + 1);
+			if (close < 0) {
+				escaped.append(QueryParser.escape(queryString.substring(i)));
+				break;
+			}
+			escaped.append(QueryParser.escape(queryString.substring(i, open)));
+			String phrase = queryString.substring(open + 1, close).trim();
+			i = close + 1;
+			String slop = "";
+			if (i < queryString.length() && queryString.charAt(i) == '~') {
+				int end = i + 1;
+				while (end < queryString.length() && Character.isDigit(queryString.charAt(end))) {
+					end++;
+				}
+				if (end > i + 1 && end - i <= 10) {
+					slop = queryString.substring(i, end);
+					i = end;
+				}
+			}
+			if (!phrase.isEmpty()) {
+				escaped.append(" +\"").append(QueryParser.escape(phrase)).append('"').append(slop);
+			}
+			escaped.append(' ');
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * The query MiniSearchEngine evaluates: one optional clause per distinct
+	 * query token, boosted by its query side frequency factor, and the phrases
+	 * of the parsed query as required clauses that only filter. Phrase tokens
+	 * count as query tokens, like in MiniSearchEngine.
+	 */
+	Query weightTerms(String queryString, Query parsed, WeightingSimilarity similarity) throws IOException {
+		Map<String, Integer> tfs = new LinkedHashMap<String, Integer>();
+		int max_tf = 0;
+		for (String token : analyze(queryString)) {
+			Integer tf = tfs.get(token);
+			tf = tf == null ? 1 : tf + 1;
+			tfs.put(token, tf);
+			max_tf = Math.max(max_tf, tf);
+		}
+
+		BooleanQuery query = new BooleanQuery(true);
+		for (Map.Entry<String, Integer> entry : tfs.entrySet()) {
+			TermQuery term = new TermQuery(new Term(field, entry.getKey()));
+			term.setBoost(similarity.queryBoost(entry.getValue(), max_tf));
+			query.add(term, BooleanClause.Occur.SHOULD);
+		}
+		if (parsed instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) parsed).clauses()) {
+				if (clause.isRequired()) {
+					Query phrase = clause.getQuery().clone();
+					phrase.setBoost(0);
+					query.add(phrase, BooleanClause.Occur.MUST);
+				}
+			}
+		}
+		return query;
+	}
+
+	private List<String> analyze(String text) throws IOException {
+		List<String> tokens = new ArrayList<String>();
+		TokenStream stream = analyzer.tokenStream(field, text);
+		try {
+			CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			while (stream.incrementToken()) {
+				tokens.add(term.toString());
+			}
+			stream.end();
+		} finally {
+			stream.close();
+		}
+		return tokens;
+	}
+
+	/*
+	 * Queries with the same analyzed tokens in any order have the same result,
+	 * unless they have phrases
+	 */
+	private String cacheKey(String queryString, int numResults, IndexSearcher searcher) throws IOException {
+		List<String> tokens = analyze(queryString);
+		Collections.sort(tokens);
+
+		StringBuilder key = new StringBuilder(searcher.getSimilarity().toString()).append(' ').append(numResults);
+		for (String token : tokens) {
+			key.append(' ').append(token);
+		}
+		if (queryString.indexOf('"') >= 0) {
+			key.append(" | ").append(queryString);
+		}
+		return key.toString();
+	}
+
+	/** Switches to the latest commit of the index if it changed, without blocking queries */
+	public void maybeReopen() {
+		try {
+			long start = Metrics.start();
+			manager.maybeRefresh();
+			REOPEN_TIME.recordSince(start);
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
+	}
+
+	/** Stops reopening and closes the index once running queries release it */
+	public void close() throws IOException {
+		reopener.shutdown();
+		Metrics.removeGauge(gaugePrefix + ".docs");
+		Metrics.removeGauge(gaugePrefix + ".bytes");
+		manager.close();
+		if (ownsAnalyzer) {
+			analyzer.close();
+		}
+		directory.close();
+	}
+
+	/** This function is only for test search, it opens and closes the index for one query. */
+	public static List<String> searchQuery(String indexDir, String queryString, int numResults, CharArraySet stopwords) {
+		List<String> hitPaths = new ArrayList<String>();
+		long start = Metrics.start();
+		try {
+			SearchFiles searchFiles = new SearchFiles(indexDir, stopwords);
+			try {
+				hitPaths = searchFiles.search(queryString, numResults);
+			} finally {
+				searchFiles.close();
+			}
+		} catch (IOException e) {
+			System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+		}
+		SEARCH_QUERY_TIME.recordSince(start);
+		return hitPaths;
+	}
 }
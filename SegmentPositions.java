@@ -0,0 +1,77 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the token positions of the postings of one term in an
+ * {@link IndexSegment}. Positions are looked up by the index of a posting,
+ * see {@link SegmentPostings#index()}: the block offsets lead to the block
+ * of the posting and the byte lengths of the postings before it in the
+ * block are skipped, so only the positions asked for are decoded. Reading
+ * forward within a block continues from the last posting read.
+ */
+public class SegmentPositions {
+	private final ByteBuffer buf;
+	private final int data;
+	private final int blockSize;
+	private final int blockOffsets;
+
+	// the next posting to be read and where it starts
+	private int nextIndex = -1;
+	private int nextPos;
+
+	private int[] positions = new int[16];
+	private int count = 0;
+
+	SegmentPositions(ByteBuffer buf, int offset, int size, int blockSize) {
+		this.buf = buf;
+		this.blockSize = blockSize;
+		this.blockOffsets = offset;
+		this.data = offset + 4 * ((size + blockSize - 1) / blockSize);
+	}
+
+	/** Reads the positions of the posting at the given index, returns their number */
+	public int read(int index) {
+		if(nextIndex < 0 || index < nextIndex || index / blockSize != nextIndex / blockSize) {
+			nextIndex = index - index % blockSize;
+			nextPos = data + buf.getInt(blockOffsets + 4 * (index / blockSize));
+		}
+		while(nextIndex < index) {
+			int length = readVInt();
+			nextPos += length;
+			nextIndex++;
+		}
+
+		int length = readVInt();
+		int end = nextPos + length;
+		count = 0;
+		int position = 0;
+		while(nextPos < end) {
+			if(count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			position += readVInt();
+			positions[count++] = position;
+		}
+		nextIndex++;
+		return count;
+	}
+
+	/** Positions read by the last call to read, in increasing order, count() of them */
+	public int[] positions() {
+		return positions;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	private int readVInt() {
+		byte b = buf.get(nextPos++);
+		int value = b & 0x7F;
+		for(int shift = 7; b < 0; shift += 7) {
+			b = buf.get(nextPos++);
+			value |= (b & 0x7F) << shift;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over the postings of one term in an {@link IndexSegment}. The
+ * postings start with a skip table of one entry per block, which lets
+ * {@link #advance(int)} jump over whole blocks and exposes the per block
+ * maximum term frequency and minimum document length used to bound block
+ * scores. How the documents and frequencies of a block are encoded is up to
+ * the {@link PostingsCodec} of the segment.
+ */
+public abstract class SegmentPostings {
+	public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+	/** Bytes per skip table entry: last doc, data offset, max tf and min doc length */
+	static final int SKIP_ENTRY_SIZE = 16;
+
+	protected final ByteBuffer buf;
+	protected final int skipTable;
+	protected final int data;
+	protected final int size;
+	protected final int blockSize;
+	protected final int numBlocks;
+
+	protected int pos = -1;
+	protected int doc = -1;
+
+	protected SegmentPostings(ByteBuffer buf, int offset, int size, int blockSize) {
+		this.buf = buf;
+		this.size = size;
+		this.blockSize = blockSize;
+		this.numBlocks = (size + blockSize - 1) / blockSize;
+		this.skipTable = offset;
+		this.data = offset + SKIP_ENTRY_SIZE * numBlocks;
+	}
+
+	/** Number of documents in the postings */
+	public int size() {
+		return size;
+	}
+
+	/** Current document, -1 before the first call to nextDoc or advance */
+	public int docID() {
+		return doc;
+	}
+
+	/** Index of the current posting among the postings of the term, to read its positions */
+	public int index() {
+		return pos;
+	}
+
+	/** Term frequency in the current document */
+	public abstract int freq();
+
+	public abstract int nextDoc();
+
+	/** Moves to the first document at or after target */
+	public abstract int advance(int target);
+
+	/** Returns the block that would contain target without moving the cursor, or -1 if there is none */
+	public int shallowAdvance(int target) {
+		int block = currentBlock();
+		while(block < numBlocks && blockLastDoc(block) < target) {
+			block++;
+		}
+		return block < numBlocks ? block : -1;
+	}
+
+	public int numBlocks() {
+		return numBlocks;
+	}
+
+	public int blockLastDoc(int block) {
+		return buf.getInt(skipTable + SKIP_ENTRY_SIZE * block);
+	}
+
+	/** Position of the block in the postings data, relative to the end of the skip table */
+	protected int blockOffset(int block) {
+		return buf.getInt(skipTable + SKIP_ENTRY_SIZE * block + 4);
+	}
+
+	public int blockMaxTf(int block) {
+		return buf.getInt(skipTable + SKIP_ENTRY_SIZE * block + 8);
+	}
+
+	/** Length of the shortest document in the block */
+	public int blockMinDocLength(int block) {
+		return buf.getInt(skipTable + SKIP_ENTRY_SIZE * block + 12);
+	}
+
+	protected int currentBlock() {
+		return Math.max(pos, 0) / blockSize;
+	}
+
+	/** Marks the cursor as exhausted */
+	protected int exhausted() {
+		pos = size;
+		return doc = NO_MORE_DOCS;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Cursor over the terms of a segment in sorted order, optionally only those
+ * starting with a prefix. Front coded dictionaries are decoded sequentially,
+ * so walking all terms is one pass over the dictionary.
+ */
+public class SegmentTerms {
+	private final IndexSegment segment;
+	// null for segments written before front coding
+	private final FrontCodedDictionary.Cursor cursor;
+	private final byte[] prefix;
+	private int ord;
+
+	/**
+	 * @param ord ordinal of the first term
+	 * @param prefix bytes every term starts with, the cursor stops at the first that does not
+	 */
+	SegmentTerms(IndexSegment segment, FrontCodedDictionary dictionary, int ord, byte[] prefix) {
+		this.segment = segment;
+		this.cursor = dictionary != null ? dictionary.cursor(ord) : null;
+		this.prefix = prefix;
+		this.ord = ord - 1;
+	}
+
+	/** Moves to the next term, false once past the last one */
+	public boolean next() {
+		if(cursor != null) {
+			if(!cursor.next() || !cursor.startsWith(prefix)) {
+				ord = segment.numTerms();
+				return false;
+			}
+			ord = cursor.ord();
+			return true;
+		}
+		if(ord + 1 >= segment.numTerms() || !startsWith(segment.termBytes(ord + 1), prefix)) {
+			ord = segment.numTerms();
+			return false;
+		}
+		ord++;
+		return true;
+	}
+
+	/** Ordinal of the current term */
+	public int ord() {
+		return ord;
+	}
+
+	/** UTF-8 bytes of the current term */
+	public byte[] term() {
+		return cursor != null ? cursor.term() : segment.termBytes(ord);
+	}
+
+	private static boolean startsWith(byte[] term, byte[] prefix) {
+		if(prefix.length > term.length) return false;
+		for(int i = 0; i < prefix.length; i++) {
+			if(term[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+}
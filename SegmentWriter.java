@@ -0,0 +1,449 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Writes an index in the binary segment format read by {@link IndexSegment}.
+ *
+ * Layout, all values big-endian:
+ * <pre>
+ * header      magic, version, numDocs, numTerms, avg_doc_length, section offsets, codec id, flags
+ * doc names   int[numDocs+1] byte offsets, then the UTF-8 names
+ * doc table   int length[numDocs], int max_tf[numDocs], double norm[numDocs]
+ * postings    per term: a skip table of {lastDoc, byte offset, max tf, min doc length}
+ *             per block of postings, then the blocks encoded by the {@link PostingsCodec}
+ * dictionary  int df[numTerms], long postings offset[numTerms], then the UTF-8 terms
+ *             sorted by unsigned byte order and front coded, see {@link FrontCodedDictionary}
+ * positions   only with the positions flag: long positions offset[numTerms], then per term
+ *             an int byte offset per block of postings, and per posting the vint byte
+ *             length of its positions followed by the vint deltas of its positions
+ * </pre>
+ *
+ * The byte lengths let a reader skip to the positions of any posting of a
+ * block without decoding those before it, so phrase queries only decode the
+ * positions of documents containing every term.
+ *
+ * A segment is read through a single mapped buffer with int offsets, so a
+ * segment file is limited to 2GB, and {@link #finish()} fails rather than
+ * write a larger one. Bigger collections are split into shards, see
+ * {@link ShardedSearchEngine}.
+ *
+ * Document names and terms are streamed in. Everything except the per
+ * document tables is spilled to temporary files next to the output, which
+ * are concatenated sequentially by {@link #finish()} into another temporary
+ * file that is then renamed over the output, so the output file is either
+ * complete or not there.
+ */
+public class SegmentWriter {
+	private final File outputFile;
+	private final PostingsCodec codec;
+	private final int numDocs;
+	private final int[] docLengths;
+	private final int[] docMaxTf;
+	private final double[] docNorms;
+
+	private final Spill nameOffsets;
+	private final Spill nameBytes;
+	private final Spill postings;
+	private final Spill termDfs;
+	private final Spill termPostings;
+	private final Spill termBlockOffsets;
+	private final Spill termBlocks;
+	private final FrontCodedDictionary.Writer dictionary;
+	private final Spill positions;
+	private final Spill termPositions;
+
+	private int numDocNames = 0;
+	private int numTerms = 0;
+	private byte[] lastTerm = null;
+
+	public SegmentWriter(File outputFile, int numDocs, int[] docLengths, int[] docMaxTf) throws IOException {
+		this(outputFile, numDocs, docLengths, docMaxTf, PostingsCodec.DEFAULT);
+	}
+
+	/**
+	 * @param docLengths number of tokens in each document
+	 * @param docMaxTf highest term frequency in each document
+	 * @param codec encoding of the postings
+	 */
+	public SegmentWriter(File outputFile, int numDocs, int[] docLengths, int[] docMaxTf, PostingsCodec codec) throws IOException {
+		this(outputFile, numDocs, docLengths, docMaxTf, codec, false);
+	}
+
+	/**
+	 * @param withPositions write the token positions of every posting, the postings
+	 * lists that are added must then have positions
+	 */
+	public SegmentWriter(File outputFile, int numDocs, int[] docLengths, int[] docMaxTf, PostingsCodec codec,
+			boolean withPositions) throws IOException {
+		this.outputFile = outputFile;
+		this.codec = codec;
+		this.numDocs = numDocs;
+		this.docLengths = docLengths;
+		this.docMaxTf = docMaxTf;
+		this.docNorms = new double[numDocs];
+
+		nameOffsets = new Spill(outputFile, "names.idx");
+		nameBytes = new Spill(outputFile, "names");
+		postings = new Spill(outputFile, "postings");
+		termDfs = new Spill(outputFile, "terms.df");
+		termPostings = new Spill(outputFile, "terms.ptr");
+		termBlockOffsets = new Spill(outputFile, "terms.idx");
+		termBlocks = new Spill(outputFile, "terms");
+		dictionary = new FrontCodedDictionary.Writer(termBlockOffsets.out, termBlocks.out);
+		positions = withPositions ? new Spill(outputFile, "pos") : null;
+		termPositions = withPositions ? new Spill(outputFile, "terms.pos") : null;
+	}
+
+	/**
+	 * Write an in-memory index to a file. Terms are written in sorted order, so
+	 * the term ids of the builder become dictionary ordinals in the segment.
+	 */
+	public static void write(File outputFile, IndexBuilder index) throws IOException {
+		write(outputFile, index, PostingsCodec.DEFAULT);
+	}
+
+	public static void write(File outputFile, IndexBuilder index, PostingsCodec codec) throws IOException {
+		int num_docs = index.numDocs();
+		int[] lengths = new int[num_docs];
+		int[] maxTf = new int[num_docs];
+		for(int doc = 0; doc < num_docs; doc++) {
+			lengths[doc] = index.docLength(doc);
+			maxTf[doc] = index.docMaxTf(doc);
+		}
+
+		SegmentWriter writer = new SegmentWriter(outputFile, num_docs, lengths, maxTf, codec, index.hasPositions());
+		try {
+			for(int doc = 0; doc < num_docs; doc++) {
+				writer.addDocName(index.docName(doc));
+			}
+			for(int termId: index.sortedTermIds()) {
+				writer.addTerm(index.term(termId).getBytes(StandardCharsets.UTF_8), index.postings(termId));
+			}
+			writer.finish();
+		} finally {
+			writer.deleteSpills();
+		}
+	}
+
+	/** Adds the name of the next document, in document id order */
+	public void addDocName(String docName) throws IOException {
+		byte[] bytes = docName.getBytes(StandardCharsets.UTF_8);
+		nameOffsets.out.writeInt((int) nameBytes.size());
+		nameBytes.out.write(bytes);
+		numDocNames++;
+	}
+
+	/**
+	 * Adds the postings of the next term. Terms must be added in unsigned UTF-8
+	 * byte order, which is also the order their norm contributions are summed in.
+	 */
+	public void addTerm(byte[] term, PostingsList termPostingsList) throws IOException {
+		if(lastTerm != null && IndexSegment.compareBytes(lastTerm, term) >= 0) {
+			throw new IllegalArgumentException("Terms must be added in sorted order: " + new String(term, StandardCharsets.UTF_8));
+		}
+		lastTerm = term;
+
+		dictionary.add(term);
+		termDfs.out.writeInt(termPostingsList.size());
+		termPostings.out.writeLong(postings.size());
+		codec.writePostings(postings.out, termPostingsList, docLengths);
+		if(positions != null) {
+			if(!termPostingsList.hasPositions()) {
+				throw new IllegalArgumentException("Postings without positions: " + new String(term, StandardCharsets.UTF_8));
+			}
+			termPositions.out.writeLong(positions.size());
+			writePositions(termPostingsList);
+		}
+
+		double num_docs_containing = termPostingsList.size();
+		for(int i = 0; i < termPostingsList.size(); i++) {
+			int doc = termPostingsList.doc(i);
+			double tf_idf = atcWeight(termPostingsList.freq(i), docMaxTf[doc], num_docs_containing, numDocs);
+			docNorms[doc] += Math.pow(tf_idf, 2);
+		}
+		numTerms++;
+	}
+
+	/*
+	 * Write the block offsets and the positions of each posting of one term
+	 */
+	private void writePositions(PostingsList list) throws IOException {
+		int blockSize = codec.blockSize();
+		int[] listPositions = list.positions();
+		ByteArrayBuilder data = new ByteArrayBuilder();
+		int[] blockOffsets = new int[(list.size() + blockSize - 1) / blockSize];
+		int offset = 0;
+		for(int i = 0; i < list.size(); i++) {
+			if(i % blockSize == 0) {
+				blockOffsets[i / blockSize] = data.size();
+			}
+			int freq = list.freq(i);
+			int length = 0;
+			int prev = 0;
+			for(int k = offset; k < offset + freq; k++) {
+				length += vIntSize(listPositions[k] - prev);
+				prev = listPositions[k];
+			}
+			data.writeVInt(length);
+			prev = 0;
+			for(int k = offset; k < offset + freq; k++) {
+				data.writeVInt(listPositions[k] - prev);
+				prev = listPositions[k];
+			}
+			offset += freq;
+		}
+		for(int blockOffset: blockOffsets) {
+			positions.out.writeInt(blockOffset);
+		}
+		positions.out.write(data.bytes(), 0, data.size());
+	}
+
+	private static int vIntSize(int value) {
+		int size = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/** Assembles the output file from the header, the document tables and the spilled sections */
+	public void finish() throws IOException {
+		if(numDocNames != numDocs) {
+			throw new IllegalStateException("Expected " + numDocs + " document names, got " + numDocNames);
+		}
+		double avg_doc_length = 0;
+		for(int doc = 0; doc < numDocs; doc++) {
+			avg_doc_length += docLengths[doc];
+			docNorms[doc] = Math.sqrt(docNorms[doc]);
+		}
+		avg_doc_length /= numDocs;
+
+		nameOffsets.out.writeInt((int) nameBytes.size());
+		dictionary.finish();
+		for(Spill spill: spills()) {
+			spill.out.close();
+		}
+
+		long docNamesOffset = IndexSegment.HEADER_SIZE;
+		long docTableOffset = docNamesOffset + nameOffsets.size() + nameBytes.size();
+		long postingsOffset = docTableOffset + 16L * numDocs;
+		long termDictOffset = postingsOffset + postings.size();
+		long positionsOffset = termDictOffset + termDfs.size() + termPostings.size() + termBlockOffsets.size()
+				+ termBlocks.size();
+		long fileLength = positionsOffset;
+		if(positions != null) {
+			fileLength += termPositions.size() + positions.size();
+		}
+
+		if(fileLength > Integer.MAX_VALUE) {
+			throw new IOException("Index file " + outputFile + " would be " + fileLength
+					+ " bytes, segments are limited to 2GB");
+		}
+
+		File tmp = new File(outputFile.getPath() + ".tmp");
+		try {
+			writeFile(tmp, avg_doc_length, docNamesOffset, docTableOffset, postingsOffset, termDictOffset, positionsOffset,
+					fileLength);
+			Files.move(tmp.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// only left when writing failed
+			tmp.delete();
+		}
+	}
+
+	private void writeFile(File file, double avg_doc_length, long docNamesOffset, long docTableOffset,
+			long postingsOffset, long termDictOffset, long positionsOffset, long fileLength) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(IndexSegment.MAGIC);
+			out.writeInt(IndexSegment.VERSION);
+			out.writeInt(numDocs);
+			out.writeInt(numTerms);
+			out.writeDouble(avg_doc_length);
+			out.writeLong(docNamesOffset);
+			out.writeLong(docTableOffset);
+			out.writeLong(termDictOffset);
+			out.writeLong(fileLength);
+			out.writeInt(codec.id());
+			out.writeInt(positions != null ? IndexSegment.FLAG_POSITIONS : 0);
+			out.write(new byte[IndexSegment.HEADER_SIZE - out.size()]);
+
+			nameOffsets.copyTo(out);
+			nameBytes.copyTo(out);
+			for(int doc = 0; doc < numDocs; doc++) {
+				out.writeInt(docLengths[doc]);
+			}
+			for(int doc = 0; doc < numDocs; doc++) {
+				out.writeInt(docMaxTf[doc]);
+			}
+			for(int doc = 0; doc < numDocs; doc++) {
+				out.writeDouble(docNorms[doc]);
+			}
+			postings.copyTo(out);
+
+			termDfs.copyTo(out);
+			// postings offsets were recorded relative to the start of the postings section
+			DataInputStream in = termPostings.open();
+			try {
+				for(int t = 0; t < numTerms; t++) {
+					out.writeLong(postingsOffset + in.readLong());
+				}
+			} finally {
+				in.close();
+			}
+			termBlockOffsets.copyTo(out);
+			termBlocks.copyTo(out);
+
+			if(positions != null) {
+				long positionsDataOffset = positionsOffset + termPositions.size();
+				in = termPositions.open();
+				try {
+					for(int t = 0; t < numTerms; t++) {
+						out.writeLong(positionsDataOffset + in.readLong());
+					}
+				} finally {
+					in.close();
+				}
+				positions.copyTo(out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Removes the temporary files */
+	public void deleteSpills() {
+		for(Spill spill: spills()) {
+			spill.delete();
+		}
+	}
+
+	private Spill[] spills() {
+		if(positions != null) {
+			return new Spill[] {nameOffsets, nameBytes, postings, termDfs, termPostings, termBlockOffsets, termBlocks,
+					positions, termPositions};
+		}
+		return new Spill[] {nameOffsets, nameBytes, postings, termDfs, termPostings, termBlockOffsets, termBlocks};
+	}
+
+	/*
+	 * Weight of a term in the atc weighted document vector, the doc table stores
+	 * the norm of that vector for cosine normalization
+	 */
+	static double atcWeight(double doc_tf, double doc_max_tf, double num_docs_containing, double num_docs) {
+		doc_tf = 0.5 + 0.5 * (doc_tf / doc_max_tf);
+		return doc_tf * Math.log(num_docs / num_docs_containing);
+	}
+
+	/*
+	 * Growable byte array with varint encoding
+	 */
+	static class ByteArrayBuilder {
+		private byte[] bytes = new byte[64];
+		private int size = 0;
+
+		void writeVInt(int value) {
+			while((value & ~0x7F) != 0) {
+				writeByte((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((byte) value);
+		}
+
+		// big-endian like DataOutput, so ByteBuffer.getLong reads it back
+		void writeLong(long value) {
+			for(int shift = 56; shift >= 0; shift -= 8) {
+				writeByte((byte) (value >>> shift));
+			}
+		}
+
+		void writeByte(byte value) {
+			if(size == bytes.length) {
+				bytes = Arrays.copyOf(bytes, size * 2);
+			}
+			bytes[size++] = value;
+		}
+
+		byte[] bytes() {
+			return bytes;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	/*
+	 * A section written sequentially to a temporary file next to the output
+	 */
+	static class Spill {
+		final File file;
+		final DataOutputStream out;
+		private long size = 0;
+
+		Spill(File outputFile, String suffix) throws IOException {
+			file = new File(outputFile.getPath() + "." + suffix + ".tmp");
+			final OutputStream buffered = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+			// counts bytes itself, DataOutputStream.size() saturates at 2GB
+			out = new DataOutputStream(new FilterOutputStream(buffered) {
+				@Override
+				public void write(int b) throws IOException {
+					buffered.write(b);
+					size++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					buffered.write(b, off, len);
+					size += len;
+				}
+			});
+		}
+
+		/** Bytes written so far */
+		long size() {
+			return size;
+		}
+
+		DataInputStream open() throws IOException {
+			return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		void copyTo(OutputStream target) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while((n = in.read(buffer)) > 0) {
+					target.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		void delete() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,532 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An index made of immutable segments, so documents can be added, updated
+ * and deleted without rebuilding it. Each commit writes the new documents to
+ * a small delta segment and records deleted documents as tombstones of the
+ * segments holding them. Segments of similar size are merged in the
+ * background, which also drops the deleted documents.
+ *
+ * Index directory layout:
+ * <pre>
+ * dd_index.bin        the segment of the initial build
+ * dd_segment_G.bin    segments written by commits and merges
+ * SEGMENT.G.del       tombstones of a segment as of generation G: count, then sorted doc ids
+ * dd_segments.txt     the commit point: the generation, then one line per segment in
+ *                     doc id order with the segment file and its tombstone file, or -
+ * </pre>
+ * Without dd_segments.txt the index is dd_index.bin alone. Queries read an
+ * {@link IndexSnapshot}, which commits and merges replace without blocking
+ * them. Only one process may modify an index at a time.
+ */
+public class SegmentedIndex {
+	static final String BASE_SEGMENT = "dd_index.bin";
+	static final String MANIFEST = "dd_segments.txt";
+
+	/** Number of adjacent segments of the same size tier merged into one */
+	public static final int MERGE_FACTOR = 4;
+
+	private static final Metrics.Histogram COMMIT_TIME = Metrics.histogram("engine.index.commit");
+	private static final Metrics.Histogram MERGE_TIME = Metrics.histogram("engine.index.merge");
+
+	private final File dir;
+	private long generation = 0;
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	private volatile IndexSnapshot snapshot;
+	// run on the publishing thread after each new snapshot
+	private volatile Runnable publishListener = null;
+	// delta and merged segments are written like the oldest segment of the index
+	private PostingsCodec codec = PostingsCodec.DEFAULT;
+	private boolean withPositions = false;
+
+	private final ExecutorService merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "segment-merger");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** True if the directory holds an index */
+	public static boolean exists(File dir) {
+		return new File(dir, MANIFEST).exists() || new File(dir, BASE_SEGMENT).exists();
+	}
+
+	/** Opens the index as of its last commit */
+	public static SegmentedIndex open(File dir) throws IOException {
+		SegmentedIndex index = new SegmentedIndex(dir);
+		File manifest = new File(dir, MANIFEST);
+		if(manifest.exists()) {
+			BufferedReader br = new BufferedReader(new FileReader(manifest));
+			try {
+				String line = br.readLine();
+				if(line == null) {
+					throw new IOException("Index manifest " + manifest + " is empty");
+				}
+				try {
+					index.generation = Long.parseLong(line.trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Index manifest " + manifest + " has no generation: " + line);
+				}
+				while((line = br.readLine()) != null) {
+					if(line.trim().isEmpty()) continue;
+					String[] files = line.trim().split(" ");
+					if(files.length != 2 || !new File(dir, files[0]).exists()
+							|| !files[1].equals("-") && !new File(dir, files[1]).exists()) {
+						throw new IOException("Index manifest " + manifest + " is truncated or names missing files: " + line);
+					}
+					index.entries.add(index.openEntry(files[0], files[1].equals("-") ? null : files[1]));
+				}
+			} finally {
+				br.close();
+			}
+		} else {
+			index.entries.add(index.openEntry(BASE_SEGMENT, null));
+		}
+		if(!index.entries.isEmpty()) {
+			index.codec = index.entries.get(0).segment.codec();
+			index.withPositions = index.entries.get(0).segment.hasPositions();
+		}
+		index.publish();
+		index.scheduleMerge();
+		return index;
+	}
+
+	private SegmentedIndex(File dir) {
+		this.dir = dir;
+	}
+
+	/** Whether the index stores token positions, documents added to it must have them too */
+	public boolean hasPositions() {
+		return withPositions;
+	}
+
+	/**
+	 * Runs the listener on the committing or merging thread whenever a new
+	 * snapshot is published, while further changes wait
+	 */
+	public void setPublishListener(Runnable listener) {
+		this.publishListener = listener;
+	}
+
+	/** The current view of the index, valid for as long as the caller holds it */
+	public IndexSnapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Makes a batch of changes durable and visible to new snapshots. Documents
+	 * are identified by name: the named documents are deleted, and so are the
+	 * older versions of the added documents, which go to a new segment.
+	 */
+	public synchronized void commit(IndexBuilder added, Collection<String> deletedNames) throws IOException {
+		HashSet<String> names = new HashSet<>(deletedNames);
+		for(int doc = 0; doc < added.numDocs(); doc++) {
+			names.add(added.docName(doc));
+		}
+		if(names.isEmpty()) return;
+
+		long start = Metrics.start();
+		generation++;
+		ArrayList<String> obsolete = new ArrayList<>();
+
+		// tombstones are copied on write, published snapshots keep the old ones
+		for(Entry entry: entries) {
+			BitSet updated = null;
+			for(String name: names) {
+				int[] docs = entry.docsByName().get(name);
+				if(docs == null) continue;
+				for(int doc: docs) {
+					if(!entry.deleted.get(doc)) {
+						if(updated == null) {
+							updated = (BitSet) entry.deleted.clone();
+						}
+						updated.set(doc);
+					}
+				}
+			}
+			if(updated != null) {
+				if(entry.deleteFile != null) {
+					obsolete.add(entry.deleteFile);
+				}
+				entry.deleted = updated;
+				entry.deleteFile = writeDeletes(entry.file, updated);
+			}
+		}
+
+		if(added.numDocs() > 0) {
+			String file = "dd_segment_" + generation + ".bin";
+			SegmentWriter.write(new File(dir, file), added, codec);
+			entries.add(openEntry(file, null));
+		}
+
+		dropDeletedSegments(obsolete);
+		writeManifest();
+		publish();
+		deleteFiles(obsolete);
+		scheduleMerge();
+		COMMIT_TIME.recordSince(start);
+	}
+
+	/** Waits for running merges and stops merging */
+	public void close() {
+		merger.shutdown();
+		try {
+			merger.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scheduleMerge() {
+		try {
+			merger.submit(new Runnable() {
+				public void run() {
+					try {
+						mergeSegments();
+					} catch (IOException e) {
+						System.out.println(" caught a " + e.getClass() + "\n with message: " + e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed, the segments are merged the next time the index is opened
+		}
+	}
+
+	/*
+	 * Merge segments until the policy finds nothing to merge. Only this thread
+	 * merges, commits keep going while a merge is written.
+	 */
+	private void mergeSegments() throws IOException {
+		while(true) {
+			List<Entry> sources;
+			BitSet[] deletedAtStart;
+			String file;
+			synchronized(this) {
+				int start = findMerge();
+				if(start < 0) return;
+				sources = new ArrayList<>(entries.subList(start, start + MERGE_FACTOR));
+				deletedAtStart = new BitSet[sources.size()];
+				for(int i = 0; i < sources.size(); i++) {
+					sources.get(i).merging = true;
+					deletedAtStart[i] = sources.get(i).deleted;
+				}
+				file = "dd_segment_" + (++generation) + ".bin";
+			}
+
+			boolean done = false;
+			try {
+				long mergeStart = Metrics.start();
+				int[][] docMaps = writeMerged(new File(dir, file), sources, deletedAtStart, codec);
+				MERGE_TIME.recordSince(mergeStart);
+				Entry merged = openEntry(file, null);
+				install(file, merged, sources, deletedAtStart, docMaps);
+				done = true;
+			} finally {
+				if(!done) {
+					// the sources stay in the index and can be merged again
+					synchronized(this) {
+						for(Entry source: sources) {
+							source.merging = false;
+						}
+					}
+					new File(dir, file).delete();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Replace the sources by the merged segment, carrying over the documents
+	 * deleted while the merge was running
+	 */
+	private synchronized void install(String file, Entry merged, List<Entry> sources, BitSet[] deletedAtStart,
+			int[][] docMaps) throws IOException {
+		generation++;
+		// documents deleted while the merge was running
+		BitSet deleted = new BitSet();
+		for(int i = 0; i < sources.size(); i++) {
+			BitSet now = sources.get(i).deleted;
+			for(int doc = now.nextSetBit(0); doc >= 0; doc = now.nextSetBit(doc + 1)) {
+				if(!deletedAtStart[i].get(doc)) {
+					deleted.set(docMaps[i][doc]);
+				}
+			}
+		}
+		if(!deleted.isEmpty()) {
+			merged.deleted = deleted;
+			merged.deleteFile = writeDeletes(file, deleted);
+		}
+
+		ArrayList<String> obsolete = new ArrayList<>();
+		int start = entries.indexOf(sources.get(0));
+		for(Entry source: sources) {
+			obsolete.add(source.file);
+			if(source.deleteFile != null) {
+				obsolete.add(source.deleteFile);
+			}
+		}
+		ArrayList<Entry> before = new ArrayList<>(entries);
+		entries.subList(start, start + sources.size()).clear();
+		entries.add(start, merged);
+
+		dropDeletedSegments(obsolete);
+		try {
+			writeManifest();
+		} catch (IOException e) {
+			// the last commit still names the sources
+			entries.clear();
+			entries.addAll(before);
+			if(merged.deleteFile != null) {
+				new File(dir, merged.deleteFile).delete();
+			}
+			throw e;
+		}
+		publish();
+		deleteFiles(obsolete);
+	}
+
+	/*
+	 * Size-tiered policy: the tier of a segment is the log of its live document
+	 * count in base MERGE_FACTOR, and the first MERGE_FACTOR adjacent segments
+	 * of one tier are merged. Only adjacent segments are merged so the order
+	 * of documents, which breaks score ties, is kept.
+	 */
+	private int findMerge() {
+		int runStart = 0;
+		for(int i = 0; i < entries.size(); i++) {
+			if(i > runStart && tier(entries.get(i)) != tier(entries.get(runStart))) {
+				runStart = i;
+			}
+			if(i - runStart + 1 == MERGE_FACTOR) {
+				return runStart;
+			}
+		}
+		return -1;
+	}
+
+	private static int tier(Entry entry) {
+		int live = entry.segment.numDocs() - entry.deleted.cardinality();
+		return (int) (Math.log(Math.max(live, 1)) / Math.log(MERGE_FACTOR));
+	}
+
+	/*
+	 * Write the live documents of the sources, in order, to one segment and
+	 * return the new id of each source document, -1 for deleted ones
+	 */
+	private static int[][] writeMerged(File file, List<Entry> sources, BitSet[] deleted, PostingsCodec codec) throws IOException {
+		IndexSegment[] segments = new IndexSegment[sources.size()];
+		int[][] docMaps = new int[sources.size()][];
+		int num_docs = 0;
+		for(int i = 0; i < segments.length; i++) {
+			segments[i] = sources.get(i).segment;
+			docMaps[i] = new int[segments[i].numDocs()];
+			for(int doc = 0; doc < docMaps[i].length; doc++) {
+				docMaps[i][doc] = deleted[i].get(doc) ? -1 : num_docs++;
+			}
+		}
+
+		int[] lengths = new int[num_docs];
+		int[] maxTf = new int[num_docs];
+		for(int i = 0; i < segments.length; i++) {
+			for(int doc = 0; doc < docMaps[i].length; doc++) {
+				if(docMaps[i][doc] >= 0) {
+					lengths[docMaps[i][doc]] = segments[i].docLength(doc);
+					maxTf[docMaps[i][doc]] = segments[i].docMaxTf(doc);
+				}
+			}
+		}
+
+		// positions survive the merge if every source has them
+		boolean withPositions = true;
+		for(IndexSegment segment: segments) {
+			withPositions &= segment.hasPositions();
+		}
+
+		SegmentWriter writer = new SegmentWriter(file, num_docs, lengths, maxTf, codec, withPositions);
+		try {
+			for(int i = 0; i < segments.length; i++) {
+				for(int doc = 0; doc < docMaps[i].length; doc++) {
+					if(docMaps[i][doc] >= 0) {
+						writer.addDocName(segments[i].docName(doc));
+					}
+				}
+			}
+
+			MultiSegmentTerms terms = new MultiSegmentTerms(segments);
+			while(terms.next()) {
+				PostingsList merged = new PostingsList(withPositions);
+				int[] ords = terms.ords();
+				for(int i = 0; i < segments.length; i++) {
+					if(ords[i] < 0) continue;
+					SegmentPostings postings = segments[i].postings(ords[i]);
+					SegmentPositions positions = withPositions ? segments[i].positions(ords[i]) : null;
+					for(int doc = postings.nextDoc(); doc != SegmentPostings.NO_MORE_DOCS; doc = postings.nextDoc()) {
+						if(docMaps[i][doc] < 0) continue;
+						if(positions != null) {
+							int count = positions.read(postings.index());
+							merged.add(docMaps[i][doc], count, positions.positions(), 0);
+						} else {
+							merged.add(docMaps[i][doc], postings.freq());
+						}
+					}
+				}
+				// terms only found in deleted documents are dropped
+				if(merged.size() > 0) {
+					writer.addTerm(terms.term(), merged);
+				}
+			}
+			writer.finish();
+		} finally {
+			writer.deleteSpills();
+		}
+		return docMaps;
+	}
+
+	// segments without live documents are removed, unless a merge is reading them
+	private void dropDeletedSegments(List<String> obsolete) {
+		for(int i = entries.size() - 1; i >= 0; i--) {
+			Entry entry = entries.get(i);
+			if(!entry.merging && entry.deleted.cardinality() == entry.segment.numDocs()) {
+				obsolete.add(entry.file);
+				if(entry.deleteFile != null) {
+					obsolete.add(entry.deleteFile);
+				}
+				entries.remove(i);
+			}
+		}
+	}
+
+	private void publish() {
+		IndexSegment[] segments = new IndexSegment[entries.size()];
+		BitSet[] deleted = new BitSet[entries.size()];
+		for(int i = 0; i < segments.length; i++) {
+			segments[i] = entries.get(i).segment;
+			deleted[i] = entries.get(i).deleted;
+		}
+		snapshot = new IndexSnapshot(segments, deleted, generation);
+		Runnable listener = publishListener;
+		if(listener != null) {
+			listener.run();
+		}
+	}
+
+	/*
+	 * Write the manifest next to the old one and rename it over, so a crash
+	 * leaves either the old or the new commit
+	 */
+	private void writeManifest() throws IOException {
+		File tmp = new File(dir, MANIFEST + ".tmp");
+		PrintWriter out = new PrintWriter(tmp, "UTF-8");
+		try {
+			out.println(generation);
+			for(Entry entry: entries) {
+				out.println(entry.file + " " + (entry.deleteFile == null ? "-" : entry.deleteFile));
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private String writeDeletes(String segmentFile, BitSet deleted) throws IOException {
+		String file = segmentFile + "." + generation + ".del";
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, file))));
+		try {
+			out.writeInt(deleted.cardinality());
+			for(int doc = deleted.nextSetBit(0); doc >= 0; doc = deleted.nextSetBit(doc + 1)) {
+				out.writeInt(doc);
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private Entry openEntry(String file, String deleteFile) throws IOException {
+		Entry entry = new Entry(file, IndexSegment.open(new File(dir, file)));
+		if(deleteFile != null) {
+			DataInputStream in = new DataInputStream(new FileInputStream(new File(dir, deleteFile)));
+			try {
+				int count = in.readInt();
+				for(int i = 0; i < count; i++) {
+					entry.deleted.set(in.readInt());
+				}
+			} finally {
+				in.close();
+			}
+			entry.deleteFile = deleteFile;
+		}
+		return entry;
+	}
+
+	// older snapshots may still read these, which is fine for mapped files
+	private void deleteFiles(List<String> files) {
+		for(String file: files) {
+			new File(dir, file).delete();
+		}
+	}
+
+	/*
+	 * A segment of the current commit with its tombstones
+	 */
+	private static class Entry {
+		final String file;
+		final IndexSegment segment;
+		// documents of each name, built by the first commit that deletes or
+		// replaces documents, and not when the segment is opened or merged
+		private HashMap<String, int[]> docsByName = null;
+		BitSet deleted = new BitSet();
+		String deleteFile = null;
+		boolean merging = false;
+
+		Entry(String file, IndexSegment segment) {
+			this.file = file;
+			this.segment = segment;
+		}
+
+		// called by commit, with the lock of the index held
+		HashMap<String, int[]> docsByName() {
+			if(docsByName == null) {
+				docsByName = new HashMap<>(segment.numDocs() * 4 / 3 + 1);
+				for(int doc = 0; doc < segment.numDocs(); doc++) {
+					String name = segment.docName(doc);
+					int[] docs = docsByName.get(name);
+					if(docs == null) {
+						docsByName.put(name, new int[] {doc});
+					} else {
+						docs = Arrays.copyOf(docs, docs.length + 1);
+						docs[docs.length - 1] = doc;
+						docsByName.put(name, docs);
+					}
+				}
+			}
+			return docsByName;
+		}
+	}
+}
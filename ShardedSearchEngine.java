@@ -0,0 +1,415 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A collection split into shards, each a {@link MiniSearchEngine} with its own
+ * index in indexDir/shard-N. A query is scored on all shards in parallel and
+ * the best documents of each are merged.
+ *
+ * Every shard scores with the statistics of the whole collection: the number
+ * of live documents, their average length, the document frequencies of the
+ * query terms and, for atc.atc, norms computed with the collection document
+ * frequencies. Scores are therefore exactly those of one MiniSearchEngine
+ * over all documents. Shards hold contiguous ranges of the files in sorted
+ * path order and ties are broken by shard, then document id, so rankings
+ * are the same too, as long as no documents were added since the build.
+ *
+ * The number of shards and the file range of each are recorded in
+ * indexDir/dd_shards.txt when the index is built, so a shard that has to be
+ * rebuilt indexes the same files, and the index can only be opened with the
+ * number of shards it was built with.
+ *
+ * The view of the shards with the collection statistics is rebuilt on the
+ * thread that refreshes or merges a shard. Its atc norms are computed by the
+ * first atc query on the view, see {@link IndexSnapshot}.
+ */
+public class ShardedSearchEngine {
+	static final String LAYOUT_FILE = "dd_shards.txt";
+
+	private final MiniSearchEngine[] shards;
+	private final ExecutorService searchers;
+
+	// shard snapshots with the collection statistics, replaced when a shard changes
+	private volatile ShardView view = null;
+	// refreshes of all shards running, which update the view once at the end
+	private final AtomicInteger refreshing = new AtomicInteger();
+
+	private static final Metrics.Histogram QUERY_MERGE = Metrics.histogram("sharded.query.merge");
+	private static final Metrics.Histogram VIEW_OPEN = Metrics.histogram("sharded.view.open");
+
+	public ShardedSearchEngine(String docsPath, String indexDir, String stopDir, int numShards) {
+		this(docsPath, indexDir, stopDir, numShards, 1, 0, PostingsCodec.DEFAULT, false);
+	}
+
+	/**
+	 * Opens the shards, building the index of any that does not exist yet with
+	 * the given options, see {@link MiniSearchEngine#shard}. An existing index
+	 * must be opened with the number of shards it was built with.
+	 *
+	 * @throws IllegalArgumentException if the index has another number of shards
+	 * @throws IllegalStateException if the shard layout cannot be read or written
+	 */
+	public ShardedSearchEngine(String docsPath, String indexDir, String stopDir, int numShards, int indexThreads,
+			long indexMemoryBudget, PostingsCodec codec, boolean withPositions) {
+		if(numShards < 1) {
+			throw new IllegalArgumentException("Need at least one shard, not " + numShards);
+		}
+		int[][] ranges;
+		try {
+			ranges = layout(docsPath, new File(indexDir), numShards);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read or write the shard layout of index '" + indexDir + "': "
+					+ e.getMessage(), e);
+		}
+		shards = new MiniSearchEngine[numShards];
+		for(int s = 0; s < numShards; s++) {
+			shards[s] = MiniSearchEngine.files(docsPath, indexDir + "/shard-" + s, stopDir, ranges[s][0], ranges[s][1],
+					indexThreads, indexMemoryBudget, codec, withPositions);
+		}
+		updateView();
+		for(MiniSearchEngine shard: shards) {
+			shard.setPublishListener(new Runnable() {
+				public void run() {
+					if(refreshing.get() == 0) {
+						updateView();
+					}
+				}
+			});
+		}
+		searchers = Executors.newFixedThreadPool(numShards, MiniSearchEngine.daemonThreads("shard-searcher"));
+	}
+
+	/*
+	 * The file range of each shard: the recorded one of an existing index,
+	 * otherwise the files are split now and the split is recorded
+	 */
+	private static int[][] layout(String docsPath, File indexDir, int numShards) throws IOException {
+		File file = new File(indexDir, LAYOUT_FILE);
+		if(file.exists()) {
+			int[][] ranges = readLayout(file);
+			if(ranges.length != numShards) {
+				throw new IllegalArgumentException("Index '" + indexDir + "' has " + ranges.length + " shards, not "
+						+ numShards);
+			}
+			return ranges;
+		}
+		String[] existing = indexDir.list();
+		if(existing != null) {
+			for(String name: existing) {
+				if(name.startsWith("shard-")) {
+					throw new IllegalArgumentException("Index '" + indexDir + "' has shards but no " + LAYOUT_FILE
+							+ ", it has to be rebuilt");
+				}
+			}
+		}
+
+		int numFiles = MiniSearchEngine.listFiles(new File(docsPath)).size();
+		int[][] ranges = new int[numShards][];
+		for(int s = 0; s < numShards; s++) {
+			ranges[s] = MiniSearchEngine.shardRange(numFiles, s, numShards);
+		}
+		indexDir.mkdirs();
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println(numShards);
+			for(int[] range: ranges) {
+				out.println(range[0] + " " + range[1]);
+			}
+		} finally {
+			out.close();
+		}
+		if(out.checkError()) {
+			throw new IOException("Could not write " + file);
+		}
+		return ranges;
+	}
+
+	/*
+	 * The number of shards on the first line, then the first and end file of each shard
+	 */
+	private static int[][] readLayout(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			if(line == null) {
+				throw new IOException("Shard layout " + file + " is empty");
+			}
+			int[][] ranges = new int[Integer.parseInt(line.trim())][];
+			for(int s = 0; s < ranges.length; s++) {
+				line = in.readLine();
+				if(line == null) {
+					throw new IOException("Shard layout " + file + " is truncated");
+				}
+				String[] parts = line.trim().split(" ");
+				ranges[s] = new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+			}
+			return ranges;
+		} catch (NumberFormatException e) {
+			throw new IOException("Shard layout " + file + " is corrupt: " + e.getMessage());
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Shard layout " + file + " is corrupt");
+		} finally {
+			in.close();
+		}
+	}
+
+	public int numShards() {
+		return shards.length;
+	}
+
+	public MiniSearchEngine shard(int s) {
+		return shards[s];
+	}
+
+	/** Enables Block-Max WAND on every shard, see {@link MiniSearchEngine#setDynamicPruning(boolean)} */
+	public void setDynamicPruning(boolean dynamicPruning) {
+		for(MiniSearchEngine shard: shards) {
+			shard.setDynamicPruning(dynamicPruning);
+		}
+	}
+
+	/** Registers a weighting with every shard, see {@link MiniSearchEngine#setWeighting(Weighting)} */
+	public void setWeighting(Weighting weighting) {
+		for(MiniSearchEngine shard: shards) {
+			shard.setWeighting(weighting);
+		}
+	}
+
+	/** Sets the BM25 proximity boost of every shard, see {@link MiniSearchEngine#setProximityBoost(int)} */
+	public void setProximityBoost(int window) {
+		for(MiniSearchEngine shard: shards) {
+			shard.setProximityBoost(window);
+		}
+	}
+
+	/**
+	 * Returns the names of the best documents of all shards, at most limit of
+	 * them, like {@link MiniSearchEngine#search(String, String, int)}. Each shard
+	 * returns its own best limit documents, which are merged by score.
+	 */
+	public List<String> search(final String query, final String weighting, final int limit) {
+		long start = Metrics.start();
+		final ShardView current = view;
+		List<Future<Hits>> futures = new ArrayList<>();
+		for(int s = 0; s < shards.length; s++) {
+			final int shard = s;
+			futures.add(searchers.submit(new Callable<Hits>() {
+				public Hits call() {
+					TopKCollector collector = shards[shard].searchSnapshot(current.snapshots[shard], query, weighting, limit);
+					double[] scores = new double[collector.size()];
+					int[] docs = collector.topDocs(scores);
+					return new Hits(docs, scores);
+				}
+			}));
+		}
+
+		Hits[] hits = new Hits[shards.length];
+		try {
+			for(int s = 0; s < shards.length; s++) {
+				hits[s] = futures.get(s).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching the shards");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for(Future<Hits> future: futures) {
+				future.cancel(true);
+			}
+		}
+
+		// ids offset by the shard bases rank ties like the document ids of one index
+		long merge_start = Metrics.start();
+		TopKCollector merged = new TopKCollector(limit);
+		for(int s = 0; s < shards.length; s++) {
+			for(int i = 0; i < hits[s].docs.length; i++) {
+				merged.collect(current.docBases[s] + hits[s].docs[i], hits[s].scores[i]);
+			}
+		}
+		List<String> results = new ArrayList<>();
+		for(int doc: merged.topDocs()) {
+			int s = current.shardOf(doc);
+			results.add(current.snapshots[s].docName(doc - current.docBases[s]));
+		}
+		QUERY_MERGE.recordSince(merge_start);
+		if(start != 0) {
+			Metrics.histogram("sharded.query." + weighting).recordSince(start);
+		}
+		return results;
+	}
+
+	/**
+	 * Adds or replaces a document. It goes to the shard chosen by a hash of its
+	 * name, and any older version in another shard is deleted. Every shard makes
+	 * its changes visible at its own next refresh, so until all have refreshed
+	 * a moved document can be found twice or not at all.
+	 */
+	public void addDocument(String docName, String contents) {
+		int target = (docName.hashCode() & 0x7fffffff) % shards.length;
+		for(int s = 0; s < shards.length; s++) {
+			if(s == target) {
+				shards[s].addDocument(docName, contents);
+			} else {
+				shards[s].deleteDocument(docName);
+			}
+		}
+	}
+
+	public void updateDocument(String docName, String contents) {
+		addDocument(docName, contents);
+	}
+
+	public void deleteDocument(String docName) {
+		for(MiniSearchEngine shard: shards) {
+			shard.deleteDocument(docName);
+		}
+	}
+
+	/** Commits the pending changes of every shard */
+	public void refresh() throws IOException {
+		refreshing.incrementAndGet();
+		try {
+			for(MiniSearchEngine shard: shards) {
+				shard.refresh();
+			}
+		} finally {
+			refreshing.decrementAndGet();
+			updateView();
+		}
+	}
+
+	public void close() throws IOException {
+		searchers.shutdown();
+		for(MiniSearchEngine shard: shards) {
+			shard.close();
+		}
+	}
+
+	/*
+	 * Replace the view by the current snapshots of the shards with the statistics
+	 * summed over them, unless no shard changed. Runs on the thread that changed
+	 * a shard.
+	 */
+	private synchronized void updateView() {
+		IndexSnapshot[] local = new IndexSnapshot[shards.length];
+		long[] generations = new long[shards.length];
+		for(int s = 0; s < shards.length; s++) {
+			local[s] = shards[s].snapshot();
+			generations[s] = local[s].generation();
+		}
+		if(view != null && Arrays.equals(view.generations, generations)) {
+			return;
+		}
+		long start = Metrics.start();
+		view = new ShardView(local, generations);
+		VIEW_OPEN.recordSince(start);
+	}
+
+	/*
+	 * Collection statistics of a set of shard snapshots, document frequencies are
+	 * looked up in every shard
+	 */
+	private static class ShardStatistics implements CollectionStatistics {
+		private final IndexSnapshot[] shards;
+		private final int num_docs;
+		private final long total_length;
+
+		ShardStatistics(IndexSnapshot[] shards) {
+			this.shards = shards;
+			int docs = 0;
+			long length = 0;
+			for(IndexSnapshot shard: shards) {
+				docs += shard.numDocs();
+				length += shard.totalLength();
+			}
+			this.num_docs = docs;
+			this.total_length = length;
+		}
+
+		public int numDocs() {
+			return num_docs;
+		}
+
+		public long totalLength() {
+			return total_length;
+		}
+
+		public int docFreq(String term) {
+			int df = 0;
+			for(IndexSnapshot shard: shards) {
+				df += shard.docFreq(shard.termOrds(term));
+			}
+			return df;
+		}
+
+		public long totalTermFreq(String term) {
+			long cf = 0;
+			for(IndexSnapshot shard: shards) {
+				cf += shard.totalTermFreq(shard.termOrds(term));
+			}
+			return cf;
+		}
+	}
+
+	private static class ShardView {
+		final long[] generations;
+		final IndexSnapshot[] snapshots;
+		// global id of the first document of each shard
+		final int[] docBases;
+
+		ShardView(IndexSnapshot[] local, long[] generations) {
+			this.generations = generations;
+			this.snapshots = new IndexSnapshot[local.length];
+			this.docBases = new int[local.length];
+			CollectionStatistics statistics = new ShardStatistics(local);
+			int max_doc = 0;
+			for(int s = 0; s < local.length; s++) {
+				snapshots[s] = local[s].withStatistics(statistics);
+				docBases[s] = max_doc;
+				max_doc += local[s].maxDoc();
+			}
+		}
+
+		int shardOf(int doc) {
+			int s = Arrays.binarySearch(docBases, doc);
+			if(s < 0) {
+				return -s - 2;
+			}
+			// empty shards share their base with the next one
+			while(s + 1 < docBases.length && docBases[s + 1] == doc) {
+				s++;
+			}
+			return s;
+		}
+	}
+
+	/*
+	 * Best documents of one shard from best to worst, by shard document id
+	 */
+	private static class Hits {
+		final int[] docs;
+		final double[] scores;
+
+		Hits(int[] docs, double[] scores) {
+			this.docs = docs;
+			this.scores = scores;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * The SMART weightings of {@link SmartWeighting} as a Lucene similarity. The
+ * augmented term frequency of a document takes its highest term frequency
+ * from the norms. For atc.atc the query norm is Lucene's query normalization,
+ * and the norm of the atc vector of each document, which depends on the
+ * document frequencies of all its terms, is computed with the postings once
+ * per opened index, like {@link IndexSnapshot} does for an index whose stored
+ * norms are stale. {@link #warm} computes them when a searcher is opened.
+ * <p>
+ * Computing them reads every posting of the field, so opening a searcher on
+ * a large index, and every reopen after a commit that added, merged or
+ * dropped a segment, costs a pass over the whole index. The document
+ * frequencies and document counts Lucene scores with include deleted
+ * documents until their segment is merged, so a reopen whose segments are
+ * all unchanged, for example one that only sees new deletes, reuses the
+ * norms of the previous reader. A changed segment changes the idf of terms
+ * of every segment, so no part of the norms is reused then.
+ */
+public class SmartSimilarity extends WeightingSimilarity {
+	private final SmartWeighting smart;
+	// atc norms of the documents of each top level reader, shared by readers on the same segments
+	private final Map<IndexReader, SegmentNorms> docNorms = new WeakHashMap<>();
+
+	/*
+	 * The atc norms by field of the readers on one list of segments
+	 */
+	private static class SegmentNorms {
+		// core cache keys of the leaves, in doc base order
+		final List<Object> cores;
+		final Map<String, double[]> fields = new HashMap<>();
+
+		SegmentNorms(List<Object> cores) {
+			this.cores = cores;
+		}
+	}
+
+	public SmartSimilarity(SmartWeighting smart) {
+		super(smart);
+		this.smart = smart;
+	}
+
+	@Override
+	public float queryBoost(double tf, double max_tf) {
+		return (float) smart.queryTf(tf, max_tf);
+	}
+
+	@Override
+	protected Weighting.TermScorer termScorer(double num_docs, double avg_doc_length, double num_docs_containing,
+			double query_tf) {
+		return smart.termScorer(num_docs_containing, num_docs, query_tf * smart.queryIdf(num_docs_containing, num_docs));
+	}
+
+	@Override
+	public float queryNorm(float valueForNormalization) {
+		if(smart.isCosine() && valueForNormalization > 0) {
+			return (float) (1 / Math.sqrt(valueForNormalization));
+		}
+		return 1;
+	}
+
+	@Override
+	public void warm(IndexReader reader, String field) throws IOException {
+		if(smart.isCosine() && cachedDocNorms(reader, field) == null) {
+			cacheDocNorms(reader, field, computeDocNorms(reader, field));
+		}
+	}
+
+	@Override
+	protected double[] docNorms(AtomicReaderContext context, String field) throws IOException {
+		if(!smart.isCosine()) {
+			return null;
+		}
+		IndexReader reader = ReaderUtil.getTopLevelContext(context).reader();
+		double[] norms = cachedDocNorms(reader, field);
+		if(norms == null) {
+			// a reader that was not warmed
+			norms = computeDocNorms(reader, field);
+			cacheDocNorms(reader, field, norms);
+		}
+		return norms;
+	}
+
+	private double[] cachedDocNorms(IndexReader reader, String field) {
+		synchronized(docNorms) {
+			return segmentNorms(reader).fields.get(field);
+		}
+	}
+
+	private void cacheDocNorms(IndexReader reader, String field, double[] norms) {
+		synchronized(docNorms) {
+			segmentNorms(reader).fields.put(field, norms);
+		}
+	}
+
+	/*
+	 * The norms of the reader, those of another open reader on the same segments
+	 * if there is one. Called with the lock of docNorms held.
+	 */
+	private SegmentNorms segmentNorms(IndexReader reader) {
+		SegmentNorms norms = docNorms.get(reader);
+		if(norms != null) {
+			return norms;
+		}
+		List<Object> cores = new ArrayList<>();
+		for(AtomicReaderContext leaf : reader.leaves()) {
+			cores.add(leaf.reader().getCoreCacheKey());
+		}
+		for(SegmentNorms other : docNorms.values()) {
+			if(other.cores.equals(cores)) {
+				norms = other;
+				break;
+			}
+		}
+		if(norms == null) {
+			norms = new SegmentNorms(cores);
+		}
+		docNorms.put(reader, norms);
+		return norms;
+	}
+
+	/*
+	 * Sum the squared atc weights of every posting of the field into its document
+	 */
+	private double[] computeDocNorms(IndexReader reader, String field) throws IOException {
+		double[] norms = new double[reader.maxDoc()];
+		NumericDocValues fieldNorms = MultiDocValues.getNormValues(reader, field);
+		Terms terms = MultiFields.getTerms(reader, field);
+		if(terms == null || fieldNorms == null) {
+			return norms;
+		}
+		TermsEnum termsEnum = terms.iterator(null);
+		DocsEnum postings = null;
+		while(termsEnum.next() != null) {
+			Weighting.TermScorer scorer = smart.termScorer(termsEnum.docFreq(), reader.maxDoc(), 1);
+			postings = termsEnum.docs(null, postings, DocsEnum.FLAG_FREQS);
+			for(int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+				double tf_idf = scorer.docWeight(postings.freq(), 0, docMaxTf(fieldNorms.get(doc)));
+				norms[doc] += Math.pow(tf_idf, 2);
+			}
+		}
+		for(int doc = 0; doc < norms.length; doc++) {
+			norms[doc] = Math.sqrt(norms[doc]);
+		}
+		return norms;
+	}
+}
@@ -0,0 +1,177 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The SMART tf*idf weightings atc.atc, atn.atn and ann.bpn. Documents are
+ * weighted with augmented term frequencies, 0.5 + 0.5 * tf / max_tf, times
+ * log(N / df) for atc and atn. The query is weighted the same way for atc and
+ * atn, and with the binary probabilistic idf log((N - df) / df) for bpn.
+ * atc.atc is the cosine of the two vectors.
+ */
+public class SmartWeighting extends Weighting {
+	private final String name;
+	// document side idf log(N / df), or 1 for ann
+	private final boolean documentIdf;
+	private final String queryScheme;
+	private final boolean cosine;
+
+	public static SmartWeighting atcAtc() {
+		return new SmartWeighting("atc.atc", true, "atc", true);
+	}
+
+	public static SmartWeighting atnAtn() {
+		return new SmartWeighting("atn.atn", true, "atn", false);
+	}
+
+	public static SmartWeighting annBpn() {
+		return new SmartWeighting("ann.bpn", false, "bpn", false);
+	}
+
+	private SmartWeighting(String name, boolean documentIdf, String queryScheme, boolean cosine) {
+		this.name = name;
+		this.documentIdf = documentIdf;
+		this.queryScheme = queryScheme;
+		this.cosine = cosine;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/** Whether scores are normalized by the document and query norms */
+	public boolean isCosine() {
+		return cosine;
+	}
+
+	/** Document side weight of a term, before cosine normalization */
+	public double docWeight(double doc_tf, double doc_max_tf, double num_docs_containing, double num_docs) {
+		return augmentedTf(doc_tf, doc_max_tf) * idf(num_docs_containing, num_docs);
+	}
+
+	private static double augmentedTf(double doc_tf, double doc_max_tf) {
+		return 0.5 + 0.5 * (doc_tf / doc_max_tf);
+	}
+
+	private double idf(double num_docs_containing, double num_docs) {
+		return documentIdf ? Math.log(num_docs / num_docs_containing) : 1;
+	}
+
+	/**
+	 * Query weight of every query token with its norm. Tokens no document
+	 * contains count as contained in one document.
+	 */
+	public QueryVector queryVector(Map<String, Double> tfMap, Map<String, Double> idfMap, int num_docs) {
+		double max_tf = 0;
+		for(double tf: tfMap.values()) {
+			max_tf = Math.max(max_tf, tf);
+		}
+		HashMap<String, Double> weightVector = new HashMap<>();
+		double norm = 0;
+
+		for(String token: tfMap.keySet()) {
+			double tf = queryTf(tfMap.get(token), max_tf);
+
+			double idf = 1;
+			if(idfMap.containsKey(token)) {
+				idf = idfMap.get(token);
+			}
+			idf = queryIdf(idf, num_docs);
+
+			double td_idf = tf * idf;
+			weightVector.put(token, td_idf);
+
+			norm += Math.pow(td_idf, 2);
+		}
+		return new QueryVector(weightVector, Math.sqrt(norm));
+	}
+
+	/** Query side term frequency factor of a token occurring tf times in a query whose most frequent token occurs max_tf times */
+	public double queryTf(double tf, double max_tf) {
+		if(queryScheme.startsWith("a")) {
+			return 0.5 + 0.5 * (tf / max_tf);
+		} else if(queryScheme.equals("bpn")) {
+			return (tf > 0 ? 1 : 0);
+		}
+		return tf;
+	}
+
+	/** Query side idf of a token contained in num_docs_containing documents, taken as 1 for tokens no document contains */
+	public double queryIdf(double num_docs_containing, double num_docs) {
+		if(queryScheme.equals("bpn")) {
+			return Math.log((num_docs - num_docs_containing) / num_docs_containing);
+		}
+		return Math.log(num_docs / num_docs_containing);
+	}
+
+	/**
+	 * Scorer of a term contained in num_docs_containing documents, whose query
+	 * side weight was computed with {@link #queryTf} and {@link #queryIdf}.
+	 * Cosine normalization is left to the caller.
+	 */
+	public TermScorer termScorer(double num_docs_containing, double num_docs, double query_weight) {
+		return new AugmentedTfScorer(idf(num_docs_containing, num_docs), query_weight);
+	}
+
+	public QueryScorer scorer(final IndexSnapshot snapshot, Map<String, Double> queryTfMap, Map<String, Double> queryDfMap) {
+		final QueryVector query = queryVector(queryTfMap, queryDfMap, snapshot.numDocs());
+		return new QueryScorer() {
+			public TermScorer term(String token, int docFreq, long totalTermFreq) {
+				return new AugmentedTfScorer(idf(docFreq, snapshot.numDocs()), query.weight(token));
+			}
+
+			@Override
+			public double finish(IndexSnapshot snapshot, int doc, double score) {
+				if(cosine && score != 0) {
+					return score / (snapshot.docNorm(doc) * query.norm());
+				}
+				return score;
+			}
+		};
+	}
+
+	/**
+	 * Weights of the query tokens and the norm of the query vector
+	 */
+	public static class QueryVector {
+		private final HashMap<String, Double> weights;
+		private final double norm;
+
+		QueryVector(HashMap<String, Double> weights, double norm) {
+			this.weights = weights;
+			this.norm = norm;
+		}
+
+		public double weight(String token) {
+			return weights.get(token);
+		}
+
+		public double norm() {
+			return norm;
+		}
+	}
+
+	private static final class AugmentedTfScorer extends TermScorer {
+		private final double idf;
+		private final double query_weight;
+
+		AugmentedTfScorer(double idf, double query_weight) {
+			this.idf = idf;
+			this.query_weight = query_weight;
+		}
+
+		public double queryWeight() {
+			return query_weight;
+		}
+
+		public double docWeight(int freq, int docLength, int docMaxTf) {
+			return augmentedTf(freq, docMaxTf) * idf;
+		}
+
+		@Override
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			for(int i = 0; i < count; i++) {
+				accumulators[docs[i]] += (0.5 + 0.5 * ((double) freqs[i] / docMaxTfs[i])) * idf * query_weight;
+			}
+		}
+	}
+}
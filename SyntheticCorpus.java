@@ -0,0 +1,126 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates a collection of text documents of any size for benchmarks. Words
+ * are drawn from a Zipf distribution over a made-up vocabulary, so postings
+ * lengths are skewed like in real text. The same seed gives the same files.
+ *
+ * A corpus directory has the documents under docs/ named 1.txt, 2.txt, ...,
+ * a query file in the "id,text" format of the CACM and MED query files, and a
+ * stop word file with the most frequent words.
+ */
+public class SyntheticCorpus {
+	public static final String DOCS_DIR = "docs";
+	public static final String QUERY_FILE = "queries.query";
+	public static final String STOPWORDS_FILE = "stopwords.txt";
+
+	private static final double ZIPF_EXPONENT = 1.07;
+	private static final int NUM_STOPWORDS = 25;
+	private static final String[] SYLLABLES = {"al", "be", "cor", "da", "en", "fi", "gra", "ho", "in", "ju",
+			"ka", "lo", "mi", "nu", "or", "pe", "qui", "ra", "si", "tu", "un", "ve", "wo", "xe", "yo", "ze"};
+
+	private final String[] vocabulary;
+	private final double[] cumulative;
+
+	/** A vocabulary of the given size, the same for the same seed */
+	public SyntheticCorpus(int vocabularySize, long seed) {
+		Random random = new Random(seed);
+		vocabulary = new String[vocabularySize];
+		for(int rank = 0; rank < vocabularySize; rank++) {
+			StringBuilder word = new StringBuilder();
+			// frequent words are short, like in English
+			int syllables = 1 + Math.min(4, (int) Math.log10(rank + 2)) + random.nextInt(2);
+			for(int i = 0; i < syllables; i++) {
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			// the rank as a suffix keeps most words distinct
+			for(int n = rank; n > 0; n /= 26) {
+				word.append((char) ('a' + n % 26));
+			}
+			vocabulary[rank] = word.toString();
+		}
+
+		cumulative = new double[vocabularySize];
+		double sum = 0;
+		for(int rank = 0; rank < vocabularySize; rank++) {
+			sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+			cumulative[rank] = sum;
+		}
+		for(int rank = 0; rank < vocabularySize; rank++) {
+			cumulative[rank] /= sum;
+		}
+	}
+
+	/**
+	 * Write numDocs documents of 50 to 500 words, numQueries queries of 2 to 8
+	 * words and the stop words into the corpus directory
+	 */
+	public void generate(File corpusDir, int numDocs, int numQueries, long seed) throws IOException {
+		Random random = new Random(seed);
+		File docsDir = new File(corpusDir, DOCS_DIR);
+		docsDir.mkdirs();
+
+		for(int doc = 1; doc <= numDocs; doc++) {
+			BufferedWriter out = new BufferedWriter(new FileWriter(new File(docsDir, doc + ".txt")));
+			try {
+				int length = 50 + random.nextInt(451);
+				boolean sentenceStart = true;
+				for(int i = 0; i < length; i++) {
+					String word = vocabulary[nextRank(random)];
+					if(sentenceStart) {
+						word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+					}
+					out.write(word);
+					sentenceStart = random.nextInt(12) == 0;
+					out.write(sentenceStart ? ". " : " ");
+					if(random.nextInt(15) == 0) {
+						out.newLine();
+					}
+				}
+				out.newLine();
+			} finally {
+				out.close();
+			}
+		}
+
+		// queries use the same distribution without the stop words
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(corpusDir, QUERY_FILE)));
+		try {
+			for(int query = 1; query <= numQueries; query++) {
+				StringBuilder text = new StringBuilder();
+				int length = 2 + random.nextInt(7);
+				for(int i = 0; i < length; i++) {
+					int rank;
+					do {
+						rank = nextRank(random);
+					} while(rank < NUM_STOPWORDS);
+					text.append(i > 0 ? " " : "").append(vocabulary[rank]);
+				}
+				out.write(query + "," + text);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+
+		out = new BufferedWriter(new FileWriter(new File(corpusDir, STOPWORDS_FILE)));
+		try {
+			for(String word: Arrays.copyOf(vocabulary, Math.min(NUM_STOPWORDS, vocabulary.length))) {
+				out.write(word);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private int nextRank(Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		return Math.min(rank >= 0 ? rank : -rank - 1, vocabulary.length - 1);
+	}
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * Assigns dense int ids to terms in the order they are first seen. Lookups go
+ * through an open-addressing hash table of ids, so the only objects held are
+ * the term strings themselves.
+ */
+public class TermDictionary {
+	private String[] terms = new String[16];
+	private int[] hashes = new int[16];
+	private int size = 0;
+
+	// slots hold id + 1, 0 marks an empty slot
+	private int[] table = new int[32];
+
+	/** Returns the id of the term, adding it to the dictionary if it is new */
+	public int add(String term) {
+		int hash = term.hashCode();
+		int slot = findSlot(term, hash);
+		if(table[slot] != 0) {
+			return table[slot] - 1;
+		}
+		return insert(term, hash, slot);
+	}
+
+	/**
+	 * Returns the id of the term held in the first length chars of the buffer,
+	 * adding it if it is new. Only new terms are copied to a String.
+	 */
+	public int add(char[] buffer, int length) {
+		int hash = hash(buffer, length);
+		int slot = findSlot(buffer, length, hash);
+		if(table[slot] != 0) {
+			return table[slot] - 1;
+		}
+		return insert(new String(buffer, 0, length), hash, slot);
+	}
+
+	private int insert(String term, int hash, int slot) {
+		int id = size++;
+		if(id == terms.length) {
+			terms = Arrays.copyOf(terms, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		terms[id] = term;
+		hashes[id] = hash;
+		table[slot] = id + 1;
+		if(size * 2 > table.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	/** Returns the id of the term, or -1 if it is not in the dictionary */
+	public int get(String term) {
+		int slot = findSlot(term, term.hashCode());
+		return table[slot] - 1;
+	}
+
+	public String term(int id) {
+		return terms[id];
+	}
+
+	/** Number of terms in the dictionary */
+	public int size() {
+		return size;
+	}
+
+	private int findSlot(String term, int hash) {
+		int mask = table.length - 1;
+		int slot = mix(hash) & mask;
+		while(table[slot] != 0) {
+			int id = table[slot] - 1;
+			if(hashes[id] == hash && terms[id].equals(term)) break;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private int findSlot(char[] buffer, int length, int hash) {
+		int mask = table.length - 1;
+		int slot = mix(hash) & mask;
+		while(table[slot] != 0) {
+			int id = table[slot] - 1;
+			if(hashes[id] == hash && equals(terms[id], buffer, length)) break;
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static boolean equals(String term, char[] buffer, int length) {
+		if(term.length() != length) return false;
+		for(int i = 0; i < length; i++) {
+			if(term.charAt(i) != buffer[i]) return false;
+		}
+		return true;
+	}
+
+	// same as String.hashCode, so both lookups find the same slots
+	private static int hash(char[] buffer, int length) {
+		int hash = 0;
+		for(int i = 0; i < length; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		return hash;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		for(int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while(table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	/*
+	 * Spread the hash bits, String hashes of similar terms differ mostly in the low bits
+	 */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Collects the k best scoring documents with a bounded binary min-heap kept in
+ * primitive arrays. Higher scores rank first, ties are broken by the lower
+ * document id so that rankings are deterministic.
+ */
+public class TopKCollector {
+	private final int k;
+	private final int[] heapDocs;
+	private final double[] heapScores;
+	private int size = 0;
+
+	public TopKCollector(int k) {
+		this.k = Math.max(k, 0);
+		this.heapDocs = new int[this.k];
+		this.heapScores = new double[this.k];
+	}
+
+	/** Offers a document to the collector */
+	public void collect(int doc, double score) {
+		if(size < k) {
+			heapDocs[size] = doc;
+			heapScores[size] = score;
+			siftUp(size++);
+		} else if(k > 0 && ranksBefore(doc, score, heapDocs[0], heapScores[0])) {
+			heapDocs[0] = doc;
+			heapScores[0] = score;
+			siftDown(0);
+		}
+	}
+
+	/** True once k documents have been collected */
+	public boolean isFull() {
+		return k > 0 && size == k;
+	}
+
+	/** Score of the worst document in the heap, only meaningful when {@link #isFull()} */
+	public double minScore() {
+		return heapScores[0];
+	}
+
+	/** Document id of the worst document in the heap, only meaningful when {@link #isFull()} */
+	public int minDoc() {
+		return heapDocs[0];
+	}
+
+	/** Number of documents collected, at most k */
+	public int size() {
+		return size;
+	}
+
+	/** Empties the collector so it can be reused for another query */
+	public void reset() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the collected document ids from best to worst. This consumes the
+	 * heap, so the collector must be reset before it is reused.
+	 */
+	public int[] topDocs() {
+		return drain(null);
+	}
+
+	/**
+	 * Like {@link #topDocs()}, also writing the score of each returned document
+	 * into scores, which must have room for {@link #size()} entries.
+	 */
+	public int[] topDocs(double[] scores) {
+		return drain(scores);
+	}
+
+	private int[] drain(double[] scores) {
+		int[] docs = new int[size];
+		for(int i = size - 1; i >= 0; i--) {
+			docs[i] = heapDocs[0];
+			if(scores != null) {
+				scores[i] = heapScores[0];
+			}
+			size--;
+			heapDocs[0] = heapDocs[size];
+			heapScores[0] = heapScores[size];
+			siftDown(0);
+		}
+		return docs;
+	}
+
+	/*
+	 * True if document a should be ranked before document b
+	 */
+	static boolean ranksBefore(int docA, double scoreA, int docB, double scoreB) {
+		return scoreA > scoreB || (scoreA == scoreB && docA < docB);
+	}
+
+	private void siftUp(int i) {
+		int doc = heapDocs[i];
+		double score = heapScores[i];
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(!ranksBefore(heapDocs[parent], heapScores[parent], doc, score)) break;
+			heapDocs[i] = heapDocs[parent];
+			heapScores[i] = heapScores[parent];
+			i = parent;
+		}
+		heapDocs[i] = doc;
+		heapScores[i] = score;
+	}
+
+	private void siftDown(int i) {
+		if(size == 0) return;
+		int doc = heapDocs[i];
+		double score = heapScores[i];
+		int half = size >>> 1;
+		while(i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if(right < size && ranksBefore(heapDocs[child], heapScores[child], heapDocs[right], heapScores[right])) {
+				child = right;
+			}
+			if(!ranksBefore(doc, score, heapDocs[child], heapScores[child])) break;
+			heapDocs[i] = heapDocs[child];
+			heapScores[i] = heapScores[child];
+			i = child;
+		}
+		heapDocs[i] = doc;
+		heapScores[i] = score;
+	}
+}
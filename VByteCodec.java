@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Postings as variable-byte integers, a document id delta then a frequency
+ * for each posting, with a skip table entry every 64 postings. This is the
+ * format of segments written before codecs could be chosen.
+ */
+class VByteCodec extends PostingsCodec {
+	static final int BLOCK_SIZE = 64;
+
+	@Override
+	int id() {
+		return 0;
+	}
+
+	@Override
+	public String name() {
+		return "vbyte";
+	}
+
+	@Override
+	public int blockSize() {
+		return BLOCK_SIZE;
+	}
+
+	@Override
+	SegmentPostings postings(ByteBuffer buf, int offset, int size) {
+		return new VBytePostings(buf, offset, size);
+	}
+
+	@Override
+	void encodeBlock(SegmentWriter.ByteArrayBuilder data, PostingsList postings, int start, int end, int prevDoc) {
+		for(int i = start; i < end; i++) {
+			int doc = postings.doc(i);
+			data.writeVInt(doc - prevDoc);
+			data.writeVInt(postings.freq(i));
+			prevDoc = doc;
+		}
+	}
+
+	/*
+	 * Decodes one posting at a time
+	 */
+	private static class VBytePostings extends SegmentPostings {
+		private int bytePos;
+		private int freq = 0;
+
+		VBytePostings(ByteBuffer buf, int offset, int size) {
+			super(buf, offset, size, BLOCK_SIZE);
+			this.bytePos = data;
+		}
+
+		@Override
+		public int freq() {
+			return freq;
+		}
+
+		@Override
+		public int nextDoc() {
+			if(++pos >= size) {
+				return exhausted();
+			}
+			if(doc < 0) {
+				doc = 0;
+			}
+			doc += readVInt();
+			freq = readVInt();
+			return doc;
+		}
+
+		@Override
+		public int advance(int target) {
+			if(doc >= target) {
+				return doc;
+			}
+			int block = shallowAdvance(target);
+			if(block < 0) {
+				return exhausted();
+			}
+			if(block > currentBlock()) {
+				// jump to the start of the block, decoding resumes from the previous block's last doc
+				pos = block * BLOCK_SIZE - 1;
+				bytePos = data + blockOffset(block);
+				doc = block > 0 ? blockLastDoc(block - 1) : -1;
+			}
+			while(nextDoc() < target) {
+			}
+			return doc;
+		}
+
+		private int readVInt() {
+			byte b = buf.get(bytePos++);
+			int value = b & 0x7F;
+			for(int shift = 7; b < 0; shift += 7) {
+				b = buf.get(bytePos++);
+				value |= (b & 0x7F) << shift;
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+import java.util.BitSet;
+
+/**
+ * Document-at-a-time BM25 evaluation with Block-Max WAND dynamic pruning.
+ * Using the per block maximum term frequency and minimum document length
+ * stored in the postings skip tables, documents whose score upper bound
+ * cannot enter the current top-k are skipped without being scored. The
+ * ranking is identical to exhaustive evaluation as long as every query term
+ * has a positive idf.
+ */
+public class WandEvaluator {
+	private static final int NO_MORE_DOCS = SegmentPostings.NO_MORE_DOCS;
+
+	// relative slack on score bounds, covers rounding from summing terms in a different order
+	private static final double BOUND_SLACK = 1e-9;
+
+	private static final Metrics.Counter POSTINGS_SCORED = Metrics.counter("engine.postings.scored");
+	private static final Metrics.Counter POSTINGS_SKIPPED = Metrics.counter("engine.postings.skipped");
+	private static final Metrics.Counter DOCS_SCORED = Metrics.counter("engine.docs.scored");
+	private static final Metrics.Counter DOCS_DELETED = Metrics.counter("engine.docs.deleted");
+
+	private final BM25Scorer scorer;
+
+	public WandEvaluator(BM25Scorer scorer) {
+		this.scorer = scorer;
+	}
+
+	/**
+	 * Collects the top documents of one segment for the given query terms,
+	 * skipping the documents in deleted, which may also hold documents that
+	 * are filtered out rather than deleted. Documents are collected under their global
+	 * id, docBase plus the segment id, so the collector can be shared by the
+	 * segments of a snapshot. Terms are scored in array order, which must
+	 * match the exhaustive path for identical scores.
+	 */
+	public void search(IndexSegment segment, int docBase, BitSet deleted,
+			SegmentPostings[] postings, double[] idfs, double[] queryParts, TopKCollector collector) {
+		int n = postings.length;
+		Cursor[] byTerm = new Cursor[n];
+		Cursor[] cursors = new Cursor[n];
+		long total_postings = 0;
+		for(int t = 0; t < n; t++) {
+			byTerm[t] = new Cursor(postings[t], idfs[t], queryParts[t]);
+			cursors[t] = byTerm[t];
+			total_postings += postings[t].size();
+		}
+		int scored_postings = 0;
+		int scored_docs = 0;
+		int deleted_docs = 0;
+
+		while(true) {
+			sortByDoc(cursors);
+			double threshold = collector.isFull() ? collector.minScore() : Double.NEGATIVE_INFINITY;
+
+			// find the first document whose upper bound could beat the threshold
+			int pivot = -1;
+			double bound = 0;
+			for(int i = 0; i < n && cursors[i].doc() != NO_MORE_DOCS; i++) {
+				bound += cursors[i].maxScore;
+				if(exceeds(bound, threshold)) {
+					pivot = i;
+					break;
+				}
+			}
+			if(pivot < 0) break;
+
+			int pivotDoc = cursors[pivot].doc();
+			while(pivot + 1 < n && cursors[pivot + 1].doc() == pivotDoc) {
+				pivot++;
+			}
+
+			// refine the bound with the maxima of the blocks containing the pivot
+			double blockBound = 0;
+			int nextCandidate = NO_MORE_DOCS;
+			for(int i = 0; i <= pivot; i++) {
+				int block = cursors[i].postings.shallowAdvance(pivotDoc);
+				if(block < 0) continue;
+				blockBound += cursors[i].blockMaxScore(block);
+				nextCandidate = Math.min(nextCandidate, cursors[i].postings.blockLastDoc(block) + 1);
+			}
+			if(!exceeds(blockBound, threshold)) {
+				if(pivot + 1 < n) {
+					nextCandidate = Math.min(nextCandidate, cursors[pivot + 1].doc());
+				}
+				for(int i = 0; i <= pivot; i++) {
+					cursors[i].postings.advance(nextCandidate);
+				}
+				continue;
+			}
+
+			if(cursors[0].doc() == pivotDoc && deleted.get(pivotDoc)) {
+				deleted_docs++;
+				for(int i = 0; i <= pivot; i++) {
+					cursors[i].postings.nextDoc();
+				}
+			} else if(cursors[0].doc() == pivotDoc) {
+				double K = scorer.lengthNorm(segment.docLength(pivotDoc));
+				double score = 0;
+				for(int t = 0; t < n; t++) {
+					Cursor c = byTerm[t];
+					if(c.doc() == pivotDoc) {
+						score += scorer.score(c.idf, scorer.tfPart(c.postings.freq(), K), c.queryPart);
+						scored_postings++;
+					}
+				}
+				scored_docs++;
+				collector.collect(docBase + pivotDoc, score);
+				for(int i = 0; i <= pivot; i++) {
+					cursors[i].postings.nextDoc();
+				}
+			} else {
+				for(int i = 0; i < n && cursors[i].doc() < pivotDoc; i++) {
+					cursors[i].postings.advance(pivotDoc);
+				}
+			}
+		}
+
+		POSTINGS_SCORED.add(scored_postings);
+		POSTINGS_SKIPPED.add(total_postings - scored_postings);
+		DOCS_SCORED.add(scored_docs);
+		DOCS_DELETED.add(deleted_docs);
+	}
+
+	private static boolean exceeds(double bound, double threshold) {
+		return bound * (1 + BOUND_SLACK) > threshold;
+	}
+
+	private static void sortByDoc(Cursor[] cursors) {
+		for(int i = 1; i < cursors.length; i++) {
+			Cursor c = cursors[i];
+			int j = i - 1;
+			while(j >= 0 && cursors[j].doc() > c.doc()) {
+				cursors[j + 1] = cursors[j];
+				j--;
+			}
+			cursors[j + 1] = c;
+		}
+	}
+
+	/*
+	 * Postings of one query term with its score bounds
+	 */
+	private class Cursor {
+		final SegmentPostings postings;
+		final double idf;
+		final double queryPart;
+		final double maxScore;
+
+		Cursor(SegmentPostings postings, double idf, double queryPart) {
+			this.postings = postings;
+			this.idf = idf;
+			this.queryPart = queryPart;
+
+			double max = 0;
+			for(int block = 0; block < postings.numBlocks(); block++) {
+				max = Math.max(max, blockMaxScore(block));
+			}
+			this.maxScore = max;
+			postings.nextDoc();
+		}
+
+		int doc() {
+			return postings.docID();
+		}
+
+		/*
+		 * The score is increasing in tf and decreasing in document length, so the
+		 * block's max tf and shortest document bound the score of all its postings
+		 */
+		double blockMaxScore(int block) {
+			double K = scorer.lengthNorm(postings.blockMinDocLength(block));
+			return scorer.score(idf, scorer.tfPart(postings.blockMaxTf(block), K), queryPart);
+		}
+	}
+}
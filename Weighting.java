@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A term weighting scheme of {@link MiniSearchEngine}, registered under its
+ * name. A query is scored with the weighting resolved once when it starts:
+ * the weighting makes a {@link QueryScorer} from the query and the collection
+ * statistics, which makes a {@link TermScorer} for each query term. The
+ * postings of a term are scored in blocks by one call to its term scorer,
+ * whose loop only does arithmetic on precomputed term constants.
+ *
+ * The score of a document is the sum of the scores of the query terms it
+ * contains, passed through {@link QueryScorer#finish} once all terms are
+ * scored, so a weighting can normalize it or add a part that does not depend
+ * on the terms.
+ */
+public abstract class Weighting {
+	/** New instances of the built in weightings with their default parameters */
+	public static List<Weighting> defaults() {
+		return new ArrayList<Weighting>(Arrays.asList(SmartWeighting.atcAtc(), SmartWeighting.atnAtn(),
+				SmartWeighting.annBpn(), new BM25Weighting(), new BM25FWeighting(),
+				LanguageModelWeighting.dirichlet(LanguageModelWeighting.DEFAULT_MU),
+				LanguageModelWeighting.jelinekMercer(LanguageModelWeighting.DEFAULT_LAMBDA)));
+	}
+
+	/** Name queries ask for the weighting by */
+	public abstract String name();
+
+	/**
+	 * Whether term scorers need the number of occurrences of their term in the
+	 * collection, which costs an extra pass over its postings
+	 */
+	public boolean needsTotalTermFreq() {
+		return false;
+	}
+
+	/**
+	 * Prepares scoring a query against a snapshot, which holds the collection
+	 * statistics.
+	 *
+	 * @param queryTfMap frequency of every query token, whether indexed or not
+	 * @param queryDfMap number of live documents containing each query token
+	 * that some document contains
+	 */
+	public abstract QueryScorer scorer(IndexSnapshot snapshot, Map<String, Double> queryTfMap,
+			Map<String, Double> queryDfMap);
+
+	/** Name and parameters, different settings of a weighting have different strings */
+	@Override
+	public String toString() {
+		return name();
+	}
+
+	/**
+	 * Scores the documents for one query
+	 */
+	public static abstract class QueryScorer {
+		/**
+		 * Scorer of a query term with documents
+		 *
+		 * @param totalTermFreq occurrences of the term in live documents, only
+		 * known if the weighting needs it, otherwise 0
+		 */
+		public abstract TermScorer term(String token, int docFreq, long totalTermFreq);
+
+		/** Score of a document from the sum of its term scores, which it is by default */
+		public double finish(IndexSnapshot snapshot, int doc, double score) {
+			return score;
+		}
+	}
+
+	/**
+	 * Scores the postings of one query term. A score is a query side weight
+	 * times a document side weight, and the document side only depends on the
+	 * posting, the document and the collection.
+	 */
+	public static abstract class TermScorer {
+		/** Query side weight of the term */
+		public abstract double queryWeight();
+
+		/** Document side weight of the term in a document */
+		public abstract double docWeight(int freq, int docLength, int docMaxTf);
+
+		/**
+		 * Adds the score of each of the first count postings to the accumulator
+		 * of its document. The arrays hold the global document id, the term
+		 * frequency, the length and the highest term frequency of the document.
+		 */
+		public void score(int[] docs, int[] freqs, int[] docLengths, int[] docMaxTfs, int count, double[] accumulators) {
+			double query_weight = queryWeight();
+			for(int i = 0; i < count; i++) {
+				accumulators[docs[i]] += docWeight(freqs[i], docLengths[i], docMaxTfs[i]) * query_weight;
+			}
+		}
+	}
+}
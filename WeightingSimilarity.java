@@ -0,0 +1,201 @@
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A Lucene similarity that scores like a {@link Weighting} of
+ * MiniSearchEngine, so {@link SearchFiles} serves the same rankings from
+ * Lucene's postings and top-k collection. The arithmetic is that of the
+ * weighting's own {@link Weighting.TermScorer}, only the collection
+ * statistics come from Lucene.
+ *
+ * The norm of a document is its exact length and highest term frequency
+ * instead of Lucene's one byte length norm, so an index is searched with a
+ * weighting similarity only if it was built with one, see
+ * {@link IndexFiles.Options#similarity}. All weighting similarities write the
+ * same norms.
+ *
+ * Lucene scores every query clause on its own, so the query side frequency
+ * factor of a term, which depends on the other query terms, is passed in as
+ * the boost of its clause, see {@link #queryBoost}. The number of documents
+ * and the document frequencies are Lucene's, which count deleted documents
+ * until their segment is merged: on an index without deletions the scores
+ * are those of MiniSearchEngine up to float rounding.
+ */
+public abstract class WeightingSimilarity extends Similarity {
+	private final Weighting weighting;
+
+	protected WeightingSimilarity(Weighting weighting) {
+		this.weighting = weighting;
+	}
+
+	/** The similarity of atc.atc, atn.atn, ann.bpn or BM25 */
+	public static WeightingSimilarity forWeighting(Weighting weighting) {
+		if(weighting instanceof SmartWeighting) {
+			return new SmartSimilarity((SmartWeighting) weighting);
+		} else if(weighting instanceof BM25Weighting) {
+			return new BM25WeightingSimilarity((BM25Weighting) weighting);
+		}
+		throw new IllegalArgumentException("No Lucene similarity for weighting " + weighting.name());
+	}
+
+	/** The similarity of a built in weighting with its default parameters */
+	public static WeightingSimilarity forName(String name) {
+		for(Weighting weighting: Weighting.defaults()) {
+			if(weighting.name().equals(name)) {
+				return forWeighting(weighting);
+			}
+		}
+		throw new IllegalArgumentException("Unknown weighting " + name);
+	}
+
+	public Weighting weighting() {
+		return weighting;
+	}
+
+	/**
+	 * Boost of the clause of a term occurring tf times in the query, whose
+	 * most frequent term occurs max_tf times
+	 */
+	public abstract float queryBoost(double tf, double max_tf);
+
+	/**
+	 * Scorer of a term with the statistics of the collection, whose query side
+	 * frequency factor is the boost of its clause
+	 */
+	protected abstract Weighting.TermScorer termScorer(double num_docs, double avg_doc_length,
+			double num_docs_containing, double query_tf);
+
+	/**
+	 * Computes whatever the similarity keeps per opened index for the field,
+	 * so queries on the reader do not have to. Called by {@link SearchFiles}
+	 * when it opens or reopens a searcher.
+	 */
+	public void warm(IndexReader reader, String field) throws IOException {
+	}
+
+	/**
+	 * Divisor of the scores of the documents of a leaf, indexed by the leaf's
+	 * document ids plus its doc base, or null to leave scores as they are
+	 */
+	protected double[] docNorms(AtomicReaderContext context, String field) throws IOException {
+		return null;
+	}
+
+	/** Length of the document with the given norm */
+	public static int docLength(long norm) {
+		return (int) (norm >>> 32);
+	}
+
+	/** Highest term frequency in the document with the given norm */
+	public static int docMaxTf(long norm) {
+		return (int) norm;
+	}
+
+	@Override
+	public final long computeNorm(FieldInvertState state) {
+		return ((long) state.getLength() << 32) | state.getMaxTermFrequency();
+	}
+
+	@Override
+	public final SimWeight computeWeight(float queryBoost, CollectionStatistics collectionStats,
+			TermStatistics... termStats) {
+		double num_docs = collectionStats.maxDoc();
+		long total_length = collectionStats.sumTotalTermFreq();
+		double avg_doc_length = total_length > 0 ? total_length / num_docs : 1;
+		// a phrase scores its frequency with each of its terms
+		Weighting.TermScorer[] scorers = new Weighting.TermScorer[termStats.length];
+		for(int t = 0; t < termStats.length; t++) {
+			scorers[t] = termScorer(num_docs, avg_doc_length, Math.max(termStats[t].docFreq(), 1), queryBoost);
+		}
+		return new TermWeight(collectionStats.field(), scorers);
+	}
+
+	@Override
+	public final SimScorer simScorer(SimWeight weight, AtomicReaderContext context) throws IOException {
+		TermWeight termWeight = (TermWeight) weight;
+		NumericDocValues norms = context.reader().getNormValues(termWeight.field);
+		return new TermSimScorer(termWeight, norms, docNorms(context, termWeight.field), context.docBase);
+	}
+
+	@Override
+	public String toString() {
+		return weighting.toString();
+	}
+
+	private static final class TermWeight extends SimWeight {
+		final String field;
+		final Weighting.TermScorer[] scorers;
+		// query side weight of each scorer times the query norm and the boost of enclosing queries
+		final double[] queryWeights;
+
+		TermWeight(String field, Weighting.TermScorer[] scorers) {
+			this.field = field;
+			this.scorers = scorers;
+			this.queryWeights = new double[scorers.length];
+			normalize(1, 1);
+		}
+
+		@Override
+		public float getValueForNormalization() {
+			double sum = 0;
+			for(Weighting.TermScorer scorer: scorers) {
+				sum += scorer.queryWeight() * scorer.queryWeight();
+			}
+			return (float) sum;
+		}
+
+		@Override
+		public void normalize(float queryNorm, float topLevelBoost) {
+			for(int t = 0; t < scorers.length; t++) {
+				queryWeights[t] = scorers[t].queryWeight() * queryNorm * topLevelBoost;
+			}
+		}
+	}
+
+	private static final class TermSimScorer extends SimScorer {
+		private final TermWeight weight;
+		private final NumericDocValues norms;
+		private final double[] docNorms;
+		private final int docBase;
+
+		TermSimScorer(TermWeight weight, NumericDocValues norms, double[] docNorms, int docBase) {
+			this.weight = weight;
+			this.norms = norms;
+			this.docNorms = docNorms;
+			this.docBase = docBase;
+		}
+
+		@Override
+		public float score(int doc, float freq) {
+			long norm = norms.get(doc);
+			int doc_length = docLength(norm);
+			int doc_max_tf = docMaxTf(norm);
+			double score = 0;
+			for(int t = 0; t < weight.scorers.length; t++) {
+				score += weight.scorers[t].docWeight((int) freq, doc_length, doc_max_tf) * weight.queryWeights[t];
+			}
+			if(docNorms != null && score != 0) {
+				score /= docNorms[docBase + doc];
+			}
+			return (float) score;
+		}
+
+		@Override
+		public float computeSlopFactor(int distance) {
+			return 1.0f / (distance + 1);
+		}
+
+		@Override
+		public float computePayloadFactor(int doc, int start, int end, BytesRef payload) {
+			return 1;
+		}
+	}
+}
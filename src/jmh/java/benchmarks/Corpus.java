@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * A document collection of the benchmarks, named by their collection
+ * parameter: "cacm" and "med" are the collections under data/ that
+ * EvaluateQueries uses, read relative to the working directory, and
+ * "synthetic-N" is a collection of N generated documents, see SyntheticCorpus,
+ * with the vocabulary, queries and seed of Benchmarks.
+ */
+final class Corpus {
+	private static final String STOPWORDS_FILE = "data/stopwords/stopwords_indri.txt";
+	private static final String SYNTHETIC = "synthetic-";
+	private static final int VOCABULARY_SIZE = 50000;
+	private static final int NUM_QUERIES = 64;
+	private static final long SEED = 42;
+
+	final String docsDir;
+	final String stopWordsFile;
+	final List<String> queries;
+	// where a synthetic corpus was generated, null for those under data/
+	private final File generatedDir;
+
+	private Corpus(String docsDir, String queryFile, String stopWordsFile, File generatedDir) throws Throwable {
+		this.docsDir = docsDir;
+		this.stopWordsFile = stopWordsFile;
+		this.queries = Engines.loadQueries(queryFile);
+		this.generatedDir = generatedDir;
+	}
+
+	static Corpus open(String collection) throws Throwable {
+		if(collection.startsWith(SYNTHETIC)) {
+			int numDocs = Integer.parseInt(collection.substring(SYNTHETIC.length()));
+			File dir = tempDir(collection);
+			Engines.generateSynthetic(dir, VOCABULARY_SIZE, numDocs, NUM_QUERIES, SEED);
+			return new Corpus(new File(dir, Engines.syntheticFile("DOCS_DIR")).getPath(),
+					new File(dir, Engines.syntheticFile("QUERY_FILE")).getPath(),
+					new File(dir, Engines.syntheticFile("STOPWORDS_FILE")).getPath(), dir);
+		}
+		String docsDir = "data/" + collection;
+		String queryFile = "data/" + collection + "_processed.query";
+		for(String path: new String[] {docsDir, queryFile, STOPWORDS_FILE}) {
+			if(!new File(path).exists()) {
+				throw new FileNotFoundException("No " + path + " for collection " + collection
+						+ ", run from the repository root or use -p collection=" + SYNTHETIC + "10000");
+			}
+		}
+		return new Corpus(docsDir, queryFile, STOPWORDS_FILE, null);
+	}
+
+	/** Removes a generated collection */
+	void delete() {
+		if(generatedDir != null) {
+			deleteRecursively(generatedDir);
+		}
+	}
+
+	static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory("benchmarks-" + prefix).toFile();
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child: children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,141 @@
+package benchmarks;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.util.CharArraySet;
+
+/**
+ * The calls the benchmarks make into the search engines. MiniSearchEngine,
+ * IndexFiles, SearchFiles and the rest are in the default package, which JMH
+ * does not generate benchmarks for and which a named package cannot import,
+ * so they are reached through method handles that are looked up once.
+ */
+final class Engines {
+	/** Results per query, as in Benchmarks */
+	static final int NUM_RESULTS = 100;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final Class<?> ENGINE = load("MiniSearchEngine");
+	private static final Class<?> CODEC = load("PostingsCodec");
+	private static final Class<?> SEARCH_FILES = load("SearchFiles");
+	private static final Class<?> OPTIONS = load("IndexFiles$Options");
+	private static final Class<?> SYNTHETIC = load("SyntheticCorpus");
+
+	private static final MethodHandle CODEC_FOR_NAME = findStatic(CODEC, "forName", CODEC, String.class);
+	private static final MethodHandle NEW_ENGINE = findConstructor(ENGINE, String.class, String.class, String.class,
+			int.class, long.class, CODEC);
+	private static final MethodHandle ENGINE_SEARCH = findVirtual(ENGINE, "search", List.class, String.class,
+			String.class, int.class);
+	private static final MethodHandle ENGINE_CLOSE = findVirtual(ENGINE, "close", void.class);
+	private static final MethodHandle NEW_OPTIONS = findConstructor(OPTIONS);
+	private static final MethodHandle OPTIONS_THREADS = findVirtual(OPTIONS, "threads", OPTIONS, int.class);
+	private static final MethodHandle BUILD_INDEX = findStatic(load("IndexFiles"), "buildIndex", void.class,
+			String.class, String.class, CharArraySet.class, OPTIONS);
+	private static final MethodHandle NEW_SEARCH_FILES = findConstructor(SEARCH_FILES, String.class, CharArraySet.class);
+	private static final MethodHandle SEARCH_FILES_SEARCH = findVirtual(SEARCH_FILES, "search", List.class,
+			String.class, int.class);
+	private static final MethodHandle SEARCH_FILES_CLOSE = findVirtual(SEARCH_FILES, "close", void.class);
+	private static final MethodHandle NEW_SYNTHETIC = findConstructor(SYNTHETIC, int.class, long.class);
+	private static final MethodHandle SYNTHETIC_GENERATE = findVirtual(SYNTHETIC, "generate", void.class, File.class,
+			int.class, int.class, long.class);
+	// package private in EvaluateQueries
+	private static final MethodHandle LOAD_QUERIES = findDeclared(load("EvaluateQueries"), "loadQueries", String.class);
+
+	private Engines() {
+	}
+
+	/** Opens the MiniSearchEngine index of the corpus, building it with the threads if it is not there */
+	static Object openEngine(Corpus corpus, String indexDir, int threads, String codec) throws Throwable {
+		return NEW_ENGINE.invoke(corpus.docsDir, indexDir, corpus.stopWordsFile, threads, 0L,
+				CODEC_FOR_NAME.invoke(codec));
+	}
+
+	static List<?> search(Object engine, String query, String weighting) throws Throwable {
+		return (List<?>) ENGINE_SEARCH.invoke(engine, query, weighting, NUM_RESULTS);
+	}
+
+	static void closeEngine(Object engine) throws Throwable {
+		ENGINE_CLOSE.invoke(engine);
+	}
+
+	/** Builds a Lucene index of the corpus with the settings of EvaluateQueries, no stop words */
+	static void buildLuceneIndex(Corpus corpus, String indexDir, int threads) throws Throwable {
+		Object options = OPTIONS_THREADS.invoke(NEW_OPTIONS.invoke(), threads);
+		BUILD_INDEX.invoke(indexDir, corpus.docsDir, new CharArraySet(0, false), options);
+	}
+
+	static Object openLucene(String indexDir) throws Throwable {
+		return NEW_SEARCH_FILES.invoke(indexDir, new CharArraySet(0, false));
+	}
+
+	static List<?> searchLucene(Object searchFiles, String query) throws Throwable {
+		return (List<?>) SEARCH_FILES_SEARCH.invoke(searchFiles, query, NUM_RESULTS);
+	}
+
+	static void closeLucene(Object searchFiles) throws Throwable {
+		SEARCH_FILES_CLOSE.invoke(searchFiles);
+	}
+
+	/** Writes a synthetic corpus, see SyntheticCorpus#generate */
+	static void generateSynthetic(File corpusDir, int vocabularySize, int numDocs, int numQueries, long seed)
+			throws Throwable {
+		SYNTHETIC_GENERATE.invoke(NEW_SYNTHETIC.invoke(vocabularySize, seed), corpusDir, numDocs, numQueries, seed);
+	}
+
+	static String syntheticFile(String constant) throws ReflectiveOperationException {
+		return (String) SYNTHETIC.getField(constant).get(null);
+	}
+
+	static List<String> loadQueries(String queryFile) throws Throwable {
+		return new ArrayList<String>(((Map<Integer, String>) LOAD_QUERIES.invoke(queryFile)).values());
+	}
+
+	private static Class<?> load(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("No class " + name + " on the benchmark class path", e);
+		}
+	}
+
+	private static MethodHandle findStatic(Class<?> c, String name, Class<?> returnType, Class<?>... parameters) {
+		try {
+			return LOOKUP.findStatic(c, name, MethodType.methodType(returnType, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No method " + c.getName() + "." + name, e);
+		}
+	}
+
+	private static MethodHandle findVirtual(Class<?> c, String name, Class<?> returnType, Class<?>... parameters) {
+		try {
+			return LOOKUP.findVirtual(c, name, MethodType.methodType(returnType, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No method " + c.getName() + "." + name, e);
+		}
+	}
+
+	private static MethodHandle findConstructor(Class<?> c, Class<?>... parameters) {
+		try {
+			return LOOKUP.findConstructor(c, MethodType.methodType(void.class, parameters));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No constructor of " + c.getName(), e);
+		}
+	}
+
+	private static MethodHandle findDeclared(Class<?> c, String name, Class<?>... parameters) {
+		try {
+			Method method = c.getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			return LOOKUP.unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No method " + c.getName() + "." + name, e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to index a whole collection, with MiniSearchEngine and with Lucene
+ * through IndexFiles. Every iteration builds one index from scratch. With
+ * more than one thread, -prof gc does not see what the indexing threads
+ * allocate, only the collections they cause.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+	@Param({"cacm", "med"})
+	public String collection;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"vbyte"})
+	public String codec;
+
+	private Corpus corpus;
+	private File indexDir;
+
+	@Setup(Level.Trial)
+	public void openCorpus() throws Throwable {
+		corpus = Corpus.open(collection);
+		indexDir = Corpus.tempDir("index");
+	}
+
+	@Setup(Level.Iteration)
+	public void deleteIndexes() {
+		Corpus.deleteRecursively(indexDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteCorpus() {
+		Corpus.deleteRecursively(indexDir);
+		corpus.delete();
+	}
+
+	@Benchmark
+	public void engine() throws Throwable {
+		Engines.closeEngine(Engines.openEngine(corpus, new File(indexDir, "engine").getPath(), threads, codec));
+	}
+
+	@Benchmark
+	public void lucene() throws Throwable {
+		Engines.buildLuceneIndex(corpus, new File(indexDir, "lucene").getPath(), threads);
+	}
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open and close an existing index: a MiniSearchEngine, and a
+ * SearchFiles searcher on a Lucene index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+	@Param({"cacm", "med"})
+	public String collection;
+
+	@Param({"vbyte"})
+	public String codec;
+
+	private Corpus corpus;
+	private File indexDir;
+	private String engineDir;
+	private String luceneDir;
+
+	@Setup(Level.Trial)
+	public void buildIndexes() throws Throwable {
+		corpus = Corpus.open(collection);
+		indexDir = Corpus.tempDir("index");
+		engineDir = new File(indexDir, "engine").getPath();
+		luceneDir = new File(indexDir, "lucene").getPath();
+		Engines.closeEngine(Engines.openEngine(corpus, engineDir, 1, codec));
+		Engines.buildLuceneIndex(corpus, luceneDir, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteIndexes() {
+		Corpus.deleteRecursively(indexDir);
+		corpus.delete();
+	}
+
+	@Benchmark
+	public void engine() throws Throwable {
+		Engines.closeEngine(Engines.openEngine(corpus, engineDir, 1, codec));
+	}
+
+	@Benchmark
+	public void lucene() throws Throwable {
+		Engines.closeLucene(Engines.openLucene(luceneDir));
+	}
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the queries of a collection on an open SearchFiles searcher with
+ * Lucene's default similarity, the Lucene counterpart of {@link QueryBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuceneQueryBenchmark {
+	@Param({"cacm", "med"})
+	public String collection;
+
+	private Corpus corpus;
+	private File indexDir;
+	private Object searchFiles;
+	private List<String> queries;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void openSearcher() throws Throwable {
+		corpus = Corpus.open(collection);
+		indexDir = Corpus.tempDir("index");
+		Engines.buildLuceneIndex(corpus, indexDir.getPath(), 1);
+		searchFiles = Engines.openLucene(indexDir.getPath());
+		queries = corpus.queries;
+	}
+
+	@TearDown(Level.Trial)
+	public void closeSearcher() throws Throwable {
+		Engines.closeLucene(searchFiles);
+		Corpus.deleteRecursively(indexDir);
+		corpus.delete();
+	}
+
+	@Benchmark
+	public List<?> lucene() throws Throwable {
+		String query = queries.get(next);
+		next = (next + 1) % queries.size();
+		return Engines.searchLucene(searchFiles, query);
+	}
+}
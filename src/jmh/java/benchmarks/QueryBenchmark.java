@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the queries of a collection on an open MiniSearchEngine with each
+ * weighting. Every invocation runs the next query of the collection, for the
+ * top {@link Engines#NUM_RESULTS} results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+	@Param({"cacm", "med"})
+	public String collection;
+
+	@Param({"atc.atc", "atn.atn", "ann.bpn", "BM25", "LM.dirichlet", "LM.jm"})
+	public String weighting;
+
+	@Param({"vbyte"})
+	public String codec;
+
+	private Corpus corpus;
+	private File indexDir;
+	private Object engine;
+	private List<String> queries;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void openEngine() throws Throwable {
+		corpus = Corpus.open(collection);
+		indexDir = Corpus.tempDir("index");
+		engine = Engines.openEngine(corpus, indexDir.getPath(), 1, codec);
+		queries = corpus.queries;
+	}
+
+	@TearDown(Level.Trial)
+	public void closeEngine() throws Throwable {
+		Engines.closeEngine(engine);
+		Corpus.deleteRecursively(indexDir);
+		corpus.delete();
+	}
+
+	@Benchmark
+	public List<?> engine() throws Throwable {
+		String query = queries.get(next);
+		next = (next + 1) % queries.size();
+		return Engines.search(engine, query, weighting);
+	}
+}